@@ -0,0 +1,98 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that sending and receiving primitives allocates nothing once the connection has warmed up. The bytes allocated by the sending thread and by the api's event loop threads are measured around a loop of typed sends (sendInt, sendLong, ...) that the server receives through its receiveX methods. Any object made per message takes at least 16 bytes, so an average under one byte per message means nothing is allocated per message; the little that is left comes from the event loops waking up, not from the messages.
+ * Run with: java AllocationTester [messages per round]
+ * Exits with status 1 if the last round allocated per message.
+ */
+public class AllocationTester {
+   //Number of primitives the server has received, only written by the event loop receiving them
+   private static volatile int received;
+   
+   public static void main(String[] args) throws Exception {
+      int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      if(!threads.isThreadAllocatedMemorySupported()){
+         System.out.println("This JVM cannot measure the memory allocated by threads");
+         System.exit(1);
+      }
+      threads.setThreadAllocatedMemoryEnabled(true);
+      
+      TesterServer server = new TesterServer(null){
+         @Override
+         public TesterServerPlayer createClient(SocketChannel socketChannel) throws java.io.IOException {
+            return new TesterServerPlayer(socketChannel, this){
+               public void receiveInt(int in) {received++;}
+               public void receiveChar(char in) {received++;}
+               public void receiveLong(long in) {received++;}
+               public void receiveDouble(double in) {received++;}
+               public void receiveByte(byte in) {received++;}
+               public void receiveShort(short in) {received++;}
+               public void receiveFloat(float in) {received++;}
+               public void receiveBool(boolean in) {received++;}
+            };
+         }
+      };
+      server.open();
+      TesterLocalPlayer client = new TesterLocalPlayer();
+      client.joinServer(new InetSocketAddress(server.getIP(), server.getPort()));
+      while(server.getUsers().isEmpty()){
+         Thread.sleep(1);
+      }
+      List<Thread> loops = new ArrayList<>();
+      for(Thread t : Thread.getAllStackTraces().keySet()){
+         if(t.getName().startsWith("NetEventLoop")){
+            loops.add(t);
+         }
+      }
+      
+      //The first rounds warm the JVM up, so only the last one decides whether the test passes
+      double sentPerMessage = 0, receivedPerMessage = 0;
+      System.out.println("round  sent bytes/msg  received bytes/msg");
+      for(int round = 0; round < 5; round++){
+         int start = received;
+         long sending = threads.getCurrentThreadAllocatedBytes();
+         long receiving = allocated(threads, loops);
+         for(int i = 0; i < messages; i++){
+            switch(i & 7){
+               case 0 -> client.sendInt(i);
+               case 1 -> client.sendLong(i);
+               case 2 -> client.sendDouble(i);
+               case 3 -> client.sendFloat(i);
+               case 4 -> client.sendShort((short)i);
+               case 5 -> client.sendByte((byte)i);
+               case 6 -> client.sendChar((char)i);
+               default -> client.sendBool((i & 8) == 0);
+            }
+         }
+         sending = threads.getCurrentThreadAllocatedBytes() - sending;
+         while(received - start < messages){
+            Thread.sleep(1);
+         }
+         receiving = allocated(threads, loops) - receiving;
+         sentPerMessage = sending / (double)messages;
+         receivedPerMessage = receiving / (double)messages;
+         System.out.printf("%5d  %14.3f  %18.3f%n", round, sentPerMessage, receivedPerMessage);
+      }
+      client.leaveServer();
+      server.close();
+      boolean passed = sentPerMessage < 1 && receivedPerMessage < 1;
+      System.out.println(passed ? "No allocation per message" : "Sending or receiving primitives allocates");
+      System.exit(passed ? 0 : 1);
+   }
+   
+   /**
+    * Returns the total number of bytes allocated so far by the given threads
+    */
+   private static long allocated(com.sun.management.ThreadMXBean threads, List<Thread> loops) {
+      long total = 0;
+      for(Thread t : loops){
+         total += threads.getThreadAllocatedBytes(t.threadId());
+      }
+      return total;
+   }
+}
@@ -0,0 +1,84 @@
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how many clients can join and leave a server each second, with a growing number of threads joining and leaving at once. The rate should grow with the number of threads, as nothing the api does while clients join or leave is shared behind a lock.
+ * Run with: java ChurnBenchmark [cycles per thread] [thread counts...]
+ */
+public class ChurnBenchmark {
+   
+   public static void main(String[] args) throws Exception {
+      int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+      int[] threadCounts = {1, 2, 4, 8, 16};
+      if(args.length > 1){
+         threadCounts = new int[args.length - 1];
+         for(int i = 1; i < args.length; i++){
+            threadCounts[i - 1] = Integer.parseInt(args[i]);
+         }
+      }
+      TesterServer server = new TesterServer(null);
+      server.open();
+      InetSocketAddress address = new InetSocketAddress(server.getIP(), server.getPort());
+      
+      //A short round first, so that the timed rounds are not slowed by the JVM warming up
+      churn(address, 4, cycles);
+      waitForEmpty(server);
+      System.out.println("threads  joins+leaves/s  failures");
+      for(int threads : threadCounts){
+         long start = System.nanoTime();
+         int failures = churn(address, threads, cycles);
+         boolean empty = waitForEmpty(server);
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.printf("%7d  %14.0f  %8d%s%n", threads, threads * cycles / seconds, failures, empty ? "" : "  (" + server.getUsers().size() + " clients never left)");
+      }
+      server.close();
+      System.exit(0);
+   }
+   
+   /**
+    * Has each of the given number of threads join the server, send it an int and leave, cycles times over, and returns the number of cycles that failed
+    */
+   private static int churn(InetSocketAddress address, int threads, int cycles) throws Exception {
+      AtomicInteger failures = new AtomicInteger();
+      CountDownLatch ready = new CountDownLatch(threads), go = new CountDownLatch(1), done = new CountDownLatch(threads);
+      for(int t = 0; t < threads; t++){
+         new Thread(() -> {
+            try {
+               TesterLocalPlayer client = new TesterLocalPlayer();
+               ready.countDown();
+               go.await();
+               for(int i = 0; i < cycles; i++){
+                  try {
+                     client.joinServer(address);
+                     client.sendInt(i);
+                     client.leaveServer();
+                  } catch (Exception e) {
+                     failures.incrementAndGet();
+                  }
+               }
+               client.close();
+            } catch (Exception e) {
+               e.printStackTrace(System.out);
+            } finally {
+               done.countDown();
+            }
+         }).start();
+      }
+      ready.await();
+      go.countDown();
+      done.await();
+      return failures.get();
+   }
+   
+   /**
+    * Waits up to five seconds for every client that left to be removed from the server, and returns whether they all were
+    */
+   private static boolean waitForEmpty(TesterServer server) throws InterruptedException {
+      long end = System.nanoTime() + 5_000_000_000L;
+      while(!server.getUsers().isEmpty() && System.nanoTime() < end){
+         Thread.sleep(1);
+      }
+      return server.getUsers().isEmpty();
+   }
+}
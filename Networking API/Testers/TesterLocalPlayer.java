@@ -0,0 +1,49 @@
+import netApi.ClientSideConnection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * A client used by the testers, which ignores everything it receives unless a tester overrides it
+ */
+public class TesterLocalPlayer extends ClientSideConnection {
+   
+   /**
+    * Creates a new TesterLocalPlayer
+    */
+   public TesterLocalPlayer() throws IOException {
+      super();
+   }
+   
+   /**
+    * Returns an integer used to verify client connections, which matches TesterServer.getServerType().
+    */
+   @Override
+   public int getClientType() {
+      return 270415;
+   }
+   
+   public void receiveInt(int in) {}
+   
+   public void receiveChar(char in) {}
+   
+   public void receiveLong(long in) {}
+   
+   public void receiveDouble(double in) {}
+   
+   public void receiveByte(byte in) {}
+   
+   public void receiveShort(short in) {}
+   
+   public void receiveFloat(float in) {}
+   
+   public void receiveBool(boolean in) {}
+   
+   public void receiveString(String in) {}
+   
+   public void receiveObject(Object in) {}
+   
+   public void leftServer(String in, boolean forced) {}
+   
+   public void receiveServerInfo(InetSocketAddress address, byte[] data) {}
+}
@@ -0,0 +1,54 @@
+import netApi.Server;
+import netApi.Transport;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A private server used by the testers, which does nothing with its clients but keep them. Testers override the methods they need to watch.
+ */
+public class TesterServer extends Server<TesterServerPlayer> {
+   
+   /**
+    * Creates a new TesterServer whose clients send and receive their messages through the given transport
+    */
+   public TesterServer(Transport transport) throws IOException {
+      super(false, transport);
+   }
+   
+   /**
+    * Returns an integer used to verify client connections, which matches TesterLocalPlayer.getClientType().
+    */
+   @Override
+   public int getServerType() {
+      return 270415;
+   }
+   
+   /**
+    * Returns a new TesterServerPlayer based around the supplied socket channel. This method is called by the api when a new client joins the server.
+    */
+   @Override
+   public TesterServerPlayer createClient(SocketChannel socketChannel) throws IOException {
+      return new TesterServerPlayer(socketChannel, this);
+   }
+   
+   /**
+    * Returns the server's info, which is empty as the server is never public
+    */
+   @Override
+   public byte[] getServerInfo(){
+      return new byte[0];
+   }
+   
+   @Override
+   public void clientConnectPreAuth(TesterServerPlayer client) {}
+   
+   @Override
+   public void clientCancelConnect(TesterServerPlayer client) {}
+   
+   @Override
+   public void clientConnectPostAuth(TesterServerPlayer client) {}
+   
+   @Override
+   public void clientDisconnect(TesterServerPlayer client, String reason) {}
+}
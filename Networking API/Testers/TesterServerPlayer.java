@@ -0,0 +1,37 @@
+import netApi.ServerSideConnection;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A serverside representation of a tester's client, which ignores everything it receives unless a tester overrides it
+ */
+public class TesterServerPlayer extends ServerSideConnection<TesterServer> {
+   
+   /**
+    * Creates a new TesterServerPlayer connected to the given server and based on the supplied SocketChannel
+    */
+   public TesterServerPlayer(SocketChannel s, TesterServer serv) throws IOException {
+      super(s, serv);
+   }
+   
+   public void receiveInt(int in) {}
+   
+   public void receiveChar(char in) {}
+   
+   public void receiveLong(long in) {}
+   
+   public void receiveDouble(double in) {}
+   
+   public void receiveByte(byte in) {}
+   
+   public void receiveShort(short in) {}
+   
+   public void receiveFloat(float in) {}
+   
+   public void receiveBool(boolean in) {}
+   
+   public void receiveString(String in) {}
+   
+   public void receiveObject(Object in) {}
+}
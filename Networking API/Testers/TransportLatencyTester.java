@@ -0,0 +1,215 @@
+import netApi.SimulatedNetwork;
+import netApi.Transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long messages take to arrive over TCP and over Transport.UDP on a slow network that loses data. A client sends a long holding the time every half a millisecond, and the server records how long each took to arrive, printing the median, 99th and 99.9th percentiles and the worst time for each network.
+ * UDP runs through SimulatedNetwork, which delays every datagram and drops some of them. TCP runs through a relay on this machine that delays everything sent through it; data cannot be lost inside a TCP connection from outside the operating system, so TCP is only measured without loss.
+ * Run with: java TransportLatencyTester [messages per network] [delay in ms...]
+ */
+public class TransportLatencyTester {
+   //Shares of datagrams lost that UDP is measured with
+   private static final double[] LOSSES = {0, 0.01, 0.05};
+   
+   //Time between messages in nanoseconds
+   private static final long INTERVAL = 500_000;
+   
+   //How long each message took to arrive in nanoseconds, and how many have arrived, only written by the event loop receiving them
+   private static long[] times;
+   private static volatile int received;
+   
+   public static void main(String[] args) throws Exception {
+      int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+      long[] delays = {0, 20};
+      if(args.length > 1){
+         delays = new long[args.length - 1];
+         for(int i = 1; i < args.length; i++){
+            delays[i - 1] = Long.parseLong(args[i]);
+         }
+      }
+      System.out.println("transport  delay ms  loss  delivered     p50 ms     p99 ms   p99.9 ms     max ms");
+      for(long delay : delays){
+         measure(Transport.TCP, delay, 0, messages);
+         for(double loss : LOSSES){
+            measure(Transport.UDP, delay, loss, messages);
+         }
+      }
+      System.exit(0);
+   }
+   
+   /**
+    * Sends the given number of messages from a new client to a new server over the given transport and network, and prints how long they took to arrive
+    */
+   private static void measure(Transport transport, long delay, double loss, int messages) throws Exception {
+      times = new long[messages];
+      received = 0;
+      TesterServer server = new TesterServer(transport){
+         @Override
+         public TesterServerPlayer createClient(SocketChannel socketChannel) throws IOException {
+            return new TesterServerPlayer(socketChannel, this){
+               public void receiveLong(long in) {
+                  if(received < times.length){
+                     times[received] = System.nanoTime() - in;
+                     received++;
+                  }
+               }
+            };
+         }
+      };
+      ServerSocketChannel relay = null;
+      if(transport == Transport.UDP){
+         SimulatedNetwork.install(loss, delay);
+      }
+      try {
+         server.open();
+         InetSocketAddress address = new InetSocketAddress(server.getIP(), server.getPort());
+         if(transport == Transport.TCP && delay > 0){
+            relay = relay(address, delay);
+            address = (InetSocketAddress)relay.getLocalAddress();
+         }
+         TesterLocalPlayer client = new TesterLocalPlayer();
+         client.joinServer(address);
+         
+         //Wait for the client to finish joining, and to move onto the UDP transport when it is used
+         long end = System.nanoTime() + 10_000_000_000L;
+         while((server.getUsers().isEmpty() || client.getTransport() != transport) && System.nanoTime() < end){
+            Thread.sleep(10);
+         }
+         if(client.getTransport() != transport){
+            System.out.println(transport + " could not be used");
+            return;
+         }
+         Thread.sleep(4 * delay + 200);
+         
+         long start = System.nanoTime();
+         for(int i = 0; i < messages; i++){
+            long due = start + i * INTERVAL;
+            while(System.nanoTime() < due){
+               Thread.onSpinWait();
+            }
+            client.sendLong(System.nanoTime());
+         }
+         end = System.nanoTime() + 30_000_000_000L;
+         while(received < messages && System.nanoTime() < end){
+            Thread.sleep(10);
+         }
+         long[] sorted = Arrays.copyOf(times, received);
+         Arrays.sort(sorted);
+         System.out.printf("%9s  %8d  %3.0f%%  %4d/%-4d  %9.2f  %9.2f  %9.2f  %9.2f%n", transport, delay, loss * 100, received, messages,
+            percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1));
+         client.close();
+      } finally {
+         server.close();
+         if(relay != null){
+            relay.close();
+         }
+         SimulatedNetwork.uninstall();
+      }
+   }
+   
+   /**
+    * Returns the time in milliseconds that the given share of the sorted times are within
+    */
+   private static double percentile(long[] sorted, double share) {
+      if(sorted.length == 0){
+         return Double.NaN;
+      }
+      return sorted[Math.min(sorted.length - 1, (int)(sorted.length * share))] / 1e6;
+   }
+   
+   /**
+    * Opens a relay to the given address that holds back everything sent through it, both ways, for the given delay, and returns the channel that clients connect to instead
+    */
+   private static ServerSocketChannel relay(InetSocketAddress target, long delay) throws IOException {
+      ServerSocketChannel relay = ServerSocketChannel.open().bind(new InetSocketAddress(target.getAddress(), 0));
+      Thread accepting = new Thread(() -> {
+         try {
+            while(true){
+               SocketChannel in = relay.accept();
+               SocketChannel out = SocketChannel.open(target);
+               in.setOption(StandardSocketOptions.TCP_NODELAY, true);
+               out.setOption(StandardSocketOptions.TCP_NODELAY, true);
+               pipe(in, out, delay);
+               pipe(out, in, delay);
+            }
+         } catch (IOException e) {
+            //The relay was closed
+         }
+      });
+      accepting.setDaemon(true);
+      accepting.start();
+      return relay;
+   }
+   
+   /**
+    * Forwards everything read from one channel to another once the given delay has passed, closing the second channel once the first ends
+    */
+   private static void pipe(SocketChannel from, SocketChannel to, long delay) {
+      DelayQueue<Held> held = new DelayQueue<>();
+      Thread reading = new Thread(() -> {
+         try {
+            while(true){
+               ByteBuffer data = ByteBuffer.allocate(65536);
+               if(from.read(data) < 0){
+                  break;
+               }
+               held.add(new Held(data.flip(), delay));
+            }
+         } catch (IOException e) {
+            //The connection was closed
+         }
+         held.add(new Held(null, delay));
+      });
+      Thread writing = new Thread(() -> {
+         try {
+            while(true){
+               Held h = held.take();
+               if(h.data == null){
+                  to.close();
+                  return;
+               }
+               while(h.data.hasRemaining()){
+                  to.write(h.data);
+               }
+            }
+         } catch (IOException | InterruptedException e) {
+            //The connection was closed
+         }
+      });
+      reading.setDaemon(true);
+      writing.setDaemon(true);
+      reading.start();
+      writing.start();
+   }
+   
+   /**
+    * Data read by the relay, held until its delay has passed (null data marks the end of the connection)
+    */
+   private static class Held implements Delayed {
+      private final ByteBuffer data;
+      private final long due;
+      
+      private Held(ByteBuffer data, long delay) {
+         this.data = data;
+         this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+      }
+      
+      public long getDelay(TimeUnit unit) {
+         return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+      
+      public int compareTo(Delayed o) {
+         return Long.compare(due, ((Held)o).due);
+      }
+   }
+}
@@ -0,0 +1,96 @@
+package netApi;
+
+import netApi.NetEventHandler.DataStream;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the datagrams of {@link UnreliableChannel}s opened from now on in this JVM go through a simulated network that loses some of them and holds the rest back, for testers measuring {@link Transport#UDP} on a bad network. This is only compiled with the testers, and lives in the api's package to reach the package private {@link UnreliableChannel}.
+ */
+public final class SimulatedNetwork {
+    /**
+     * Single thread sending held back datagrams, which sends datagrams held for the same time in the order they were sent, as a network without reordering would
+     */
+    private static final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "SimulatedNetwork");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private SimulatedNetwork() {}
+
+    /**
+     * Opens every {@link UnreliableChannel} from now on through the simulated network. Channels that are already open are not affected.
+     * @param loss Share (from 0 to 1) of datagrams dropped instead of sent
+     * @param latency Time (in milliseconds) every datagram is held before it is sent
+     */
+    public static void install(double loss, long latency) {
+        UnreliableChannel.factory = (channel, client) -> new LossyChannel(channel, client, loss, latency);
+    }
+
+    /**
+     * Opens every {@link UnreliableChannel} from now on straight onto the network again
+     */
+    public static void uninstall() {
+        UnreliableChannel.factory = UnreliableChannel::new;
+    }
+
+    /**
+     * {@link UnreliableChannel} whose datagrams go through the simulated network
+     */
+    private static final class LossyChannel extends UnreliableChannel {
+        /**
+         * The underlying channel
+         */
+        private final DatagramChannel channel;
+        /**
+         * Share of datagrams dropped
+         */
+        private final double loss;
+        /**
+         * Time (in milliseconds) datagrams are held
+         */
+        private final long latency;
+
+        /**
+         * Creates a new LossyChannel
+         * @param channel The underlying channel
+         * @param client The client's connection, or null for a {@link Server}'s channel
+         * @param loss Share of datagrams dropped
+         * @param latency Time (in milliseconds) datagrams are held
+         */
+        LossyChannel(DatagramChannel channel, DataStream client, double loss, long latency) {
+            super(channel, client);
+            this.channel = channel;
+            this.loss = loss;
+            this.latency = latency;
+        }
+
+        @Override
+        int transmit(ByteBuffer datagram, SocketAddress to) throws IOException {
+            int length = datagram.remaining();
+            if(loss > 0 && ThreadLocalRandom.current().nextDouble() < loss){return length;}
+            if(latency <= 0){
+                return super.transmit(datagram, to);
+            }
+            ByteBuffer held = ByteBuffer.allocate(length).put(datagram).flip();
+            sender.schedule(() -> {
+                try {
+                    channel.send(held, to);
+                } catch (IOException e) {
+                    if(NetEventHandler.DEV_VERSION){
+                        e.printStackTrace(System.out);
+                    }
+                }
+            }, latency, TimeUnit.MILLISECONDS);
+            return length;
+        }
+    }
+}
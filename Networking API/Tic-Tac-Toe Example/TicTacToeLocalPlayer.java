@@ -431,7 +431,7 @@ public class TicTacToeLocalPlayer extends ClientSideConnection {
                   return;
                }
                try {
-                  send((byte) ((y << Byte.SIZE / 2) | x));
+                  sendByte((byte) ((y << Byte.SIZE / 2) | x));
                } catch (Exception ex) {
                }
                myTurn = false;
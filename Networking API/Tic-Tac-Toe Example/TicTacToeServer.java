@@ -52,14 +52,11 @@ public class TicTacToeServer extends Server<TicTacToeServerPlayer> {
     */
    public void broadcastInfo(Object in){
       System.out.print("");
-      getUsers().forEach(
-         u -> {
-            try {
-               u.send(in);
-            } catch (Exception e) {
-               e.printStackTrace(System.out);
-            }
-         });
+      try {
+         broadcast(in);
+      } catch (Exception e) {
+         e.printStackTrace(System.out);
+      }
    }
    
    /**
@@ -67,29 +64,29 @@ public class TicTacToeServer extends Server<TicTacToeServerPlayer> {
     */
    private void checkWin() throws IOException, ClassNotFoundException {
       if(board[0][0] == board[1][1] && board[1][1] == board[2][2] && board[2][2] != 0){
-         getUsers().get(board[0][0]-1).send(true);
-         getUsers().get(board[0][0]%2).send(false);
+         getUsers().get(board[0][0]-1).sendBool(true);
+         getUsers().get(board[0][0]%2).sendBool(false);
          close();
          return;
       }
       if(board[2][0] == board[1][1] && board[1][1] == board[0][2] && board[2][0] != 0){
-         getUsers().get(board[2][0]-1).send(true);
-         getUsers().get(board[2][0]%2).send(false);
+         getUsers().get(board[2][0]-1).sendBool(true);
+         getUsers().get(board[2][0]%2).sendBool(false);
          close();
          return;
       }
       for(int r = 0; r < board.length; r++){
          if(board[r][0] == board[r][1] && board[r][1] == board[r][2] && board[r][0] != 0){
-            getUsers().get(board[r][0]-1).send(true);
-            getUsers().get(board[r][0]%2).send(false);
+            getUsers().get(board[r][0]-1).sendBool(true);
+            getUsers().get(board[r][0]%2).sendBool(false);
             close();
             return;
          }
       }
       for(int c = 0; c < board.length; c++){
          if(board[0][c] == board[1][c] && board[1][c] == board[2][c] && board[2][c] != 0){
-            getUsers().get(board[0][c]-1).send(true);
-            getUsers().get(board[0][c]%2).send(false);
+            getUsers().get(board[0][c]-1).sendBool(true);
+            getUsers().get(board[0][c]%2).sendBool(false);
             close();
             return;
          }
@@ -100,8 +97,8 @@ public class TicTacToeServer extends Server<TicTacToeServerPlayer> {
                return;}
          }
       }
-      getUsers().get(0).send(false);
-      getUsers().get(1).send(false);
+      getUsers().get(0).sendBool(false);
+      getUsers().get(1).sendBool(false);
       close();
    }
    
@@ -165,7 +162,7 @@ public class TicTacToeServer extends Server<TicTacToeServerPlayer> {
             board[b >> (Byte.SIZE / 2)][((byte) (b << (Byte.SIZE / 2))) >> (Byte.SIZE / 2)] = (byte) (i + 1);
             getUsers().get(i).setTurn(false);
             try {
-               getUsers().get((i + 1) % 2).send(b);
+               getUsers().get((i + 1) % 2).sendByte(b);
                getUsers().get((i + 1) % 2).setTurn(true);
             } catch (Exception ex) {
                ex.printStackTrace(System.out);
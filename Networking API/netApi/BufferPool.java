@@ -0,0 +1,317 @@
+package netApi;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of direct {@link ByteBuffer}s that every connection's receive buffer, send buffer and queued data are taken from. Buffers come in a few fixed sizes, each {@link EventLoop} thread keeps a small cache of each size so that taking and returning a buffer usually touches no shared state, and buffers beyond what a loop's cache holds, or used by any other thread, go to a free list shared by all threads. Direct buffers are read from and written to by the operating system without first being copied, but are slow to create and only freed by the garbage collector, so they are reused instead.
+ * When {@link NetEventHandler#BUFFER_LEAK_DETECTION} is set, the pool remembers where each buffer it hands out was taken, and reports any buffer that is garbage collected without having been returned, or that is returned twice.
+ */
+public final class BufferPool {
+    /**
+     * Size of the smallest buffers, in bytes
+     */
+    private static final int MIN_SIZE = 4 * 1024;
+    /**
+     * Number of sizes of buffers, each four times the last. Larger requests are given heap buffers that are not pooled.
+     */
+    private static final int CLASSES = 5;
+    /**
+     * Most bytes of each size of buffer kept in a loop's cache, which always has room for at least one
+     */
+    private static final int THREAD_CACHE_BYTES = 256 * 1024;
+    /**
+     * Most bytes of each size of buffer kept in the shared free lists, which always have room for at least two
+     */
+    private static final int SHARED_BYTES = 4 * 1024 * 1024;
+    /**
+     * Buffers of each size not in use and not in any loop's cache
+     */
+    private static final Queue<ByteBuffer>[] shared = newShared();
+    /**
+     * Number of buffers in each of {@link #shared}, which is kept separately as counting a {@link ConcurrentLinkedQueue} is slow
+     */
+    private static final AtomicInteger[] sharedCounts = new AtomicInteger[CLASSES];
+    /**
+     * Each {@link EventLoop} thread's cache of buffers of each size, see {@link #cacheOnThisThread()}. Other threads have none, as sender threads and the threads of {@link NetEventHandler#CALLBACK_EXECUTOR} may end at any time, and buffers in the cache of an ended thread would never be used again.
+     */
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>[]> caches = new ThreadLocal<>();
+    /**
+     * Number of requests served with a buffer that was already in the pool
+     */
+    private static final AtomicLong hits = new AtomicLong();
+    /**
+     * Number of requests that needed a new buffer
+     */
+    private static final AtomicLong misses = new AtomicLong();
+    /**
+     * Number of bytes in pooled buffers that have been taken and not yet returned
+     */
+    private static final AtomicLong outstanding = new AtomicLong();
+    /**
+     * Number of leaks reported, see {@link NetEventHandler#BUFFER_LEAK_DETECTION}
+     */
+    private static final AtomicLong leaks = new AtomicLong();
+    /**
+     * Buffers that have been taken and not yet returned while leak detection is on, by {@link System#identityHashCode(Object)}
+     */
+    private static final Map<Integer, List<Tracked>> tracked = new HashMap<>();
+    /**
+     * Where the garbage collector puts {@link Tracked} buffers it has collected
+     */
+    private static final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    static {
+        for(int i = 0; i < CLASSES; i++){
+            sharedCounts[i] = new AtomicInteger();
+        }
+    }
+
+    private BufferPool() {}
+
+    /**
+     * Creates the shared free lists
+     * @return An empty free list for each size of buffer
+     */
+    @SuppressWarnings("unchecked")
+    private static Queue<ByteBuffer>[] newShared() {
+        Queue<ByteBuffer>[] out = (Queue<ByteBuffer>[]) new Queue<?>[CLASSES];
+        for(int i = 0; i < CLASSES; i++){
+            out[i] = new ConcurrentLinkedQueue<>();
+        }
+        return out;
+    }
+
+    /**
+     * Creates a thread's cache
+     * @return An empty cache for each size of buffer
+     */
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<ByteBuffer>[] newCache() {
+        ArrayDeque<ByteBuffer>[] out = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[CLASSES];
+        for(int i = 0; i < CLASSES; i++){
+            out[i] = new ArrayDeque<>();
+        }
+        return out;
+    }
+
+    /**
+     * Gives the calling thread its own cache of buffers. This is only done by {@link EventLoop} threads, which run for as long as the program does.
+     * @hidden
+     */
+    static void cacheOnThisThread() {
+        if(caches.get() == null){
+            caches.set(newCache());
+        }
+    }
+
+    /**
+     * Finds the smallest size of buffer that holds a number of bytes
+     * @param size The number of bytes
+     * @return The index of the size, or -1 if no pooled buffer is large enough
+     */
+    private static int sizeClass(int size) {
+        for(int i = 0, capacity = MIN_SIZE; i < CLASSES; i++, capacity <<= 2){
+            if(size <= capacity){return i;}
+        }
+        return -1;
+    }
+
+    /**
+     * Takes a buffer from the pool, which must be given back with {@link #release(ByteBuffer)} once nothing uses it anymore
+     * @param size Smallest number of bytes the buffer must hold
+     * @return An empty buffer holding at least size bytes, its limit at its capacity. Requests larger than the largest pooled buffers are given a heap buffer of exactly size bytes.
+     * @hidden
+     */
+    static ByteBuffer acquire(int size) {
+        int c = sizeClass(size);
+        if(c < 0){
+            misses.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        ArrayDeque<ByteBuffer>[] cache = caches.get();
+        ByteBuffer out = cache == null ? null : cache[c].pollLast();
+        if(out == null){
+            out = shared[c].poll();
+            if(out != null){
+                sharedCounts[c].decrementAndGet();
+            }
+        }
+        if(out == null){
+            misses.incrementAndGet();
+            out = ByteBuffer.allocateDirect(MIN_SIZE << 2 * c);
+        }
+        else{
+            hits.incrementAndGet();
+            out.clear();
+        }
+        outstanding.addAndGet(out.capacity());
+        if(NetEventHandler.BUFFER_LEAK_DETECTION){
+            track(out);
+        }
+        return out;
+    }
+
+    /**
+     * Gives a buffer taken with {@link #acquire(int)} back to the pool. The buffer must not be used again after this. Buffers that did not come from the pool are ignored.
+     * @param buffer The buffer, or null
+     * @hidden
+     */
+    static void release(ByteBuffer buffer) {
+        if(buffer == null || !buffer.isDirect()){return;}
+        int c = sizeClass(buffer.capacity());
+        if(c < 0 || buffer.capacity() != MIN_SIZE << 2 * c){return;}
+        if(NetEventHandler.BUFFER_LEAK_DETECTION && !untrack(buffer)){
+            return;
+        }
+        outstanding.addAndGet(-buffer.capacity());
+        ArrayDeque<ByteBuffer>[] cache = caches.get();
+        if(cache != null && cache[c].size() < Math.max(1, THREAD_CACHE_BYTES / buffer.capacity())){
+            cache[c].addLast(buffer);
+        }
+        else if(sharedCounts[c].incrementAndGet() <= Math.max(2, SHARED_BYTES / buffer.capacity())){
+            shared[c].offer(buffer);
+        }
+        else{
+            sharedCounts[c].decrementAndGet();
+        }
+    }
+
+    /**
+     * Remembers where a buffer was taken, reporting any buffers that were collected without being returned
+     * @param buffer The buffer
+     */
+    private static void track(ByteBuffer buffer) {
+        Tracked t = new Tracked(buffer);
+        synchronized (tracked) {
+            reportLeaks();
+            tracked.computeIfAbsent(t.hash, h -> new ArrayList<>(1)).add(t);
+        }
+    }
+
+    /**
+     * Forgets a returned buffer, reporting it if it was not taken from the pool or was already returned
+     * @param buffer The buffer
+     * @return Whether the buffer was taken and not yet returned
+     */
+    private static boolean untrack(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        synchronized (tracked) {
+            List<Tracked> list = tracked.get(hash);
+            if(list != null){
+                for(int i = 0; i < list.size(); i++){
+                    if(list.get(i).get() == buffer){
+                        list.remove(i).clear();
+                        if(list.isEmpty()){
+                            tracked.remove(hash);
+                        }
+                        return true;
+                    }
+                }
+            }
+        }
+        leaks.incrementAndGet();
+        new IllegalStateException("A buffer was returned to the pool twice, or was not taken from it").printStackTrace(System.out);
+        return false;
+    }
+
+    /**
+     * Reports every buffer the garbage collector has collected without it having been returned. Must be called while holding the lock on {@link #tracked}.
+     */
+    private static void reportLeaks() {
+        Tracked t;
+        while((t = (Tracked) collected.poll()) != null){
+            List<Tracked> list = tracked.get(t.hash);
+            if(list == null || !list.remove(t)){continue;}
+            if(list.isEmpty()){
+                tracked.remove(t.hash);
+            }
+            leaks.incrementAndGet();
+            System.out.println("A pooled buffer of " + t.capacity + " bytes was garbage collected without being returned to the pool. It was taken at:");
+            t.origin.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Returns the share of requests for a buffer that were served with a buffer already in the pool
+     * @return The hit rate, from 0 to 1, or 0 if no buffers have been requested
+     */
+    public static double getHitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Returns the number of requests for a buffer that were served with a buffer already in the pool
+     * @return The number of hits
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests for a buffer that needed a new one, including requests too large to be pooled
+     * @return The number of misses
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of bytes in pooled buffers that are currently in use. Buffers that were never returned stay counted, so a number that keeps growing while the number of connections does not points to a leak.
+     * @return The number of bytes in use
+     */
+    public static long getOutstandingBytes() {
+        return outstanding.get();
+    }
+
+    /**
+     * Returns the number of leaked or twice returned buffers reported so far, which is only counted while {@link NetEventHandler#BUFFER_LEAK_DETECTION} is set
+     * @return The number of leaks
+     */
+    public static long getLeaks() {
+        synchronized (tracked) {
+            reportLeaks();
+        }
+        return leaks.get();
+    }
+
+    /**
+     * A buffer that has been taken and not yet returned while leak detection is on
+     */
+    private static class Tracked extends WeakReference<ByteBuffer> {
+        /**
+         * Where the buffer was taken
+         */
+        private final Throwable origin;
+        /**
+         * {@link System#identityHashCode(Object)} of the buffer
+         */
+        private final int hash;
+        /**
+         * Size of the buffer in bytes
+         */
+        private final int capacity;
+
+        /**
+         * Creates a new Tracked
+         * @param buffer The buffer
+         */
+        Tracked(ByteBuffer buffer) {
+            super(buffer, collected);
+            origin = new Throwable("Buffer taken here");
+            hash = System.identityHashCode(buffer);
+            capacity = buffer.capacity();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package netApi;
+
+/**
+ * Answers one class of call made to a {@link ClientSideConnection} by its {@link Server}, see {@link ClientSideConnection#onCall(Class, CallHandler)}
+ * @param <M> The class of request handled
+ */
+@FunctionalInterface
+public interface CallHandler<M> {
+    /**
+     * Fires when a call with a request of the handled class is received, and returns the answer sent back to the caller. The answer may be a {@link java.util.concurrent.CompletionStage}, in which case it is sent once the stage completes, so a call can be answered without holding up the connection's other events.
+     * @param request The request received
+     * @return The answer, or a {@link java.util.concurrent.CompletionStage} of the answer
+     * @throws Exception If the call failed, which fails the caller's future with a {@link RemoteCallException} describing the exception
+     */
+    Object handle(M request) throws Exception;
+}
@@ -0,0 +1,135 @@
+package netApi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends a stream of data of any length through a connection, started with openStream. What is written is gathered into chunks of a fixed size that are sent as separate messages, so other data sent meanwhile is sent between the chunks instead of waiting for the whole stream, and no more than one chunk is held in memory. Writing waits while the connection is not writable (see {@link ServerSideConnection#isWritable()}), so a stream is sent no faster than the connection can take it. The other side receives the stream through receiveStream. The stream must be closed once everything has been written, or aborted to give up on it.
+ */
+public class ChunkedOutputStream extends OutputStream {
+    /**
+     * The {@link NetEventHandler.DataStream} the stream is sent through
+     */
+    private final NetEventHandler.DataStream stream;
+    /**
+     * Number identifying the stream to the other side of the connection
+     */
+    private final int id;
+    /**
+     * The chunk being gathered
+     */
+    private final byte[] chunk;
+    /**
+     * Number of bytes in {@link #chunk}
+     */
+    private int count;
+    /**
+     * Whether the stream has been closed or aborted
+     */
+    private boolean closed;
+
+    /**
+     * Creates a new ChunkedOutputStream
+     * @param stream The {@link NetEventHandler.DataStream} the stream is sent through
+     * @param id Number identifying the stream to the other side of the connection
+     * @param chunkSize Most bytes sent in one chunk
+     */
+    ChunkedOutputStream(NetEventHandler.DataStream stream, int id, int chunkSize) {
+        this.stream = stream;
+        this.id = id;
+        this.chunk = new byte[chunkSize];
+    }
+
+    /**
+     * Writes a byte to the stream
+     * @param b The byte, in the low eight bits
+     * @throws IOException If the stream or the connection is closed, or any I/O errors occur
+     */
+    @Override
+    public synchronized void write(int b) throws IOException {
+        ensureOpen();
+        if(count == chunk.length){
+            sendChunk();
+        }
+        chunk[count++] = (byte) b;
+    }
+
+    /**
+     * Writes bytes to the stream, sending a chunk whenever one fills up
+     * @param b Array holding the bytes
+     * @param off Index of the first byte to write
+     * @param len Number of bytes to write
+     * @throws IOException If the stream or the connection is closed, or any I/O errors occur
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if(off < 0 || len < 0 || len > b.length - off){
+            throw new IndexOutOfBoundsException();
+        }
+        while(len > 0){
+            if(count == chunk.length){
+                sendChunk();
+            }
+            int n = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Sends what has been written so far as a chunk, without waiting for the chunk to fill up
+     * @throws IOException If the stream or the connection is closed, or any I/O errors occur
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        if(count > 0){
+            sendChunk();
+        }
+    }
+
+    /**
+     * Sends whatever has not been sent yet and ends the stream, firing finished on the other side. Closing a stream that is already closed does nothing.
+     * @throws IOException If the connection is closed, or any I/O errors occur
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed){return;}
+        if(count > 0){
+            sendChunk();
+        }
+        closed = true;
+        stream.endStream(id, false);
+    }
+
+    /**
+     * Gives up on the stream, dropping anything not yet sent and firing failed on the other side. Aborting a stream that is already closed does nothing.
+     * @throws IOException If the connection is closed, or any I/O errors occur
+     */
+    public synchronized void abort() throws IOException {
+        if(closed){return;}
+        closed = true;
+        count = 0;
+        stream.endStream(id, true);
+    }
+
+    /**
+     * Sends {@link #chunk} and empties it
+     * @throws IOException If the connection is closed, or any I/O errors occur
+     */
+    private void sendChunk() throws IOException {
+        stream.sendChunk(id, chunk, count);
+        count = 0;
+    }
+
+    /**
+     * Checks that the stream has not been closed
+     * @throws IOException If the stream has been closed
+     */
+    private void ensureOpen() throws IOException {
+        if(closed){throw new IOException("The stream is closed");}
+    }
+}
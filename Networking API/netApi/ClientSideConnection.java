@@ -4,7 +4,14 @@ import java.io.IOException;
     import java.net.*;
     import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The client-side version of a client.
@@ -23,6 +30,14 @@ public abstract class ClientSideConnection {
      */
     private DatagramChannel udpPort;
     private boolean closed, inServer;
+    /**
+     * Handlers of the message classes registered with {@link #onMessage(Class, MessageHandler)}, indexed by the classes' numbers in the client's {@link MessageRegistry}
+     */
+    private volatile MessageHandler<?>[] messageHandlers = new MessageHandler<?>[0];
+    /**
+     * Handlers of the calls registered with {@link #onCall(Class, CallHandler)}, by the class of their requests
+     */
+    private volatile Map<Class<?>, CallHandler<?>> callHandlers = Map.of();
     /**
      * Creates a new LocalClient
      * @throws IOException If an I/O error occurs
@@ -62,7 +77,7 @@ public abstract class ClientSideConnection {
             throw new ServerTypeMismatchException("Server Type ("+type+") does not match client type ("+getClientType()+")");
         }
         intTemp.clear();
-        intTemp.putInt(0, 1);
+        intTemp.putInt(0, 1 | Compression.supported(getCompression()) << Byte.SIZE | (wantsUnreliable() ? 1 << 2 * Byte.SIZE : 0) | 2 << 2 * Byte.SIZE);
         channel.write(intTemp);
         authenticate(channel);
         channel.configureBlocking(false);
@@ -136,7 +151,6 @@ public abstract class ClientSideConnection {
         inServer = false;
         connection.sendCloseUpdate(null);
         connection.close();
-        channel.close();
         connection = null;
         NetEventHandler.removeLocalClient(this);
         leftServer("The client closed the connection", false);
@@ -153,7 +167,6 @@ public abstract class ClientSideConnection {
         inServer = false;
         connection.sendCloseUpdate(null);
         connection.close();
-        channel.close();
         connection = null;
         NetEventHandler.removeLocalClient(this);
         leftServer(in, forced);
@@ -164,7 +177,99 @@ public abstract class ClientSideConnection {
      */
     public abstract int getClientType();
     /**
-     * Sends the {@link Server} the {@link Object} o, automatically parsing it if it is a primitive or a {@link String}
+     * Returns the {@link Serializer} used for {@link Object}s sent between the client and the {@link Server}, which must match the one returned by the {@link Server}'s {@link Server#getSerializer()}. This is called every time the client joins a {@link Server}. By default this is null, which sends everything with Java serialization; override it to return {@link CompactSerializer#INSTANCE} or another {@link Serializer} to use that instead.
+     * @return The client's {@link Serializer}
+     */
+    public Serializer getSerializer(){
+        return null;
+    }
+    /**
+     * Returns the {@link MessageRegistry} of the message classes sent between the client and the {@link Server}, which must match the one returned by the {@link Server}'s {@link Server#getMessageRegistry()}. This is called every time the client joins a {@link Server} and should always return the same MessageRegistry. By default this is null, meaning no message classes are registered.
+     * @return The client's {@link MessageRegistry}
+     */
+    public MessageRegistry getMessageRegistry(){
+        return null;
+    }
+    /**
+     * Returns the {@link Compression} used for large messages sent to the {@link Server}. Messages are only compressed once the {@link Server} has agreed to it while the client joins, and a client returning {@link Compression#NONE} is never sent compressed messages either. This is called every time the client joins a {@link Server}. By default this is {@link Compression#NONE}.
+     * @return The client's {@link Compression}
+     */
+    public Compression getCompression(){
+        return Compression.NONE;
+    }
+    /**
+     * Returns whether the client asks the {@link Server} for an unreliable channel while joining, through which data is sent as datagrams that may be lost or arrive out of order, but are never held up behind lost data the way messages sent over the connection are (see {@link #sendUnreliable(ByteBuffer)}). The channel is only opened if the {@link Server} allows it, see {@link Server#allowsUnreliable()}. This is called every time the client joins a {@link Server}. By default this is false.
+     * @return Whether the client asks for an unreliable channel
+     */
+    public boolean wantsUnreliable(){
+        return false;
+    }
+    /**
+     * Sets the handler that fires when the {@link Server} sends a message of a class registered in the client's {@link MessageRegistry}, in place of {@link #receiveObject(Object)}. Messages of registered classes that have no handler still fire receiveObject.
+     * @param type The message class
+     * @param handler The handler for the message class, or null to remove it
+     * @param <M> The message class
+     * @throws IllegalArgumentException If the class is not registered in the client's {@link MessageRegistry}
+     */
+    public synchronized <M> void onMessage(Class<M> type, MessageHandler<? super M> handler){
+        MessageRegistry registry = getMessageRegistry();
+        int id = registry == null ? -1 : registry.getId(type);
+        if(id == -1){
+            throw new IllegalArgumentException(type.getName() + " is not registered in the client's MessageRegistry");
+        }
+        MessageHandler<?>[] handlers = Arrays.copyOf(messageHandlers, Math.max(messageHandlers.length, id + 1));
+        handlers[id] = handler;
+        messageHandlers = handlers;
+    }
+    /**
+     * Returns the handler of a registered message class. The handler is only ever given messages of the class it was set for, which is what makes treating it as a handler of any message safe.
+     * @param id The message class's number in the client's {@link MessageRegistry}
+     * @return The handler, or null if the class has none
+     */
+    @SuppressWarnings("unchecked")
+    MessageHandler<Object> getMessageHandler(int id){
+        MessageHandler<?>[] handlers = messageHandlers;
+        return id < handlers.length ? (MessageHandler<Object>) handlers[id] : null;
+    }
+    /**
+     * Sets the handler that answers calls the {@link Server} makes with {@link ServerSideConnection#call(Object)} whose requests are of a class. Calls whose requests have no handler fail with a {@link RemoteCallException}.
+     * @param type The class of request, which must match the request's class exactly
+     * @param handler The handler for the class of request, or null to remove it
+     * @param <M> The class of request
+     */
+    public synchronized <M> void onCall(Class<M> type, CallHandler<? super M> handler){
+        Map<Class<?>, CallHandler<?>> handlers = new HashMap<>(callHandlers);
+        if(handler == null){
+            handlers.remove(type);
+        }
+        else{
+            handlers.put(type, handler);
+        }
+        callHandlers = handlers;
+    }
+    /**
+     * Returns the handler of a class of request. The handler is only ever given requests of the class it was set for, which is what makes treating it as a handler of any request safe.
+     * @param type The class of request
+     * @return The handler, or null if the class has none
+     */
+    @SuppressWarnings("unchecked")
+    CallHandler<Object> getCallHandler(Class<?> type){
+        return (CallHandler<Object>) callHandlers.get(type);
+    }
+    /**
+     * Returns whether data can be sent to the {@link Server} without building up more than {@link NetEventHandler#WRITE_HIGH_WATER_MARK} bytes that the connection has not been able to send yet. Data sent while this is false is still delivered, but senders of large amounts of data should wait for {@link #writabilityChanged(boolean)} before sending more.
+     * @return Whether the connection is writable
+     */
+    public boolean isWritable(){
+        return inServer() && connection.isWritable();
+    }
+    /**
+     * Fires when the connection stops being writable because too much data is waiting to be sent, and again once enough of it has been sent (see {@link #isWritable()}). This does nothing unless overridden.
+     * @param writable Whether the connection is now writable
+     */
+    public void writabilityChanged(boolean writable){}
+    /**
+     * Sends the {@link Server} the {@link Object} o, automatically parsing it if it is a primitive, a {@link String} or an array of bytes, ints, longs, floats or doubles
      * @param o Data to send to the {@link Server}
      * @throws IOException If any I/O errors occur
      */
@@ -181,10 +286,301 @@ public abstract class ClientSideConnection {
                 case Float v -> connection.sendFloat((float) o);
                 case Boolean b -> connection.sendBool((boolean) o);
                 case String s -> connection.sendString(s);
+                case byte[] a -> connection.sendBytes(a);
+                case int[] a -> connection.sendInts(a);
+                case long[] a -> connection.sendLongs(a);
+                case float[] a -> connection.sendFloats(a);
+                case double[] a -> connection.sendDoubles(a);
                 case null, default -> connection.sendObject(o);
             }
         }
     }
+    /**
+     * Sends the {@link Server} the {@link Integer} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendInt(int in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendInt(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} the {@link Character} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendChar(char in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendChar(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} the {@link Long} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendLong(long in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendLong(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} the {@link Double} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendDouble(double in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendDouble(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} the {@link Byte} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendByte(byte in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendByte(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} the {@link Short} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendShort(short in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendShort(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} the {@link Float} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendFloat(float in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendFloat(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} the {@link Boolean} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendBool(boolean in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendBool(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} the {@link String} in, without the type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendString(String in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendString(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} a byte array as a single message, copying it into the connection's send buffer in bulk
+     * @param in Array to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendBytes(byte[] in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendBytes(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} a int array as a single message, copying it into the connection's send buffer in bulk
+     * @param in Array to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendInts(int[] in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendInts(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} a long array as a single message, copying it into the connection's send buffer in bulk
+     * @param in Array to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendLongs(long[] in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendLongs(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} a float array as a single message, copying it into the connection's send buffer in bulk
+     * @param in Array to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendFloats(float[] in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendFloats(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} a double array as a single message, copying it into the connection's send buffer in bulk
+     * @param in Array to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendDoubles(double[] in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendDoubles(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} the remaining bytes of a {@link ByteBuffer} as a single message, without changing the {@link ByteBuffer}'s position. The {@link Server} receives it through receiveBuffer.
+     * @param in {@link ByteBuffer} to send to the {@link Server}
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendBuffer(ByteBuffer in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendBuffer(in);
+        }
+    }
+    /**
+     * Sends the {@link Server} the remaining bytes of a {@link ByteBuffer} as a single datagram through the client's unreliable channel, without changing the {@link ByteBuffer}'s position. Datagrams are not held up behind other data, but may be lost, and one arriving after a later one has been received is dropped. The {@link Server} receives it through receiveUnreliable. Nothing is sent until the channel is open, see {@link #hasUnreliableChannel()}.
+     * @param in {@link ByteBuffer} to send to the {@link Server}, no larger than {@link NetEventHandler#MAX_DATAGRAM_SIZE}
+     * @return Whether the datagram was sent, which does not mean it will arrive
+     * @throws IOException If the data is too large, or any I/O errors occur
+     */
+    public boolean sendUnreliable(ByteBuffer in) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        NetEventHandler.DataStream c = connection;
+        return c != null && c.sendUnreliable(in);
+    }
+    /**
+     * Sends the {@link Server} a byte array as a single datagram through the client's unreliable channel, see {@link #sendUnreliable(ByteBuffer)}
+     * @param in Array to send to the {@link Server}, no larger than {@link NetEventHandler#MAX_DATAGRAM_SIZE}
+     * @return Whether the datagram was sent, which does not mean it will arrive
+     * @throws IOException If the data is too large, or any I/O errors occur
+     */
+    public boolean sendUnreliable(byte[] in) throws IOException {
+        return sendUnreliable(ByteBuffer.wrap(in));
+    }
+    /**
+     * Returns whether datagrams can be sent to the {@link Server} through the client's unreliable channel, which is once the {@link Server} has opened one for the client after it joined
+     * @return Whether the client's unreliable channel is open
+     */
+    public boolean hasUnreliableChannel(){
+        NetEventHandler.DataStream c = connection;
+        return c != null && c.hasUnreliable();
+    }
+    /**
+     * Returns how the client's messages are sent and received, which is the {@link Server}'s {@link Transport} once the {@link Server} has moved the client onto it
+     * @return The client's {@link Transport}
+     */
+    public Transport getTransport(){
+        NetEventHandler.DataStream c = connection;
+        return c != null && c.lane != null ? Transport.UDP : Transport.TCP;
+    }
+    /**
+     * Sends the {@link Server} a file. The file is copied to the connection in chunks by the operating system, without being read into memory, and other data sent while the file is being sent is sent between its chunks. Chunks are only queued while the connection is writable (see {@link #isWritable()}), so a large file does not crowd out other data. The {@link Server} receives the file through receiveFile. The file is closed once it has been sent.
+     * @param file Path of the file to send
+     * @throws IOException If the file could not be opened, or any I/O errors occur
+     */
+    public void sendFile(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            sendFile(channel, 0, channel.size(), file.getFileName().toString(), true);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    /**
+     * Sends the {@link Server} part of a file, see {@link #sendFile(Path)}. The file is left open, and should not be closed until it has been sent. The {@link Server} receives it with an empty name.
+     * @param file The file to send
+     * @param position Position in the file to start sending from
+     * @param length Number of bytes to send
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendFile(FileChannel file, long position, long length) throws IOException {
+        sendFile(file, position, length, "", false);
+    }
+    /**
+     * Sends the {@link Server} part of a file
+     * @param file The file to send
+     * @param position Position in the file to start sending from
+     * @param length Number of bytes to send
+     * @param name Name of the file given to the {@link Server}
+     * @param close Whether to close the file once it has been sent
+     * @throws IOException If any I/O errors occur
+     */
+    private void sendFile(FileChannel file, long position, long length, String name, boolean close) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(connection.isOpen()) {
+            connection.sendFile(file, position, length, name, close);
+        }
+        else if(close){
+            file.close();
+        }
+    }
+    /**
+     * Starts sending the {@link Server} a stream of data of any length, such as a large {@link Object} written through an {@link java.io.ObjectOutputStream} wrapped around the returned stream. The data is sent in chunks as it is written, with other data sent meanwhile sent between the chunks, and writing waits while the connection is not writable (see {@link #isWritable()}), so the stream never needs more memory than one chunk. This waiting is skipped when writing from an event fired without {@link NetEventHandler#CALLBACK_EXECUTOR}, as the connection cannot be written to until the event returns. The {@link Server} receives the stream through receiveStream.
+     * @param name Name of the stream given to the {@link Server}
+     * @return A {@link ChunkedOutputStream} to write the stream to, which must be closed once everything has been written
+     * @throws IOException If the connection is closed, or any I/O errors occur
+     */
+    public ChunkedOutputStream openStream(String name) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        return connection.openStream(name);
+    }
+    /**
+     * Calls the {@link Server}: sends it a request that the handler it registered with {@link Server#onCall(Class, ServerCallHandler)} for the request's class answers, without waiting for the answer. Any number of calls can wait for their answers at once, which may arrive in any order. The call fails if it is not answered within {@link NetEventHandler#CALL_TIMEOUT} milliseconds.
+     * @param request The request, sent like {@link #send(Object)} sends {@link Object}s
+     * @return A future completed with the answer, or failed with a {@link RemoteCallException} if the call failed on the {@link Server}, a {@link java.util.concurrent.TimeoutException} if it timed out, or an {@link IOException} if the connection closed first. It is completed like events fire, on the connection's event loop or through {@link NetEventHandler#CALLBACK_EXECUTOR}, so it should not be waited on from an event.
+     * @param <R> The class of the answer
+     * @throws IOException If the client is not connected, or the request could not be sent
+     */
+    public <R> CompletableFuture<R> call(Object request) throws IOException {
+        return call(request, NetEventHandler.CALL_TIMEOUT);
+    }
+    /**
+     * Calls the {@link Server} like {@link #call(Object)}, with its own timeout
+     * @param request The request
+     * @param timeout Longest time (in milliseconds) to wait for the answer, or zero or less to wait until the connection closes
+     * @return A future completed with the answer
+     * @param <R> The class of the answer
+     * @throws IOException If the client is not connected, or the request could not be sent
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> call(Object request, long timeout) throws IOException {
+        if(closed){throw new ClientClosedException();}
+        if(!inServer()){throw new IOException("The client is not connected to a Server");}
+        return (CompletableFuture<R>) connection.call(request, timeout);
+    }
+    /**
+     * Sends anything given to {@link #send(Object)} that is still waiting in the connection's send buffer to the {@link Server} right away. Sent data is gathered so that a burst of sends leaves in a single write, and is sent automatically once the connection's event loop finishes its current round of work, so this is only needed when data has to leave before then.
+     * @throws IOException If any I/O errors occur
+     */
+    public void flush() throws IOException {
+        if(inServer()) {
+            connection.flush();
+        }
+    }
     /**
      * Fires when the client receives data in the form of an {@link Integer}, this is where you should handle incoming data
      * @param in The {@link Integer} received by the client
@@ -235,6 +631,80 @@ public abstract class ClientSideConnection {
      * @param in The {@link Object} received by the client
      */
     public abstract void receiveObject(Object in);
+    /**
+     * Fires when the client receives data in the form of a byte array. By default this fires {@link #receiveObject(Object)} with the array, override it to handle arrays separately.
+     * @param in The byte array received by the client
+     */
+    public void receiveBytes(byte[] in){
+        receiveObject(in);
+    }
+    /**
+     * Fires when the client receives data in the form of a int array. By default this fires {@link #receiveObject(Object)} with the array, override it to handle arrays separately.
+     * @param in The int array received by the client
+     */
+    public void receiveInts(int[] in){
+        receiveObject(in);
+    }
+    /**
+     * Fires when the client receives data in the form of a long array. By default this fires {@link #receiveObject(Object)} with the array, override it to handle arrays separately.
+     * @param in The long array received by the client
+     */
+    public void receiveLongs(long[] in){
+        receiveObject(in);
+    }
+    /**
+     * Fires when the client receives data in the form of a float array. By default this fires {@link #receiveObject(Object)} with the array, override it to handle arrays separately.
+     * @param in The float array received by the client
+     */
+    public void receiveFloats(float[] in){
+        receiveObject(in);
+    }
+    /**
+     * Fires when the client receives data in the form of a double array. By default this fires {@link #receiveObject(Object)} with the array, override it to handle arrays separately.
+     * @param in The double array received by the client
+     */
+    public void receiveDoubles(double[] in){
+        receiveObject(in);
+    }
+    /**
+     * Fires when the client receives data sent as a {@link ByteBuffer}. The {@link ByteBuffer} is read-only and, unless {@link NetEventHandler#CALLBACK_EXECUTOR} is set, is a view of the connection's receive buffer that is only valid until this returns, so it can be read without being copied. By default this copies the data and fires {@link #receiveBytes(byte[])}.
+     * @param in The data received by the client
+     */
+    public void receiveBuffer(ByteBuffer in){
+        byte[] data = new byte[in.remaining()];
+        in.get(data);
+        receiveBytes(data);
+    }
+    /**
+     * Fires when the client receives a datagram sent through its unreliable channel with sendUnreliable. The {@link ByteBuffer} is read-only and holds a copy of the datagram, so it can be kept. This does nothing unless overridden.
+     * @param in The data received by the client
+     */
+    public void receiveUnreliable(ByteBuffer in){}
+    /**
+     * Fires when the client starts receiving a file sent with sendFile. The returned {@link FileReceiver} receives the file's chunks as they arrive, for example {@link FileReceiver#to(Path)} to save the file. By default this returns null, which ignores the file.
+     * @param name Name of the file, which is empty if it was sent from a {@link FileChannel}. This comes from the other side of the connection and should not be trusted as a path.
+     * @param length Size of the file in bytes
+     * @return Where the file's chunks go, or null to ignore the file
+     */
+    public FileReceiver receiveFile(String name, long length){
+        return null;
+    }
+    /**
+     * Fires when the client starts receiving a stream sent with openStream. The returned {@link FileReceiver} receives the stream's chunks as they arrive, and its finished event fires once the sender closes the stream. By default this returns null, which ignores the stream.
+     * @param name Name of the stream. This comes from the other side of the connection and should not be trusted.
+     * @return Where the stream's chunks go, or null to ignore the stream
+     */
+    public FileReceiver receiveStream(String name){
+        return null;
+    }
+    /**
+     * Fires when the client receives a new version of the {@link Server}'s shared state, published with {@link Server#syncState(Object)}. Versions may be skipped when the client falls behind. By default this fires {@link #receiveObject(Object)} with the state, override it to handle the state separately.
+     * @param state The state
+     * @param version The number of the version
+     */
+    public void receiveState(Object state, long version){
+        receiveObject(state);
+    }
     /**
      * Fires when client leaves or is kicked from a server, this is where you should handle when the client leaves a server
      * @param in The reason that the client is no longer connected, null if none was provided
@@ -254,9 +724,9 @@ public abstract class ClientSideConnection {
      */
     public void close() throws IOException {
         if(closed){throw new ClientClosedException();}
+        leaveServer();
         closed = true;
         NetEventHandler.removeServerDataReceiver(this);
-        leaveServer();
         udpPort.close();
     }
 
@@ -0,0 +1,543 @@
+package netApi;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link Serializer} that writes records and simple classes as their fields one after the other, with none of the class descriptions Java serialization sends. The fields of each class are read and written through {@link MethodHandle}s looked up once per class, so no reflection happens per {@link Object}.
+ * <p>
+ * Records are supported when every component is supported. Other classes are supported when they implement {@link Serializable} without customizing it (no writeObject, readObject, writeReplace or readResolve methods and not {@link Externalizable}), extend {@link Object} directly, have a constructor without parameters and every non transient field is supported.
+ * Supported fields are primitives and their wrappers, {@link String}s, enums, arrays of primitives, arrays of {@link String}s, and records or final classes that are supported themselves. Classes that can hold an {@link Object} of their own class, directly or through their fields, are not supported, so nothing written can reference itself. Shared {@link Object}s are written once for every reference to them, so the other side receives a separate copy for each reference. This is why a {@link Server} and its clients only use the CompactSerializer once they opt in to it through {@link Server#getSerializer()} and {@link ClientSideConnection#getSerializer()}.
+ * Anything else is sent with Java serialization.
+ */
+public class CompactSerializer implements Serializer {
+    /**
+     * CompactSerializer for a {@link Server} and its clients to return from {@link Server#getSerializer()} and {@link ClientSideConnection#getSerializer()}
+     */
+    public static final CompactSerializer INSTANCE = new CompactSerializer();
+    /**
+     * Kinds of fields a class can have
+     */
+    private static final int BOOLEAN = 0, BYTE = 1, SHORT = 2, CHAR = 3, INT = 4, LONG = 5, FLOAT = 6, DOUBLE = 7, BOXED = 8, STRING = 9, ENUM = 10, ARRAY = 11, STRINGS = 12, NESTED = 13;
+    /**
+     * Primitive types in the order of their kinds
+     */
+    private static final List<Class<?>> PRIMITIVES = List.of(boolean.class, byte.class, short.class, char.class, int.class, long.class, float.class, double.class);
+    /**
+     * Wrapper types in the order of the kinds of the primitives they wrap
+     */
+    private static final List<Class<?>> WRAPPERS = List.of(Boolean.class, Byte.class, Short.class, Character.class, Integer.class, Long.class, Float.class, Double.class);
+    /**
+     * Codec of every class that has been sent or checked, or {@link Codec#UNSUPPORTED} if the class is not supported
+     */
+    private static final ClassValue<Codec> CODECS = new ClassValue<>() {
+        @Override
+        protected Codec computeValue(Class<?> type) {
+            try {
+                return supported(type, new HashSet<>()) ? new Codec(type) : Codec.UNSUPPORTED;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return Codec.UNSUPPORTED;
+            }
+        }
+    };
+    /**
+     * Codecs of the classes that have been received, by name
+     */
+    private static final Map<String, Codec> RECEIVED = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean canSerialize(Class<?> type) {
+        return CODECS.get(type) != Codec.UNSUPPORTED;
+    }
+
+    @Override
+    public void serialize(Object o, DataOutput out) throws IOException {
+        Codec codec = CODECS.get(o.getClass());
+        if(codec == Codec.UNSUPPORTED){
+            throw new NotSerializableException(o.getClass().getName());
+        }
+        out.writeUTF(o.getClass().getName());
+        codec.write(o, out);
+    }
+
+    @Override
+    public Object deserialize(DataInput in) throws IOException, ClassNotFoundException {
+        String name = in.readUTF();
+        Codec codec = RECEIVED.get(name);
+        if(codec == null){
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            codec = CODECS.get(Class.forName(name, false, loader == null ? CompactSerializer.class.getClassLoader() : loader));
+            if(codec == Codec.UNSUPPORTED){
+                throw new InvalidClassException(name, "Class is not supported by the CompactSerializer");
+            }
+            RECEIVED.put(name, codec);
+        }
+        return codec.read(in);
+    }
+
+    /**
+     * Returns the codec that writes the fields of a class without the class's name, for when the other side already knows what class to expect
+     * @param type The class
+     * @return The class's codec, or null if the class is not supported
+     */
+    static Codec codec(Class<?> type) {
+        Codec codec = CODECS.get(type);
+        return codec == Codec.UNSUPPORTED ? null : codec;
+    }
+
+    /**
+     * Checks whether a class can be written by the CompactSerializer
+     * @param type The class to check
+     * @param checking Classes being checked further up, which are not supported again below themselves as an {@link Object} of one could then hold itself
+     * @return Whether the class is supported
+     */
+    private static boolean supported(Class<?> type, Set<Class<?>> checking) {
+        if(!checking.add(type)){return false;}
+        try {
+            return supportedClass(type, checking);
+        } finally {
+            checking.remove(type);
+        }
+    }
+
+    /**
+     * Checks whether a class and its fields can be written by the CompactSerializer, see {@link #supported(Class, Set)}
+     * @param type The class to check
+     * @param checking Classes being checked, including this one
+     * @return Whether the class is supported
+     */
+    private static boolean supportedClass(Class<?> type, Set<Class<?>> checking) {
+        if(type.isRecord()){
+            for(RecordComponent c : type.getRecordComponents()){
+                if(!supportedField(c.getType(), checking)){return false;}
+            }
+            return true;
+        }
+        if(type.isInterface() || type.isArray() || type.isEnum() || type.isPrimitive() || Modifier.isAbstract(type.getModifiers())
+                || type.getSuperclass() != Object.class || type.getName().startsWith("java.")
+                || !Serializable.class.isAssignableFrom(type) || Externalizable.class.isAssignableFrom(type)){
+            return false;
+        }
+        for(Method m : type.getDeclaredMethods()){
+            switch (m.getName()) {
+                case "writeObject", "readObject", "readObjectNoData", "writeReplace", "readResolve" -> {return false;}
+            }
+        }
+        try {
+            type.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+        for(Field f : fields(type)){
+            if(!supportedField(f.getType(), checking)){return false;}
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a field of a type can be written by the CompactSerializer
+     * @param type The type of the field
+     * @param checking Classes already being checked, see {@link #supported(Class, Set)}
+     * @return Whether the field is supported
+     */
+    private static boolean supportedField(Class<?> type, Set<Class<?>> checking) {
+        if(type.isPrimitive() || WRAPPERS.contains(type) || type == String.class || type.isEnum() || type == String[].class){return true;}
+        if(type.isArray()){return type.getComponentType().isPrimitive();}
+        return (type.isRecord() || Modifier.isFinal(type.getModifiers())) && supported(type, checking);
+    }
+
+    /**
+     * Returns the fields of a class that are written, in the order they are written
+     * @param type The class
+     * @return The class's non static, non transient fields
+     */
+    private static List<Field> fields(Class<?> type) {
+        List<Field> out = new ArrayList<>();
+        for(Field f : type.getDeclaredFields()){
+            if((f.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0){
+                out.add(f);
+            }
+        }
+        out.sort(Comparator.comparing(Field::getName));
+        return out;
+    }
+
+    /**
+     * Reads and writes the {@link Object}s of one class
+     */
+    static final class Codec {
+        /**
+         * Placeholder for classes that are not supported
+         */
+        static final Codec UNSUPPORTED = new Codec();
+        /**
+         * Whether the class is a record
+         */
+        private final boolean record;
+        /**
+         * Kind of each field
+         */
+        private final int[] kinds;
+        /**
+         * Type of each field
+         */
+        private final Class<?>[] types;
+        /**
+         * Getter of each field, taking the {@link Object} as an {@link Object} and returning the field's type for primitives and {@link Object} otherwise
+         */
+        private final MethodHandle[] getters;
+        /**
+         * Setter of each field (null for records), taking the {@link Object} as an {@link Object} and the value as the field's type for primitives and {@link Object} otherwise
+         */
+        private final MethodHandle[] setters;
+        /**
+         * Creates the {@link Object}, taking nothing for classes and every component in an {@link Object} array for records
+         */
+        private final MethodHandle constructor;
+
+        /**
+         * Creates {@link #UNSUPPORTED}
+         */
+        private Codec() {
+            record = false;
+            kinds = null;
+            types = null;
+            getters = null;
+            setters = null;
+            constructor = null;
+        }
+
+        /**
+         * Looks up the handles used to read and write the {@link Object}s of a class
+         * @param type The class, which must be supported
+         * @throws ReflectiveOperationException If the handles could not be looked up
+         */
+        Codec(Class<?> type) throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            record = type.isRecord();
+            if(record){
+                RecordComponent[] components = type.getRecordComponents();
+                int count = components.length;
+                kinds = new int[count];
+                types = new Class<?>[count];
+                getters = new MethodHandle[count];
+                setters = null;
+                Class<?>[] parameters = new Class<?>[count];
+                for(int i = 0; i < count; i++){
+                    types[i] = parameters[i] = components[i].getType();
+                    kinds[i] = kind(types[i]);
+                    Method accessor = components[i].getAccessor();
+                    accessor.setAccessible(true);
+                    getters[i] = lookup.unreflect(accessor).asType(MethodType.methodType(erase(types[i]), Object.class));
+                }
+                Constructor<?> canonical = type.getDeclaredConstructor(parameters);
+                canonical.setAccessible(true);
+                constructor = lookup.unreflectConstructor(canonical).asSpreader(Object[].class, count).asType(MethodType.methodType(Object.class, Object[].class));
+            }
+            else{
+                List<Field> fields = fields(type);
+                int count = fields.size();
+                kinds = new int[count];
+                types = new Class<?>[count];
+                getters = new MethodHandle[count];
+                setters = new MethodHandle[count];
+                for(int i = 0; i < count; i++){
+                    Field f = fields.get(i);
+                    f.setAccessible(true);
+                    types[i] = f.getType();
+                    kinds[i] = kind(types[i]);
+                    getters[i] = lookup.unreflectGetter(f).asType(MethodType.methodType(erase(types[i]), Object.class));
+                    setters[i] = lookup.unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, erase(types[i])));
+                }
+                Constructor<?> empty = type.getDeclaredConstructor();
+                empty.setAccessible(true);
+                constructor = lookup.unreflectConstructor(empty).asType(MethodType.methodType(Object.class));
+            }
+        }
+
+        /**
+         * Returns the kind of a field
+         * @param type The type of the field
+         * @return The field's kind
+         */
+        private static int kind(Class<?> type) {
+            if(type.isPrimitive()){return PRIMITIVES.indexOf(type);}
+            if(WRAPPERS.contains(type)){return BOXED;}
+            if(type == String.class){return STRING;}
+            if(type.isEnum()){return ENUM;}
+            if(type == String[].class){return STRINGS;}
+            if(type.isArray()){return ARRAY;}
+            return NESTED;
+        }
+
+        /**
+         * Returns the type a field is passed around as by the handles
+         * @param type The type of the field
+         * @return The type itself for primitives, otherwise {@link Object}
+         */
+        private static Class<?> erase(Class<?> type) {
+            return type.isPrimitive() ? type : Object.class;
+        }
+
+        /**
+         * Writes every field of an {@link Object}
+         * @param o The {@link Object}
+         * @param out Where to write the fields
+         * @throws IOException If the fields could not be written
+         */
+        void write(Object o, DataOutput out) throws IOException {
+            try {
+                for(int i = 0; i < kinds.length; i++){
+                    MethodHandle get = getters[i];
+                    switch (kinds[i]) {
+                        case BOOLEAN -> out.writeBoolean((boolean) get.invokeExact(o));
+                        case BYTE -> out.writeByte((byte) get.invokeExact(o));
+                        case SHORT -> out.writeShort((short) get.invokeExact(o));
+                        case CHAR -> out.writeChar((char) get.invokeExact(o));
+                        case INT -> out.writeInt((int) get.invokeExact(o));
+                        case LONG -> out.writeLong((long) get.invokeExact(o));
+                        case FLOAT -> out.writeFloat((float) get.invokeExact(o));
+                        case DOUBLE -> out.writeDouble((double) get.invokeExact(o));
+                        default -> writeValue(kinds[i], types[i], (Object) get.invokeExact(o), out);
+                    }
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Reads every field of an {@link Object} and creates it
+         * @param in Where to read the fields from
+         * @return The {@link Object}
+         * @throws IOException If the fields could not be read, or the {@link Object} could not be created
+         */
+        Object read(DataInput in) throws IOException {
+            try {
+                if(record){
+                    Object[] values = new Object[kinds.length];
+                    for(int i = 0; i < kinds.length; i++){
+                        values[i] = switch (kinds[i]) {
+                            case BOOLEAN, BYTE, SHORT, CHAR, INT, LONG, FLOAT, DOUBLE -> readPrimitive(kinds[i], in);
+                            default -> readValue(kinds[i], types[i], in);
+                        };
+                    }
+                    return (Object) constructor.invokeExact(values);
+                }
+                Object o = (Object) constructor.invokeExact();
+                for(int i = 0; i < kinds.length; i++){
+                    MethodHandle set = setters[i];
+                    switch (kinds[i]) {
+                        case BOOLEAN -> set.invokeExact(o, in.readBoolean());
+                        case BYTE -> set.invokeExact(o, in.readByte());
+                        case SHORT -> set.invokeExact(o, in.readShort());
+                        case CHAR -> set.invokeExact(o, in.readChar());
+                        case INT -> set.invokeExact(o, in.readInt());
+                        case LONG -> set.invokeExact(o, in.readLong());
+                        case FLOAT -> set.invokeExact(o, in.readFloat());
+                        case DOUBLE -> set.invokeExact(o, in.readDouble());
+                        default -> set.invokeExact(o, readValue(kinds[i], types[i], in));
+                    }
+                }
+                return o;
+            } catch (IOException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Reads a primitive as its wrapper
+         * @param kind Kind of the primitive
+         * @param in Where to read the primitive from
+         * @return The primitive's wrapper
+         * @throws IOException If the primitive could not be read
+         */
+        private static Object readPrimitive(int kind, DataInput in) throws IOException {
+            return switch (kind) {
+                case BOOLEAN -> in.readBoolean();
+                case BYTE -> in.readByte();
+                case SHORT -> in.readShort();
+                case CHAR -> in.readChar();
+                case INT -> in.readInt();
+                case LONG -> in.readLong();
+                case FLOAT -> in.readFloat();
+                default -> in.readDouble();
+            };
+        }
+
+        /**
+         * Writes a field that is not a primitive
+         * @param kind Kind of the field
+         * @param type Type of the field
+         * @param value Value of the field, which may be null
+         * @param out Where to write the field
+         * @throws IOException If the field could not be written
+         */
+        private static void writeValue(int kind, Class<?> type, Object value, DataOutput out) throws IOException {
+            switch (kind) {
+                case BOXED -> {
+                    out.writeBoolean(value != null);
+                    if(value == null){return;}
+                    switch (value) {
+                        case Boolean v -> out.writeBoolean(v);
+                        case Byte v -> out.writeByte(v);
+                        case Short v -> out.writeShort(v);
+                        case Character v -> out.writeChar(v);
+                        case Integer v -> out.writeInt(v);
+                        case Long v -> out.writeLong(v);
+                        case Float v -> out.writeFloat(v);
+                        default -> out.writeDouble((Double) value);
+                    }
+                }
+                case STRING -> writeString((String) value, out);
+                case ENUM -> out.writeInt(value == null ? -1 : ((Enum<?>) value).ordinal());
+                case STRINGS -> {
+                    String[] array = (String[]) value;
+                    out.writeInt(array == null ? -1 : array.length);
+                    if(array == null){return;}
+                    for(String s : array){
+                        writeString(s, out);
+                    }
+                }
+                case ARRAY -> {
+                    out.writeInt(value == null ? -1 : Array.getLength(value));
+                    switch (value) {
+                        case null -> {}
+                        case boolean[] a -> {for(boolean v : a){out.writeBoolean(v);}}
+                        case byte[] a -> out.write(a);
+                        case short[] a -> {for(short v : a){out.writeShort(v);}}
+                        case char[] a -> {for(char v : a){out.writeChar(v);}}
+                        case int[] a -> {for(int v : a){out.writeInt(v);}}
+                        case long[] a -> {for(long v : a){out.writeLong(v);}}
+                        case float[] a -> {for(float v : a){out.writeFloat(v);}}
+                        default -> {for(double v : (double[]) value){out.writeDouble(v);}}
+                    }
+                }
+                default -> {
+                    out.writeBoolean(value != null);
+                    if(value != null){
+                        CODECS.get(type).write(value, out);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads a field that is not a primitive
+         * @param kind Kind of the field
+         * @param type Type of the field
+         * @param in Where to read the field from
+         * @return Value of the field, which may be null
+         * @throws IOException If the field could not be read
+         */
+        private static Object readValue(int kind, Class<?> type, DataInput in) throws IOException {
+            switch (kind) {
+                case BOXED -> {
+                    return in.readBoolean() ? readPrimitive(WRAPPERS.indexOf(type), in) : null;
+                }
+                case STRING -> {
+                    return readString(in);
+                }
+                case ENUM -> {
+                    int ordinal = in.readInt();
+                    if(ordinal == -1){return null;}
+                    Object[] constants = type.getEnumConstants();
+                    if(ordinal < 0 || ordinal >= constants.length){
+                        throw new StreamCorruptedException("Unknown constant of " + type.getName());
+                    }
+                    return constants[ordinal];
+                }
+                case STRINGS -> {
+                    int length = readLength(in);
+                    if(length == -1){return null;}
+                    String[] array = new String[length];
+                    for(int i = 0; i < length; i++){
+                        array[i] = readString(in);
+                    }
+                    return array;
+                }
+                case ARRAY -> {
+                    int length = readLength(in);
+                    if(length == -1){return null;}
+                    Class<?> component = type.getComponentType();
+                    if(component == byte.class){
+                        byte[] a = new byte[length];
+                        in.readFully(a);
+                        return a;
+                    }
+                    Object array = Array.newInstance(component, length);
+                    switch (array) {
+                        case boolean[] a -> {for(int i = 0; i < length; i++){a[i] = in.readBoolean();}}
+                        case short[] a -> {for(int i = 0; i < length; i++){a[i] = in.readShort();}}
+                        case char[] a -> {for(int i = 0; i < length; i++){a[i] = in.readChar();}}
+                        case int[] a -> {for(int i = 0; i < length; i++){a[i] = in.readInt();}}
+                        case long[] a -> {for(int i = 0; i < length; i++){a[i] = in.readLong();}}
+                        case float[] a -> {for(int i = 0; i < length; i++){a[i] = in.readFloat();}}
+                        default -> {
+                            double[] a = (double[]) array;
+                            for(int i = 0; i < length; i++){a[i] = in.readDouble();}
+                        }
+                    }
+                    return array;
+                }
+                default -> {
+                    return in.readBoolean() ? CODECS.get(type).read(in) : null;
+                }
+            }
+        }
+
+        /**
+         * Reads the length of an array or {@link String}
+         * @param in Where to read the length from
+         * @return The length, or -1 for null
+         * @throws IOException If the length could not be read, or is longer than any message can be
+         */
+        private static int readLength(DataInput in) throws IOException {
+            int length = in.readInt();
+            if(length < -1 || length > NetEventHandler.MAX_MESSAGE_SIZE){
+                throw new StreamCorruptedException("Invalid length " + length);
+            }
+            return length;
+        }
+
+        /**
+         * Writes a {@link String} as its length in bytes followed by its UTF-8 encoding
+         * @param s The {@link String}, which may be null
+         * @param out Where to write the {@link String}
+         * @throws IOException If the {@link String} could not be written
+         */
+        private static void writeString(String s, DataOutput out) throws IOException {
+            if(s == null){
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Reads a {@link String} written by {@link #writeString(String, DataOutput)}
+         * @param in Where to read the {@link String} from
+         * @return The {@link String}, which may be null
+         * @throws IOException If the {@link String} could not be read
+         */
+        private static String readString(DataInput in) throws IOException {
+            int length = readLength(in);
+            if(length == -1){return null;}
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package netApi;
+
+/**
+ * Ways large messages can be compressed before they are sent. Each side of a connection chooses one by overriding {@link Server#getCompression()} or {@link ClientSideConnection#getCompression()}, and the sides agree on it while connecting: a side only compresses what it sends if the other side has not chosen NONE. Only messages of at least {@link NetEventHandler#COMPRESSION_THRESHOLD} bytes that shrink when compressed are sent compressed, which covers {@link Object}s, {@link String}s, byte arrays and {@link java.nio.ByteBuffer}s.
+ */
+public enum Compression {
+    /**
+     * Nothing is compressed, in either direction
+     */
+    NONE,
+    /**
+     * Messages are compressed with {@link java.util.zip.Deflater}, which shrinks them the most but takes the longest
+     */
+    DEFLATE,
+    /**
+     * Messages are compressed by finding repeated runs of bytes only, which is several times faster than DEFLATE but shrinks them less
+     */
+    LZ;
+
+    /**
+     * Returns the bit standing for this Compression in the set of Compressions a side supports, which is sent while connecting
+     * @return The Compression's bit, or 0 for NONE
+     * @hidden
+     */
+    int bit() {
+        return this == NONE ? 0 : 1 << ordinal() - 1;
+    }
+
+    /**
+     * Returns the set of Compressions a side supports, in the form sent while connecting
+     * @param chosen The Compression the side has chosen
+     * @return The bits of every Compression, or 0 if the side has chosen NONE
+     * @hidden
+     */
+    static int supported(Compression chosen) {
+        return chosen == null || chosen == NONE ? 0 : DEFLATE.bit() | LZ.bit();
+    }
+}
@@ -0,0 +1,1267 @@
+package netApi;
+
+import netApi.NetEventHandler.DataStream;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the threads that connections are spread across. Each loop owns the connections registered to it outright, reading their data and firing their events without sharing any state with the other loops.
+ * @hidden
+ */
+class EventLoop implements Runnable {
+    /**
+     * Thread the loop runs on
+     */
+    private final Thread thread;
+    /**
+     * {@link Selector} that all of this loop's connections are registered with
+     */
+    private final Selector selector;
+    /**
+     * Work handed to the loop from other threads, run on the loop's thread before it next waits for network activity
+     */
+    private final Queue<Runnable> tasks;
+    /**
+     * {@link DataStream}s whose send buffers should be sent before the loop next waits for network activity
+     */
+    private final Queue<DataStream> flushes;
+    /**
+     * Number of connections currently owned by the loop
+     */
+    private final AtomicInteger load;
+    /**
+     * Handshakes of newly accepted clients that are still in progress, oldest first
+     */
+    private final ArrayDeque<Handshake> handshakes;
+    /**
+     * Work scheduled to run on the loop's thread after a delay, soonest first, see {@link #schedule(long, Runnable)}. This is only used by the loop's thread.
+     */
+    private final PriorityQueue<Timer> timers;
+    /**
+     * Threads that {@link Server#serverSideAuth(SocketChannel)} is called on, so that slow authentication never holds up a loop
+     */
+    private static final Executor AUTHENTICATORS = Executors.newCachedThreadPool(task -> {
+        Thread t = new Thread(task, "NetAuth");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Creates and starts a new EventLoop
+     * @param index Index of the loop, used to name its thread
+     * @throws IOException If the loop's {@link Selector} could not be opened
+     */
+    EventLoop(int index) throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        flushes = new ConcurrentLinkedQueue<>();
+        load = new AtomicInteger();
+        handshakes = new ArrayDeque<>();
+        timers = new PriorityQueue<>(Comparator.comparingLong(t -> t.deadline));
+        thread = new Thread(this, "NetEventLoop-" + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the loop until the program finishes. An unexpected exception while handling a connection closes only that connection, and the loop carries on serving the others.
+     */
+    @Override
+    public void run() {
+        BufferPool.cacheOnThisThread();
+        while (!NetEventHandler.isDone()) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    if(NetEventHandler.DEV_VERSION){
+                        e.printStackTrace(System.out);
+                    }
+                }
+            }
+            DataStream pending;
+            while ((pending = flushes.poll()) != null) {
+                pending.autoFlush();
+            }
+            runTimers();
+            try {
+                expireHandshakes();
+                long timeout = handshakes.isEmpty() ? 0 : Math.max(1, (handshakes.peek().deadline - System.nanoTime() + 999_999) / 1_000_000);
+                if(!timers.isEmpty()){
+                    long timer = Math.max(1, (timers.peek().deadline - System.nanoTime() + 999_999) / 1_000_000);
+                    timeout = timeout == 0 ? timer : Math.min(timeout, timer);
+                }
+                if(timeout == 0){
+                    selector.select();
+                }
+                else{
+                    selector.select(timeout);
+                }
+            } catch (IOException e) {
+                if(NetEventHandler.DEV_VERSION){
+                    e.printStackTrace(System.out);
+                }
+                continue;
+            }
+            Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+            while (ready.hasNext() && !NetEventHandler.isDone()) {
+                SelectionKey key = ready.next();
+                ready.remove();
+                Object attachment = key.attachment();
+                try {
+                    keyUpdate(key);
+                } catch (RuntimeException e) {
+                    fail(attachment, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles the network activity of one of the loop's connections
+     * @param key The connection's {@link SelectionKey}
+     */
+    private void keyUpdate(SelectionKey key) {
+        if(!key.isValid()){return;}
+        if(key.attachment() instanceof Handshake h){
+            handshakeUpdate(key, h);
+            return;
+        }
+        if(key.attachment() instanceof UnreliableChannel u){
+            u.receive();
+            return;
+        }
+        DataStream d = (DataStream) key.attachment();
+        try {
+            if(key.isWritable()){
+                writeUpdate(key, d);
+            }
+            if(!key.isValid() || !key.isReadable()){return;}
+            if(!d.isOpen()){
+                if(!d.readClosed()){
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                return;
+            }
+        } catch (CancelledKeyException e) {
+            return;
+        }
+        if(d.owner instanceof ServerSideConnection c){
+            dataStreamUpdate(c, d);
+        }
+        else if(d.owner instanceof ClientSideConnection c){
+            clientDataStreamUpdate(c, d);
+        }
+    }
+
+    /**
+     * Closes a connection whose handling threw an unexpected exception, such as one thrown by one of its events, in the same way as a connection that broke. Datagrams are independent of each other, so an {@link UnreliableChannel} keeps being read.
+     * @param attachment What the connection's {@link SelectionKey} was attached to when the exception was thrown
+     * @param e The exception
+     */
+    private void fail(Object attachment, RuntimeException e) {
+        if(NetEventHandler.DEV_VERSION){
+            e.printStackTrace(System.out);
+        }
+        if(attachment instanceof Handshake h){
+            if(!h.finished){
+                cancelHandshake(h);
+                return;
+            }
+            attachment = h.stream;
+        }
+        if(!(attachment instanceof DataStream d) || !d.isOpen()){return;}
+        d.close();
+        if(d.owner instanceof ServerSideConnection<?> c){
+            disconnect(c, d);
+        }
+        else if(d.owner instanceof ClientSideConnection c){
+            leaveServer(c, d, "The connection was forcibly closed from the other side");
+        }
+    }
+
+    /**
+     * Runs a task on the loop's thread, waking the loop if it is waiting for network activity
+     * @param task Task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task on the loop's thread once a delay has passed. The task may run a little late, but never early.
+     * @param delay Time to wait before running the task, in nanoseconds
+     * @param task Task to run
+     */
+    void schedule(long delay, Runnable task) {
+        Timer t = new Timer(System.nanoTime() + delay, task);
+        if(inLoop()){
+            timers.add(t);
+        }
+        else{
+            execute(() -> timers.add(t));
+        }
+    }
+
+    /**
+     * Runs every scheduled task whose delay has passed
+     */
+    private void runTimers() {
+        long now = System.nanoTime();
+        while(!timers.isEmpty() && timers.peek().deadline - now <= 0){
+            try {
+                timers.poll().task.run();
+            } catch (RuntimeException e) {
+                if(NetEventHandler.DEV_VERSION){
+                    e.printStackTrace(System.out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the calling thread is this loop's thread, which must never wait for network activity
+     * @return Whether this is called from the loop
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Has the loop send a {@link DataStream}'s send buffer before it next waits for network activity
+     * @param d {@link DataStream} with buffered messages
+     */
+    void scheduleFlush(DataStream d) {
+        flushes.add(d);
+        if(Thread.currentThread() != thread){
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Hands a {@link DataStream}'s channel to this loop, counting it towards the loop's load immediately so that other connections are spread to less busy loops
+     * @param d {@link DataStream} to register
+     */
+    void register(DataStream d) {
+        load.incrementAndGet();
+        execute(() -> {
+            try {
+                if(d.isOpen()) {
+                    d.getDataSender().register(selector, SelectionKey.OP_READ, d);
+                }
+            } catch (ClosedChannelException e) {}
+        });
+    }
+
+    /**
+     * Has this loop receive the datagrams of an {@link UnreliableChannel}, which do not count towards the loop's load
+     * @param c The {@link UnreliableChannel}'s underlying channel
+     * @param u The {@link UnreliableChannel}
+     */
+    void registerDatagrams(DatagramChannel c, UnreliableChannel u) {
+        execute(() -> {
+            try {
+                if(c.isOpen()) {
+                    c.register(selector, SelectionKey.OP_READ, u);
+                }
+            } catch (ClosedChannelException e) {}
+        });
+    }
+
+    /**
+     * Hands a newly accepted client's {@link DataStream} to this loop and starts its handshake. The client's data will not be read until the handshake has finished and {@link #startReading(DataStream)} is called
+     * @param s The {@link Server} the client connected to
+     * @param c The {@link ServerSideConnection} of the client
+     */
+    void accept(Server s, ServerSideConnection c) {
+        DataStream d = c.serverSideConnection;
+        load.incrementAndGet();
+        execute(() -> {
+            Handshake h = new Handshake(s, c, d);
+            handshakes.add(h);
+            try {
+                d.getDataSender().write(h.out);
+                d.getDataSender().register(selector, h.out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ, h);
+            } catch (IOException e) {
+                cancelHandshake(h);
+            }
+        });
+    }
+
+    /**
+     * Starts reading the data of a {@link DataStream} that this loop already owns
+     * @param d {@link DataStream} to start reading
+     */
+    void startReading(DataStream d) {
+        execute(() -> {
+            SelectionKey key = d.getDataSender().keyFor(selector);
+            if(d.isOpen() && key != null && key.isValid()) {
+                key.attach(d);
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    /**
+     * Has the loop send a {@link DataStream}'s queued data as soon as its connection is ready for more
+     * @param d {@link DataStream} with queued data
+     */
+    void wantWrite(DataStream d) {
+        execute(() -> {
+            SelectionKey key = d.getDataSender().keyFor(selector);
+            if(key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+    /**
+     * Sends as much of a {@link DataStream}'s queued data as its connection can take, no longer waiting for the connection to be ready once everything has been sent
+     * @param key The {@link DataStream}'s {@link SelectionKey}
+     * @param d The {@link DataStream} with queued data
+     */
+    private void writeUpdate(SelectionKey key, DataStream d) {
+        boolean sent;
+        try {
+            sent = d.writeQueued();
+        } catch (IOException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
+            }
+            sent = true;
+        }
+        if((sent || d.sendsThroughLane()) && key.isValid()){
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Fires the events of data that has arrived in order through a {@link DataStream}'s {@link ReliableLane}, once the {@link DataStream} is reading
+     * @param d The {@link DataStream}
+     */
+    void laneReadable(DataStream d) {
+        SelectionKey key = d.getDataSender().keyFor(selector);
+        if(!d.isOpen() || key == null || !key.isValid() || (key.interestOps() & SelectionKey.OP_READ) == 0){return;}
+        try {
+            if(d.owner instanceof ServerSideConnection c){
+                dataStreamUpdate(c, d);
+            }
+            else if(d.owner instanceof ClientSideConnection c){
+                clientDataStreamUpdate(c, d);
+            }
+        } catch (RuntimeException e) {
+            fail(d, e);
+        }
+    }
+
+    /**
+     * Continues a handshake whose channel is ready, sending the rest of the {@link Server}'s type and reading as much of the client's reply as is available. Once the whole reply has arrived the client is either authenticated or cancelled
+     * @param key The handshake's {@link SelectionKey}
+     * @param h The handshake
+     */
+    private void handshakeUpdate(SelectionKey key, Handshake h) {
+        SocketChannel channel = h.stream.getDataSender();
+        try {
+            if(h.out.hasRemaining()){
+                channel.write(h.out);
+                if(!h.out.hasRemaining()){
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            if(channel.read(h.in) == -1){
+                throw new SocketException("The connection was closed during the handshake");
+            }
+            if(h.in.hasRemaining() || h.out.hasRemaining()){return;}
+        } catch (IOException e) {
+            cancelHandshake(h);
+            return;
+        }
+        key.attach(h.stream);
+        key.interestOps(0);
+        if(h.in.getInt(0) == -1){
+            cancelHandshake(h);
+            return;
+        }
+        try {
+            h.stream.offerCompression(h.in.getInt(0) >>> Byte.SIZE & 0xFF);
+            UnreliableChannel u = h.server.getUnreliableChannel();
+            if((h.in.getInt(0) & 2 << 2 * Byte.SIZE) != 0 && u != null && h.server.getTransport() == Transport.UDP){
+                h.stream.offerTransport(u);
+            }
+            else if((h.in.getInt(0) & 1 << 2 * Byte.SIZE) != 0 && u != null){
+                h.stream.offerUnreliable(u);
+            }
+        } catch (IOException e) {
+            cancelHandshake(h);
+            return;
+        }
+        h.stream.dispatch(() -> {
+            h.server.clientConnectPreAuth(h.client);
+            AUTHENTICATORS.execute(() -> authenticate(h, channel));
+        });
+    }
+
+    /**
+     * Runs {@link Server#serverSideAuth(SocketChannel)} for a client whose handshake has finished, on one of the {@link #AUTHENTICATORS}, then hands the result back to the loop
+     * @param h The client's handshake
+     * @param channel The client's {@link SocketChannel}
+     */
+    private void authenticate(Handshake h, SocketChannel channel) {
+        boolean passed = false;
+        try {
+            passed = h.server.serverSideAuth(channel);
+        } catch (RuntimeException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
+            }
+        }
+        boolean result = passed;
+        execute(() -> authenticated(h, result));
+    }
+
+    /**
+     * Lets a client that passed authentication join its {@link Server}, or closes its connection if it failed. Clients whose handshake timed out while they were being authenticated have already been cancelled and are ignored.
+     * @param h The client's handshake
+     * @param passed Whether the client passed authentication
+     */
+    private void authenticated(Handshake h, boolean passed) {
+        if(h.finished){return;}
+        h.finished = true;
+        if(passed){
+            h.stream.dispatch(() -> NetEventHandler.serverClientJoin(h.server, h.client));
+        }
+        else{
+            h.stream.close();
+            NetEventHandler.removeServerClient(h.client);
+        }
+    }
+
+    /**
+     * Cancels every handshake, including its authentication, that has been running for longer than {@link NetEventHandler#HANDSHAKE_TIMEOUT}
+     */
+    private void expireHandshakes() {
+        long now = System.nanoTime();
+        while(!handshakes.isEmpty() && (handshakes.peek().finished || handshakes.peek().deadline - now <= 0)){
+            Handshake h = handshakes.poll();
+            if(!h.finished){
+                cancelHandshake(h);
+            }
+        }
+    }
+
+    /**
+     * Stops a handshake, closing the client's connection and firing {@link Server#clientCancelConnect(ServerSideConnection)}
+     * @param h The handshake to cancel
+     */
+    private void cancelHandshake(Handshake h) {
+        h.finished = true;
+        h.stream.close();
+        NetEventHandler.removeServerClient(h.client);
+        h.stream.dispatch(() -> h.server.clientCancelConnect(h.client));
+    }
+
+    /**
+     * Stops counting a closed connection towards the loop's load
+     */
+    void release() {
+        load.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of connections currently owned by the loop
+     * @return The number of connections currently owned by the loop
+     */
+    int getLoad() {
+        return load.get();
+    }
+
+    /***
+     *  Fires the events of all data waiting on a registered {@link ServerSideConnection}
+     * @param c The {@link ServerSideConnection} with data waiting to be read
+     * @param d The {@link NetEventHandler.DataStream} associated with the {@link ServerSideConnection}
+     */
+    private void dataStreamUpdate(ServerSideConnection c, DataStream d){
+        try {
+            if(d.fill() == -1){
+                throw new SocketException("The connection was closed from the other side");
+            }
+            while (!NetEventHandler.isDone() && c.isConnected() && d.hasMessage()) {
+                byte type = d.readType();
+                switch (type) {
+                    case 0:
+                        try {
+                            int in = d.readInt();
+                            d.dispatch(() -> c.receiveInt(in));
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 1:
+                        try {
+                            char in = d.readChar();
+                            d.dispatch(() -> c.receiveChar(in));
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 2:
+                        try {
+                            long in = d.readLong();
+                            d.dispatch(() -> c.receiveLong(in));
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 3:
+                        try {
+                            double in = d.readDouble();
+                            d.dispatch(() -> c.receiveDouble(in));
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 4:
+                        try {
+                            byte in = d.readByte();
+                            d.dispatch(() -> c.receiveByte(in));
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 5:
+                        try {
+                            short in = d.readShort();
+                            d.dispatch(() -> c.receiveShort(in));
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 6:
+                        try {
+                            float in = d.readFloat();
+                            d.dispatch(() -> c.receiveFloat(in));
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 7:
+                        try {
+                            boolean in = d.readBool();
+                            d.dispatch(() -> c.receiveBool(in));
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 8:
+                    case 13:
+                    case 14:
+                        try {
+                            String in = d.readString(type);
+                            d.dispatch(() -> c.receiveString(in));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 19:
+                        try {
+                            byte[] in = d.readBytes();
+                            d.dispatch(() -> c.receiveBytes(in));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 20:
+                        try {
+                            int[] in = d.readInts();
+                            d.dispatch(() -> c.receiveInts(in));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 21:
+                        try {
+                            long[] in = d.readLongs();
+                            d.dispatch(() -> c.receiveLongs(in));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 22:
+                        try {
+                            float[] in = d.readFloats();
+                            d.dispatch(() -> c.receiveFloats(in));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 23:
+                        try {
+                            double[] in = d.readDoubles();
+                            d.dispatch(() -> c.receiveDoubles(in));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 24:
+                        try {
+                            ByteBuffer in = d.readBuffer();
+                            d.dispatch(() -> c.receiveBuffer(in));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 25:
+                        try {
+                            int id = d.readInt();
+                            long length = d.readLong();
+                            String name = d.readString((byte) 13);
+                            d.dispatch(() -> d.startFile(id, c.receiveFile(name, length), length));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 26:
+                        try {
+                            int id = d.readInt();
+                            ByteBuffer data = d.readBuffer();
+                            d.dispatch(() -> d.fileChunk(id, data));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 27:
+                        try {
+                            int id = d.readInt();
+                            d.dispatch(() -> d.abortFile(id));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 28:
+                        try {
+                            int id = d.readInt();
+                            String name = d.readString((byte) 13);
+                            d.dispatch(() -> d.startStream(id, c.receiveStream(name)));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 29:
+                        try {
+                            int id = d.readInt();
+                            d.dispatch(() -> d.endStream(id));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 31:
+                        try {
+                            d.readByte();
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 37:
+                        try {
+                            c.server.stateSync.acknowledge(c, d.readLong());
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 38:
+                        try {
+                            d.readCall();
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 39:
+                        try {
+                            d.readAnswer();
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 16:
+                    case 17:
+                        try {
+                            Object in = d.readObject(type);
+                            d.dispatch(() -> c.receiveObject(in));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 18:
+                        try {
+                            int id = d.readMessageId();
+                            Object in = d.readMessage(id);
+                            Server<?> server = c.server;
+                            ServerMessageHandler<ServerSideConnection<?>, Object> handler = server.getMessageHandler(id);
+                            if(handler == null){
+                                d.dispatch(() -> c.receiveObject(in));
+                            }
+                            else{
+                                d.dispatch(() -> handler.handle(c, in));
+                            }
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 11:
+                    case 15:
+                        try {
+                            String reason = d.readString(type);
+                            d.close();
+                            NetEventHandler.removeServerClient(c);
+                            c.server.removeDisconnectedClient(c);
+                            d.dispatch(() -> c.server.clientDisconnect(c, reason));
+                        } catch (Exception e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        d.close();
+                        break;
+                    case 12:
+                        d.close();
+                        NetEventHandler.removeServerClient(c);
+                        c.server.removeDisconnectedClient(c);
+                        d.dispatch(() -> c.server.clientDisconnect(c, null));
+                        break;
+                    case 42:
+                        try {
+                            d.acceptLane();
+                        } catch (IOException e) {
+                            if(NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    default:
+                        throw new ProtocolException("Received a message of type " + type + ", which clients do not send");
+                }
+            }
+        } catch (ClosedChannelException e){}
+        catch(SocketException | ProtocolException e){
+            disconnect(c, d);
+        }
+        catch (IOException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+    /**
+     * Removes a {@link ServerSideConnection} whose connection broke or sent data that could not be read from its {@link Server}, firing {@link Server#clientDisconnect(ServerSideConnection, String)}
+     * @param c The {@link ServerSideConnection} that is no longer connected
+     * @param d The {@link NetEventHandler.DataStream} associated with the {@link ServerSideConnection}
+     */
+    private void disconnect(ServerSideConnection<?> c, DataStream d) {
+        Server<?> server = c.server;
+        if(!NetEventHandler.isDone() && server != null){
+            server.removeBrokenClient(c);
+            NetEventHandler.removeServerClient(c);
+        }
+    }
+    /***
+     *  Fires the events of all data waiting on a registered {@link ClientSideConnection}'s {@link NetEventHandler.DataStream}
+     * @param c The {@link ClientSideConnection} with data waiting to be read
+     * @param d The {@link NetEventHandler.DataStream} associated with the {@link ClientSideConnection}
+     */
+    private void clientDataStreamUpdate(ClientSideConnection c, DataStream d){
+        try {
+            if(d.fill() == -1){
+                throw new SocketException("The connection was closed from the other side");
+            }
+            while (!NetEventHandler.isDone() && c.inServer() && d.hasMessage()) {
+                byte type = d.readType();
+                switch (type) {
+                    case 0:
+                        try {
+                            int in = d.readInt();
+                            d.dispatch(() -> c.receiveInt(in));
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 1:
+                        try {
+                            char in = d.readChar();
+                            d.dispatch(() -> c.receiveChar(in));
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 2:
+                        try {
+                            long in = d.readLong();
+                            d.dispatch(() -> c.receiveLong(in));
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 3:
+                        try {
+                            double in = d.readDouble();
+                            d.dispatch(() -> c.receiveDouble(in));
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 4:
+                        try {
+                            byte in = d.readByte();
+                            d.dispatch(() -> c.receiveByte(in));
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 5:
+                        try {
+                            short in = d.readShort();
+                            d.dispatch(() -> c.receiveShort(in));
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 6:
+                        try {
+                            float in = d.readFloat();
+                            d.dispatch(() -> c.receiveFloat(in));
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 7:
+                        try {
+                            boolean in = d.readBool();
+                            d.dispatch(() -> c.receiveBool(in));
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 8:
+                    case 13:
+                    case 14:
+                        try {
+                            String in = d.readString(type);
+                            d.dispatch(() -> c.receiveString(in));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 19:
+                        try {
+                            byte[] in = d.readBytes();
+                            d.dispatch(() -> c.receiveBytes(in));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 20:
+                        try {
+                            int[] in = d.readInts();
+                            d.dispatch(() -> c.receiveInts(in));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 21:
+                        try {
+                            long[] in = d.readLongs();
+                            d.dispatch(() -> c.receiveLongs(in));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 22:
+                        try {
+                            float[] in = d.readFloats();
+                            d.dispatch(() -> c.receiveFloats(in));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 23:
+                        try {
+                            double[] in = d.readDoubles();
+                            d.dispatch(() -> c.receiveDoubles(in));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 24:
+                        try {
+                            ByteBuffer in = d.readBuffer();
+                            d.dispatch(() -> c.receiveBuffer(in));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 25:
+                        try {
+                            int id = d.readInt();
+                            long length = d.readLong();
+                            String name = d.readString((byte) 13);
+                            d.dispatch(() -> d.startFile(id, c.receiveFile(name, length), length));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 26:
+                        try {
+                            int id = d.readInt();
+                            ByteBuffer data = d.readBuffer();
+                            d.dispatch(() -> d.fileChunk(id, data));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 27:
+                        try {
+                            int id = d.readInt();
+                            d.dispatch(() -> d.abortFile(id));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 28:
+                        try {
+                            int id = d.readInt();
+                            String name = d.readString((byte) 13);
+                            d.dispatch(() -> d.startStream(id, c.receiveStream(name)));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 29:
+                        try {
+                            int id = d.readInt();
+                            d.dispatch(() -> d.endStream(id));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 31:
+                        try {
+                            d.acceptCompression(d.readByte());
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 40:
+                        try {
+                            d.openUnreliable();
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 41:
+                        try {
+                            d.acceptTransport();
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 38:
+                        try {
+                            d.readCall();
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 39:
+                        try {
+                            d.readAnswer();
+                        } catch (IOException e) {
+                            if (NetEventHandler.DEV_VERSION){
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 35:
+                    case 36:
+                        try {
+                            Object in = d.readState(type);
+                            long version = d.getStateVersion();
+                            d.dispatch(() -> c.receiveState(in, version));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 16:
+                    case 17:
+                        try {
+                            Object in = d.readObject(type);
+                            d.dispatch(() -> c.receiveObject(in));
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 18:
+                        try {
+                            int id = d.readMessageId();
+                            Object in = d.readMessage(id);
+                            MessageHandler<Object> handler = c.getMessageHandler(id);
+                            if (handler == null) {
+                                d.dispatch(() -> c.receiveObject(in));
+                            }
+                            else {
+                                d.dispatch(() -> handler.handle(in));
+                            }
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 11:
+                    case 15:
+                        try {
+                            leaveServer(c, d, d.readString(type));
+                            return;
+                        } catch (Exception e) {
+                            if (NetEventHandler.DEV_VERSION) {
+                                e.printStackTrace(System.out);
+                            }
+                        }
+                        break;
+                    case 12:
+                        leaveServer(c, d, null);
+                        return;
+                    default:
+                        throw new ProtocolException("Received a message of type " + type + ", which servers do not send");
+                }
+            }
+        } catch (SocketException | ProtocolException e) {
+            leaveServer(c, d, "The connection was forcibly closed from the other side");
+            return;
+        } catch (IOException e) {
+            if (NetEventHandler.DEV_VERSION) {
+                e.printStackTrace(System.out);
+            }
+        }
+        if (c.inServer() && !d.isOpen()) {
+            leaveServer(c, d, "The connection was forcibly closed from the other side");
+        }
+    }
+    /**
+     * Stops reading a {@link ClientSideConnection}'s data and fires its leaving of the {@link Server} after all of its earlier events
+     * @param c The {@link ClientSideConnection} that is no longer connected
+     * @param d The {@link NetEventHandler.DataStream} associated with the {@link ClientSideConnection}
+     * @param reason The reason that the client is no longer connected, null if none was provided
+     */
+    private void leaveServer(ClientSideConnection c, DataStream d, String reason) {
+        SelectionKey key = d.getDataSender().keyFor(selector);
+        if(key != null){
+            key.cancel();
+        }
+        d.dispatch(() -> {
+            try {
+                c.leaveServer(reason, true);
+            } catch (IOException e) {
+                if (NetEventHandler.DEV_VERSION) {
+                    e.printStackTrace(System.out);
+                }
+            }
+        });
+    }
+
+    /**
+     * State of a newly accepted client's handshake, in which the {@link Server} sends its type and the client replies with whether it matches, along with the {@link Compression}s it supports, whether it wants an unreliable channel, and whether it supports {@link Transport#UDP}
+     */
+    private static class Handshake {
+        /**
+         * The {@link Server} the client connected to
+         */
+        final Server server;
+        /**
+         * The {@link ServerSideConnection} of the client
+         */
+        final ServerSideConnection client;
+        /**
+         * The {@link DataStream} of the client
+         */
+        final DataStream stream;
+        /**
+         * The part of the {@link Server}'s type that has not been sent yet
+         */
+        final ByteBuffer out;
+        /**
+         * The part of the client's reply that has been received
+         */
+        final ByteBuffer in;
+        /**
+         * Time (from {@link System#nanoTime()}) after which the handshake is cancelled
+         */
+        final long deadline;
+        /**
+         * Whether the handshake and the client's authentication have finished, successfully or not
+         */
+        boolean finished;
+
+        /**
+         * Creates a new Handshake
+         * @param server The {@link Server} the client connected to
+         * @param client The {@link ServerSideConnection} of the client
+         * @param stream The {@link DataStream} of the client
+         */
+        Handshake(Server server, ServerSideConnection client, DataStream stream) {
+            this.server = server;
+            this.client = client;
+            this.stream = stream;
+            out = ByteBuffer.allocate(Integer.BYTES).putInt(0, server.getServerType());
+            in = ByteBuffer.allocate(Integer.BYTES);
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NetEventHandler.HANDSHAKE_TIMEOUT);
+        }
+    }
+
+    /**
+     * Task scheduled to run after a delay, see {@link #schedule(long, Runnable)}
+     */
+    private static class Timer {
+        /**
+         * Time (from {@link System#nanoTime()}) after which the task runs
+         */
+        final long deadline;
+        /**
+         * The task
+         */
+        final Runnable task;
+
+        /**
+         * Creates a new Timer
+         * @param deadline Time (from {@link System#nanoTime()}) after which the task runs
+         * @param task The task
+         */
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+}
\ No newline at end of file
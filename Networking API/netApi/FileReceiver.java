@@ -0,0 +1,72 @@
+package netApi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Receives a file sent with sendFile or a stream sent with openStream, chunk by chunk as it arrives. A FileReceiver is returned from {@link ServerSideConnection#receiveFile(String, long)} or {@link ClientSideConnection#receiveFile(String, long)} when the other side starts sending a file, and from receiveStream when it opens a stream. All of its methods fire in order with the connection's other events.
+ */
+public interface FileReceiver {
+    /**
+     * Fires when the next chunk of the file is received
+     * @param data The chunk, which is read-only and only valid until this returns unless {@link NetEventHandler#CALLBACK_EXECUTOR} is set
+     * @throws IOException If the chunk could not be handled, which stops the rest of the file from being received and fires {@link #failed(IOException)}
+     */
+    void receiveChunk(ByteBuffer data) throws IOException;
+
+    /**
+     * Fires once the whole file has been received. This does nothing unless overridden.
+     * @throws IOException If the file could not be finished, which fires {@link #failed(IOException)}
+     */
+    default void finished() throws IOException {}
+
+    /**
+     * Fires if the file could not be received in full, because the connection closed, the sender could not read the file, or handling a chunk failed. This does nothing unless overridden.
+     * @param cause Why the file could not be received
+     */
+    default void failed(IOException cause) {}
+
+    /**
+     * Returns a FileReceiver that writes the file into a {@link FileChannel} at the channel's position, without copying the chunks first. The {@link FileChannel} is left open.
+     * @param target Where to write the file
+     * @return A FileReceiver writing to target
+     */
+    static FileReceiver to(FileChannel target) {
+        return data -> {
+            while(data.hasRemaining()){
+                target.write(data);
+            }
+        };
+    }
+
+    /**
+     * Returns a FileReceiver that writes the file to a path, replacing anything already there. The file is closed once it has been received or has failed.
+     * @param target Where to write the file
+     * @return A FileReceiver writing to target
+     * @throws IOException If the file could not be opened
+     */
+    static FileReceiver to(Path target) throws IOException {
+        FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new FileReceiver() {
+            @Override
+            public void receiveChunk(ByteBuffer data) throws IOException {
+                while(data.hasRemaining()){
+                    channel.write(data);
+                }
+            }
+
+            @Override
+            public void finished() throws IOException {
+                channel.close();
+            }
+
+            @Override
+            public void failed(IOException cause) {
+                try {channel.close();} catch (IOException e) {}
+            }
+        };
+    }
+}
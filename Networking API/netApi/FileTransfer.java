@@ -0,0 +1,60 @@
+package netApi;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file being sent through a connection. Files are sent a chunk at a time so that other messages can be sent between the chunks, see {@link NetEventHandler.DataStream#sendFile(FileChannel, long, long, String, boolean)}
+ * @hidden
+ */
+class FileTransfer {
+    /**
+     * Number identifying the transfer to the other side of the connection
+     */
+    final int id;
+    /**
+     * The file being sent
+     */
+    final FileChannel file;
+    /**
+     * Whether the file should be closed once it has been sent
+     */
+    private final boolean close;
+    /**
+     * Position in the file of the next byte to send
+     */
+    long position;
+    /**
+     * Bytes of the file that have not been put in a chunk yet
+     */
+    long remaining;
+    /**
+     * Bytes of the current chunk that have not been sent yet
+     */
+    long chunkRemaining;
+
+    /**
+     * Creates a new FileTransfer
+     * @param id Number identifying the transfer to the other side of the connection
+     * @param file The file to send
+     * @param position Position in the file to start sending from
+     * @param length Number of bytes to send
+     * @param close Whether the file should be closed once it has been sent
+     */
+    FileTransfer(int id, FileChannel file, long position, long length, boolean close) {
+        this.id = id;
+        this.file = file;
+        this.position = position;
+        this.remaining = length;
+        this.close = close;
+    }
+
+    /**
+     * Closes the file if it was opened for the transfer
+     */
+    void finish() {
+        if(close){
+            try {file.close();} catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package netApi;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable buffer that a message is encoded into when its length has to be known before it can be sent, such as a serialized {@link Object}
+ * @hidden
+ */
+class FrameBuffer extends ByteArrayOutputStream {
+    /**
+     * Size past which the buffer is replaced after use, so that one large message does not hold on to its memory for the life of the connection
+     */
+    static final int MAX_RETAINED = 1024 * 1024;
+
+    /**
+     * Creates a new FrameBuffer
+     * @param size Starting size of the buffer in bytes
+     */
+    FrameBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * Returns the bytes written since the buffer was last cleared without copying them
+     * @return A {@link ByteBuffer} over the bytes written
+     */
+    ByteBuffer view() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /**
+     * Clears the buffer for the next message, shrinking it if it grew past {@link #MAX_RETAINED}
+     */
+    void clear() {
+        if(buf.length > MAX_RETAINED){
+            buf = new byte[32];
+        }
+        count = 0;
+    }
+}
@@ -0,0 +1,270 @@
+package netApi;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the data of messages, see {@link Compression}. {@link Deflater}s and {@link Inflater}s are kept in a shared pool, as each holds a large amount of memory outside the heap that is costly to set up.
+ * @hidden
+ */
+final class FrameCompressor {
+    /**
+     * Most {@link Deflater}s and {@link Inflater}s each kept in the pool
+     */
+    private static final int POOL_SIZE = 16;
+    /**
+     * {@link Deflater}s not currently in use
+     */
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    /**
+     * {@link Inflater}s not currently in use
+     */
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    /**
+     * Number of bits of the hashes used to find repeated runs of bytes for {@link Compression#LZ}
+     */
+    private static final int HASH_BITS = 12;
+    /**
+     * Shortest run of bytes {@link Compression#LZ} replaces with a reference to an earlier copy
+     */
+    private static final int MIN_MATCH = 4;
+    /**
+     * Most bytes back a reference can point
+     */
+    private static final int MAX_OFFSET = 0xFFFF;
+    /**
+     * Table of where each hash of 4 bytes was last seen, for each thread compressing with {@link Compression#LZ}
+     */
+    private static final ThreadLocal<int[]> tables = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    private FrameCompressor() {}
+
+    /**
+     * Compresses data, giving up if it does not fit
+     * @param compression How to compress the data
+     * @param src The data, which is consumed
+     * @param dst Where to write the compressed data
+     * @param dstLength Most bytes of compressed data that are worth sending, from the start of dst
+     * @return The number of bytes of compressed data, or -1 if it would not fit in dstLength bytes
+     */
+    static int compress(Compression compression, ByteBuffer src, byte[] dst, int dstLength) {
+        if(compression == Compression.DEFLATE){
+            Deflater deflater = deflaters.poll();
+            if(deflater == null){
+                deflater = new Deflater();
+            }
+            try {
+                deflater.setInput(src);
+                deflater.finish();
+                int length = deflater.deflate(dst, 0, dstLength);
+                return deflater.finished() ? length : -1;
+            } finally {
+                deflater.reset();
+                if(!deflaters.offer(deflater)){
+                    deflater.end();
+                }
+            }
+        }
+        byte[] array;
+        int offset;
+        if(src.hasArray()){
+            array = src.array();
+            offset = src.arrayOffset() + src.position();
+        }
+        else{
+            array = new byte[src.remaining()];
+            src.duplicate().get(array);
+            offset = 0;
+        }
+        int length = src.remaining();
+        src.position(src.limit());
+        return compressLZ(array, offset, length, dst, dstLength);
+    }
+
+    /**
+     * Decompresses data that must decompress to exactly the expected number of bytes
+     * @param codec Number of the {@link Compression} the data was compressed with
+     * @param src The compressed data, which is consumed
+     * @param dst Where to write the decompressed data
+     * @param offset Index in dst to write the decompressed data at
+     * @param length Number of bytes the data decompresses to
+     * @throws ProtocolException If the data is not valid, or does not decompress to length bytes
+     */
+    static void decompress(int codec, ByteBuffer src, byte[] dst, int offset, int length) throws ProtocolException {
+        if(codec == Compression.DEFLATE.ordinal()){
+            Inflater inflater = inflaters.poll();
+            if(inflater == null){
+                inflater = new Inflater();
+            }
+            try {
+                inflater.setInput(src);
+                int read = 0;
+                while(!inflater.finished()){
+                    int n = read < length ? inflater.inflate(dst, offset + read, length - read) : inflater.inflate(new byte[1]);
+                    if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())){break;}
+                    read += n;
+                    if(read > length){break;}
+                }
+                if(read != length || !inflater.finished()){
+                    throw new ProtocolException("Compressed message does not match its length");
+                }
+            } catch (DataFormatException e) {
+                throw new ProtocolException("Compressed message is not valid: " + e.getMessage());
+            } finally {
+                inflater.reset();
+                if(!inflaters.offer(inflater)){
+                    inflater.end();
+                }
+            }
+        }
+        else if(codec == Compression.LZ.ordinal()){
+            decompressLZ(src, dst, offset, length);
+        }
+        else{
+            throw new ProtocolException("Received message compressed in an unknown way (" + codec + ")");
+        }
+    }
+
+    /**
+     * Compresses data for {@link Compression#LZ}. The data is written as a series of sequences, each a token byte holding the number of bytes copied as they are and the length of the following reference to earlier bytes, the copied bytes, and the reference's distance back, with lengths too large for the token continued in following bytes. The last sequence has no reference.
+     * @param src Array holding the data
+     * @param offset Index of the data in src
+     * @param length Number of bytes of data
+     * @param dst Where to write the compressed data
+     * @param dstLength Most bytes of compressed data to write
+     * @return The number of bytes of compressed data, or -1 if it would not fit in dstLength bytes
+     */
+    private static int compressLZ(byte[] src, int offset, int length, byte[] dst, int dstLength) {
+        int[] table = tables.get();
+        Arrays.fill(table, -1);
+        int end = offset + length, searchEnd = end - 12, matchEnd = end - 5;
+        int anchor = offset, i = offset, out = 0;
+        while(i < searchEnd){
+            int sequence = readInt(src, i);
+            int hash = sequence * -1640531535 >>> Integer.SIZE - HASH_BITS;
+            int ref = table[hash];
+            table[hash] = i;
+            if(ref < offset || i - ref > MAX_OFFSET || readInt(src, ref) != sequence){
+                i += 1 + (i - anchor >> 6);
+                continue;
+            }
+            while(i > anchor && ref > offset && src[i - 1] == src[ref - 1]){
+                i--;
+                ref--;
+            }
+            int matched = i + MIN_MATCH;
+            while(matched < matchEnd && src[matched] == src[matched - i + ref]){
+                matched++;
+            }
+            int literals = i - anchor, matchLength = matched - i - MIN_MATCH;
+            if(out + literals + literals / 255 + matchLength / 255 + 5 > dstLength){return -1;}
+            int token = out++;
+            out = putLength(dst, out, literals);
+            System.arraycopy(src, anchor, dst, out, literals);
+            out += literals;
+            dst[out++] = (byte) (i - ref);
+            dst[out++] = (byte) (i - ref >>> Byte.SIZE);
+            out = putLength(dst, out, matchLength);
+            dst[token] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchLength, 15));
+            anchor = i = matched;
+        }
+        int literals = end - anchor;
+        if(out + literals + literals / 255 + 2 > dstLength){return -1;}
+        dst[out++] = (byte) (Math.min(literals, 15) << 4);
+        out = putLength(dst, out, literals);
+        System.arraycopy(src, anchor, dst, out, literals);
+        return out + literals;
+    }
+
+    /**
+     * Decompresses data written by {@link #compressLZ(byte[], int, int, byte[], int)}, checking every length and reference against the data's bounds
+     * @param src The compressed data, which is consumed
+     * @param dst Where to write the decompressed data
+     * @param offset Index in dst to write the decompressed data at
+     * @param length Number of bytes the data decompresses to
+     * @throws ProtocolException If the data is not valid, or does not decompress to length bytes
+     */
+    private static void decompressLZ(ByteBuffer src, byte[] dst, int offset, int length) throws ProtocolException {
+        int out = offset, end = offset + length;
+        while(src.hasRemaining()){
+            int token = src.get() & 0xFF;
+            int literals = readLength(src, token >>> 4);
+            if(literals > src.remaining() || literals > end - out){
+                throw new ProtocolException("Compressed message is not valid");
+            }
+            src.get(dst, out, literals);
+            out += literals;
+            if(!src.hasRemaining()){break;}
+            if(src.remaining() < 2){
+                throw new ProtocolException("Compressed message is not valid");
+            }
+            int distance = src.get() & 0xFF | (src.get() & 0xFF) << Byte.SIZE;
+            int matchLength = readLength(src, token & 15) + MIN_MATCH;
+            if(distance == 0 || distance > out - offset || matchLength > end - out){
+                throw new ProtocolException("Compressed message is not valid");
+            }
+            int from = out - distance;
+            while(matchLength > 0){
+                int n = Math.min(out - from, matchLength);
+                System.arraycopy(dst, from, dst, out, n);
+                out += n;
+                matchLength -= n;
+            }
+        }
+        if(out != end){
+            throw new ProtocolException("Compressed message does not match its length");
+        }
+    }
+
+    /**
+     * Writes the part of a length that does not fit in a token, as bytes of 255 followed by the rest
+     * @param dst Where to write the length
+     * @param out Index in dst to write at
+     * @param length The length
+     * @return Index in dst after the length
+     */
+    private static int putLength(byte[] dst, int out, int length) {
+        if(length < 15){return out;}
+        for(length -= 15; length >= 255; length -= 255){
+            dst[out++] = (byte) 255;
+        }
+        dst[out++] = (byte) length;
+        return out;
+    }
+
+    /**
+     * Reads a length written by {@link #putLength(byte[], int, int)}
+     * @param src Where to read the rest of the length from
+     * @param length The part of the length held by the token
+     * @return The length
+     * @throws ProtocolException If the length runs past the end of the data
+     */
+    private static int readLength(ByteBuffer src, int length) throws ProtocolException {
+        if(length < 15){return length;}
+        int b;
+        do {
+            if(!src.hasRemaining()){
+                throw new ProtocolException("Compressed message is not valid");
+            }
+            b = src.get() & 0xFF;
+            length += b;
+        } while(b == 255);
+        return length;
+    }
+
+    /**
+     * Reads 4 bytes as an int, in the order they appear
+     * @param src Array to read from
+     * @param i Index of the first byte
+     * @return The bytes as an int
+     */
+    private static int readInt(byte[] src, int i) {
+        return src[i] << 24 | (src[i + 1] & 0xFF) << 16 | (src[i + 2] & 0xFF) << 8 | src[i + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,56 @@
+package netApi;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link InputStream} over a single message in a connection's receive buffer, so that a message can be decoded by stream based readers such as {@link java.io.ObjectInputStream} without being copied out first
+ * @hidden
+ */
+class FrameInputStream extends InputStream {
+    /**
+     * The receive buffer the message is in
+     */
+    private ByteBuffer source;
+    /**
+     * Position in {@link #source} where the message ends
+     */
+    private int end;
+
+    /**
+     * Points the stream at the next message
+     * @param source The receive buffer the message is in, positioned at the start of the message
+     * @param length Length of the message in bytes
+     */
+    void frame(ByteBuffer source, int length) {
+        this.source = source;
+        end = source.position() + length;
+    }
+
+    /**
+     * Skips whatever the reader left of the message, positioning the receive buffer at the start of the next message
+     */
+    void finish() {
+        source.position(end);
+        source = null;
+    }
+
+    @Override
+    public int read() {
+        return source.position() < end ? source.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if(len == 0){return 0;}
+        int count = Math.min(len, end - source.position());
+        if(count <= 0){return -1;}
+        source.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return end - source.position();
+    }
+}
@@ -0,0 +1,14 @@
+package netApi;
+
+/**
+ * Handles one class of message received by a {@link ClientSideConnection}, see {@link ClientSideConnection#onMessage(Class, MessageHandler)}
+ * @param <M> The class of message handled
+ */
+@FunctionalInterface
+public interface MessageHandler<M> {
+    /**
+     * Fires when a message of the handled class is received
+     * @param message The message received
+     */
+    void handle(M message);
+}
@@ -0,0 +1,102 @@
+package netApi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Table of the message classes an application sends, each registered against a small number that is sent in place of the class's name. Both sides of a connection must register the same classes against the same numbers, usually by sharing one MessageRegistry built at startup that is returned from {@link Server#getMessageRegistry()} and {@link ClientSideConnection#getMessageRegistry()}.
+ * <p>
+ * Registered messages are written field by field like the {@link CompactSerializer} writes them, and can be handled per class with {@link Server#onMessage(Class, ServerMessageHandler)} and {@link ClientSideConnection#onMessage(Class, MessageHandler)} instead of through receiveObject.
+ */
+public final class MessageRegistry {
+    /**
+     * Largest number a message class can be registered against
+     */
+    public static final int MAX_ID = 0xFFFF;
+    /**
+     * Registered message classes, indexed by their numbers
+     */
+    private volatile Class<?>[] types;
+    /**
+     * Codecs of the registered message classes, indexed by their numbers
+     */
+    private volatile CompactSerializer.Codec[] codecs;
+    /**
+     * Number of each registered message class
+     */
+    private volatile Map<Class<?>, Integer> ids;
+
+    /**
+     * Creates an empty MessageRegistry
+     */
+    public MessageRegistry() {
+        types = new Class<?>[0];
+        codecs = new CompactSerializer.Codec[0];
+        ids = Map.of();
+    }
+
+    /**
+     * Registers a message class against a number. Classes should be registered before any connection uses the registry.
+     * @param id Number to send in place of the class, from 0 to {@link #MAX_ID}
+     * @param type The message class, which must be supported by the {@link CompactSerializer}
+     * @return This MessageRegistry, so registrations can be chained
+     * @throws IllegalArgumentException If the number is out of range or already used by another class, the class is already registered against another number, or the class is not supported by the {@link CompactSerializer}
+     */
+    public synchronized MessageRegistry register(int id, Class<?> type) {
+        if(id < 0 || id > MAX_ID){
+            throw new IllegalArgumentException("Message id " + id + " is not between 0 and " + MAX_ID);
+        }
+        CompactSerializer.Codec codec = CompactSerializer.codec(type);
+        if(codec == null){
+            throw new IllegalArgumentException(type.getName() + " is not supported by the CompactSerializer");
+        }
+        Integer existing = ids.get(type);
+        if(existing != null && existing != id){
+            throw new IllegalArgumentException(type.getName() + " is already registered as message " + existing);
+        }
+        if(id < types.length && types[id] != null && types[id] != type){
+            throw new IllegalArgumentException("Message id " + id + " is already used by " + types[id].getName());
+        }
+        Class<?>[] newTypes = Arrays.copyOf(types, Math.max(types.length, id + 1));
+        CompactSerializer.Codec[] newCodecs = Arrays.copyOf(codecs, newTypes.length);
+        newTypes[id] = type;
+        newCodecs[id] = codec;
+        Map<Class<?>, Integer> newIds = new HashMap<>(ids);
+        newIds.put(type, id);
+        codecs = newCodecs;
+        types = newTypes;
+        ids = newIds;
+        return this;
+    }
+
+    /**
+     * Returns the number a message class is registered against
+     * @param type The message class
+     * @return The class's number, or -1 if the class is not registered
+     */
+    public int getId(Class<?> type) {
+        Integer id = ids.get(type);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the message class registered against a number
+     * @param id The number
+     * @return The message class, or null if nothing is registered against the number
+     */
+    public Class<?> getType(int id) {
+        Class<?>[] types = this.types;
+        return id >= 0 && id < types.length ? types[id] : null;
+    }
+
+    /**
+     * Returns the codec of the message class registered against a number
+     * @param id The number
+     * @return The codec, or null if nothing is registered against the number
+     */
+    CompactSerializer.Codec codec(int id) {
+        CompactSerializer.Codec[] codecs = this.codecs;
+        return id >= 0 && id < codecs.length ? codecs[id] : null;
+    }
+}
@@ -3,12 +3,22 @@ package netApi;
 import java.io.*;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Util class for storing, keeping track of, and running all listeners, you will likely not ever need to directly touch this
@@ -19,57 +29,148 @@ public class NetEventHandler {
      * Toggle for enabling dev mode. When false all errors will be hidden. When true all errors will be displayed in console. It is important to note that some errors are normal and expected, and do not disrupt the program.
      */
     public static boolean DEV_VERSION = false;
+    /**
+     * Number of {@link EventLoop} threads that connections are spread across. This must be set before the first {@link Server} or {@link ClientSideConnection} is created. When more than one is used, events of connections owned by different threads may fire at the same time.
+     */
+    public static int EVENT_LOOPS = 1;
+    /**
+     * {@link Executor} that events are fired on. When null, events are fired directly on the {@link EventLoop} thread that read them. When set, each connection fires its events in order through its own queue on this {@link Executor}, so a slow event on one connection does not delay reading for any other connection (for instance {@code Executors.newFixedThreadPool(8)}, or {@code Executors.newVirtualThreadPerTaskExecutor()} on newer versions of java). This must be set before the connections it should apply to are created.
+     */
+    public static Executor CALLBACK_EXECUTOR = null;
+    /**
+     * Longest time (in milliseconds) a newly connected client has to finish its handshake with a {@link Server} and pass {@link Server#serverSideAuth(SocketChannel)} before it is cancelled
+     */
+    public static long HANDSHAKE_TIMEOUT = 10000;
+    /**
+     * Largest message (in bytes) that can be received. Connections that send larger messages are disconnected.
+     */
+    public static int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    /**
+     * Starting size (in bytes) of each connection's receive buffer. Receive buffers grow to fit larger messages as they arrive, and shrink back once those have been read.
+     */
+    private static final int RECEIVE_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Size of each connection's send buffer, messages are gathered here until the buffer is full or the {@link EventLoop} sends it
+     */
+    private static final int SEND_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Most bytes of a file or stream sent at once, other messages can be sent between chunks of a file or stream
+     */
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    /**
+     * Number of bytes waiting to be sent on a connection at which it stops being writable (see {@link ServerSideConnection#isWritable()} and {@link ClientSideConnection#isWritable()}). Data is still queued past this point, it is up to the sender to slow down.
+     */
+    public static int WRITE_HIGH_WATER_MARK = 1024 * 1024;
+    /**
+     * Number of bytes waiting to be sent on a connection at which a connection that stopped being writable becomes writable again
+     */
+    public static int WRITE_LOW_WATER_MARK = 256 * 1024;
+    /**
+     * Whether {@link String}s are sent in the original format of two bytes per character instead of as UTF-8, for talking to older versions of the API. Both formats are always understood when receiving.
+     */
+    public static boolean LEGACY_STRINGS = false;
+    /**
+     * Smallest message (in bytes) that is compressed, when both sides of a connection have chosen a {@link Compression}. Smaller messages rarely shrink by enough to be worth the time spent compressing them.
+     */
+    public static int COMPRESSION_THRESHOLD = 1024;
+    /**
+     * Whether {@link Integer}s, {@link Long}s and {@link Short}s are sent in a compact form that takes fewer bytes the closer they are to zero, with {@link Integer}s from -64 to 63 taking a single byte. Values that would not be smaller this way are still sent in full. Older versions of the API cannot read the compact form, but both forms are always understood when receiving.
+     */
+    public static boolean COMPACT_NUMBERS = false;
+    /**
+     * Number of versions of a {@link Server}'s shared state remembered to send clients only what has changed, see {@link Server#syncState(Object)}. This is read when the {@link Server} is created.
+     */
+    public static int STATE_HISTORY = 16;
+    /**
+     * Toggle for having the {@link BufferPool} remember where each of its buffers was taken, and report buffers that are garbage collected without having been given back or are given back twice. This is slow and should only be used while debugging. It must be set before the first connection is created.
+     */
+    public static boolean BUFFER_LEAK_DETECTION = false;
+    /**
+     * Longest time (in milliseconds) a call made with call waits for its answer before its future fails with a {@link java.util.concurrent.TimeoutException}, when no timeout is given. Zero or less waits until the connection closes.
+     */
+    public static long CALL_TIMEOUT = 30000;
+    /**
+     * Largest amount of data (in bytes) that can be sent in a single datagram with sendUnreliable. Datagrams larger than what the network carries in one packet are split, and lost entirely if any part of them is lost, so this stays below the usual packet size of about 1500 bytes by default.
+     */
+    public static int MAX_DATAGRAM_SIZE = 1200;
     /**
      * Toggle for ending all currently running programs
      */
-    private static boolean done = false;
+    private static volatile boolean done = false;
+    /**
+     * Whether the threads used to run all listeners have been started
+     */
+    private static volatile boolean started = false;
     private static Thread main;
     /**
-     * Thread where all listener types are run
+     * Thread where new clients are accepted and public servers are found
      */
     private static final Thread SVC = new Thread(() -> {
-        while (!done && Thread.activeCount() > 1) {
+        while (!done) {
             listenerCheck();
         }
     }, "NetEventHandler");
     /**
-     * Storage of all ServerListeners
+     * {@link Selector} that every server socket and udp port is attached to, so the accepting thread only wakes up for channels that are ready
+     */
+    private static Selector selector;
+    /**
+     * {@link EventLoop}s that own all connections
+     */
+    private static EventLoop[] loops;
+    /**
+     * Channel registrations waiting to be applied on the event thread
+     */
+    private static final Queue<Runnable> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    /**
+     * Storage of all ServerListeners. All storage can be added to and removed from by any thread at any time without locking, and is safe to iterate while it changes
      */
-    private static List<Server> servers, removeableServers;
-    private static List<ClientSideConnection> serverReceiver, removeableClientDatas, removableServerReceivers;
-    private static List<ServerSideConnection> removeableServerDatas;
+    private static final Set<Server> servers = ConcurrentHashMap.newKeySet();
+    private static final Set<ClientSideConnection> serverReceiver = ConcurrentHashMap.newKeySet();
     /**
      * Storage of all InputListeners
      */
-    private static Map<ServerSideConnection, DataStream> serverDatas;
+    private static final Map<ServerSideConnection, DataStream> serverDatas = new ConcurrentHashMap<>();
     /**
      * Storage of all ClientListeners
      */
-    private static Map<ClientSideConnection, DataStream> localDatas;
+    private static final Map<ClientSideConnection, DataStream> localDatas = new ConcurrentHashMap<>();
+    /**
+     * Bytes every datagram holding a server's info starts with
+     */
+    private static final byte[] SINFO = "sinfo".getBytes(StandardCharsets.US_ASCII);
     /**
      * Util buffers used for data transfer and handling
      */
-    private static ByteBuffer datagram, serverData, byteIn, portIn, serverDataVerify, intIn;
+    private static ByteBuffer datagram, serverInfoIn;
 
     /**
      * Constructs the class and all it's methods. Should only be run once
      */
     private NetEventHandler() {
-        if(SVC.isAlive()){return;}
+        if(started){return;}
+        synchronized (NetEventHandler.class) {
+            if(started){return;}
+            start();
+            started = true;
+        }
+    }
+    /**
+     * Starts the threads used to run all listeners
+     */
+    private static void start() {
         main = Thread.currentThread();
-        servers = new ArrayList();
-        serverReceiver = new ArrayList();
-        serverDatas = new HashMap();
-        removeableServerDatas = new ArrayList();
-        removeableClientDatas = new ArrayList();
-        removableServerReceivers = new ArrayList();
-        removeableServers = new ArrayList();
+        try {
+            selector = Selector.open();
+            loops = new EventLoop[Math.max(1, EVENT_LOOPS)];
+            for(int i = 0; i < loops.length; i++){
+                loops[i] = new EventLoop(i);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         datagram = ByteBuffer.allocate(Integer.BYTES);
-        byteIn = ByteBuffer.allocate(1);
-        localDatas = new HashMap();
-        portIn = ByteBuffer.allocate(2);
-        intIn = ByteBuffer.allocate(Integer.BYTES);
-        serverDataVerify = ByteBuffer.allocate("sinfo".getBytes().length);
+        serverInfoIn = ByteBuffer.allocate(65536);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             SVC.interrupt();
             done = true;
@@ -88,417 +189,226 @@ public class NetEventHandler {
             }
         });
         },"NetEventCloser"));
+        SVC.setDaemon(true);
         SVC.start();
     }
 
     /**
-     * Util method for checking all listeners
+     * Util method for checking all server sockets and udp ports. Sleeps until at least one registered channel is ready, then runs the events of only the ready channels
      */
-    static synchronized private void listenerCheck() {
+    private static void listenerCheck() {
         if(done){return;}
-        serverMemberUpdate();
-        if(done){return;}
-        dataStreamUpdate();
-        if(done){return;}
-        clientDataStreamUpdate();
-    }
-    /***
-     *  Checks through all registered {@link Server}s to fire all active events
-     */
-    private static synchronized void serverMemberUpdate() {
-        servers.forEach(s -> {
-            if(s.isOpen() && !done){
-                try {
-                    if (s.acceptingNewClients()) {
-                        SocketAddress add;
-                        SocketChannel c = s.getSocket().accept();
-                        while (c != null) {
-                            c.finishConnect();
-                            if (c.isOpen()) {
-                                ServerSideConnection tempC = s.createClient(c);
-                                s.clientConnectPreAuth(tempC);
-                                if (s.serverSideAuth(c)) {
-                                    s.addServerClient(tempC);
-                                    s.clientConnectPostAuth(tempC);
-                                } else {
-                                    c.close();
-                                }
-                            }
-                            try {
-                                c = s.getSocket().accept();
-                            } catch (Exception e) {
-                                c = null;
-                            }
-                        }
-                    }
-                    //ServerSideConnection[] disconnected = s.removedClients();
-                    //for (int i = 0; i < disconnected.length; i++) {
-                    //    int finalI = i;
-                    //    s.clientDisconnect(disconnected[finalI]);
-                    //}
-                } catch (IOException e) {
-                    if(NetEventHandler.DEV_VERSION){
-                        e.printStackTrace(System.out);
-                    }
-                }
+        Runnable registration;
+        while((registration = pendingRegistrations.poll()) != null){
+            registration.run();
+        }
+        try {
+            selector.select();
+        } catch (IOException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
             }
-            if (s.isOpen() && s.isPublic() && s.acceptingNewClients() && !done) {
-                SocketAddress a = null;
-                try {
-                    if ((a = s.getUdpPort().receive(datagram)) != null) {
-                        if (datagram.getInt(0) == s.getServerType()) {
-                            s.sendServerInfo(a);
-                        }
-                        datagram.clear();
-                    }
-                } catch (Exception ex) {
-                    if(NetEventHandler.DEV_VERSION){
-                        ex.printStackTrace(System.out);
-                    }
+            return;
+        }
+        Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+        while (ready.hasNext() && !done) {
+            SelectionKey key = ready.next();
+            ready.remove();
+            if(!key.isValid()){continue;}
+            if(key.attachment() instanceof Server s){
+                if(key.isAcceptable()){
+                    serverMemberUpdate(s);
+                }
+                else{
+                    serverInfoRequestUpdate(s);
                 }
             }
+            else if(key.attachment() instanceof ClientSideConnection c){
+                serverInfoUpdate(c);
+            }
+        }
+    }
+    /**
+     * Registers a channel with the {@link Selector} on the accepting thread, waking it so the registration is applied immediately
+     * @param c Channel to register
+     * @param ops Interest set the channel is registered for
+     * @param attachment Listener notified when the channel is ready
+     */
+    private static void register(SelectableChannel c, int ops, Object attachment){
+        pendingRegistrations.add(() -> {
+            try {
+                if(c.isOpen()) {
+                    c.register(selector, ops, attachment);
+                }
+            } catch (ClosedChannelException e) {}
         });
-        removeableServers.forEach(servers::remove);
-        removeableServers.clear();
+        selector.wakeup();
     }
     /***
-     *  Checks through all registered {@link ServerSideConnection}s to fire events
+     *  Accepts all clients waiting to join a registered {@link Server}
+     * @param s The {@link Server} whose socket is ready to accept
      */
-    private static synchronized void dataStreamUpdate(){
-        serverDatas.forEach((c, d) -> {
+    private static synchronized void serverMemberUpdate(Server s) {
+        if(s.isOpen() && !done){
             try {
-                if (!done && c.isConnected() && d.getDataSender().read(byteIn) != 0) {
-                    byte type = byteIn.get(0);
-                    byteIn.clear();
-                    switch (type) {
-                        case 0:
-                            try {
-                                c.receiveInt(d.readInt());
-                            } catch (IOException e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            break;
-                        case 1:
-                            try {
-                                c.receiveChar(d.readChar());
-                            } catch (IOException e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            break;
-                        case 2:
-                            try {
-                                c.receiveLong(d.readLong());
-                            } catch (IOException e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            break;
-                        case 3:
-                            try {
-                                c.receiveDouble(d.readDouble());
-                            } catch (IOException e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            break;
-                        case 4:
-                            try {
-                                c.receiveByte(d.readByte());
-                            } catch (IOException e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            break;
-                        case 5:
-                            try {
-                                c.receiveShort(d.readShort());
-                            } catch (IOException e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            break;
-                        case 6:
-                            try {
-                                c.receiveFloat(d.readFloat());
-                            } catch (IOException e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            break;
-                        case 7:
-                            try {
-                                c.receiveBool(d.readBool());
-                            } catch (IOException e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            break;
-                        case 8:
-                            try {
-                                c.receiveString(d.readString());
-                            } catch (Exception e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            break;
-                        case 9:
-                            try {
-                                c.receiveObject(d.readObject());
-                            } catch (Exception e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            break;
-                        case 11:
-                            try {
-                                c.server.clientDisconnect(c, d.readString());
-                                d.close();
-                                removeableServerDatas.add(c);
-                            } catch (Exception e) {
-                                if(NetEventHandler.DEV_VERSION){
-                                    e.printStackTrace(System.out);
-                                }
-                            }
-                            d.close();
-                            break;
-                        case 12:
-                            c.server.clientDisconnect(c, null);
-                            d.close();
-                            removeableServerDatas.add(c);
+                if (s.acceptingNewClients()) {
+                    SocketChannel c = s.getSocket().accept();
+                    while (c != null) {
+                        c.finishConnect();
+                        if (c.isOpen()) {
+                            ServerSideConnection tempC = s.createClient(c);
+                            tempC.serverSideConnection.loop.accept(s, tempC);
+                        }
+                        try {
+                            c = s.getSocket().accept();
+                        } catch (Exception e) {
+                            c = null;
+                        }
                     }
                 }
-            } catch (ClosedChannelException e){}
-            catch(SocketException e){
-                if(!done && d != null && c.getServer() != null){
-                    c.server.clientDisconnect(c, null);
-                    c.getServer().removeServerClient(c);
-                    removeableServerDatas.add(c);
-                }
-            }
-            catch (IOException e) {
+            } catch (IOException e) {
                 if(NetEventHandler.DEV_VERSION){
                     e.printStackTrace(System.out);
                 }
             }
-        });
-        removeableServerDatas.forEach(serverDatas::remove);
-        removeableServerDatas.clear();
+        }
+    }
+    /**
+     * Adds a client that has passed {@link Server#serverSideAuth(SocketChannel)} to its {@link Server}, firing the {@link Server}'s join events and starting to read the client's data
+     * @param s The {@link Server} the client connected to
+     * @param c The {@link ServerSideConnection} of the client
+     */
+    static void serverClientJoin(Server s, ServerSideConnection c) {
+        try {
+            s.addServerClient(c);
+        } catch (IOException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
+            }
+        }
+        s.clientConnectPostAuth(c);
+        s.stateSync.join(c);
+        c.serverSideConnection.loop.startReading(c.serverSideConnection);
     }
     /***
-     *  Checks through all registered {@link ClientSideConnection}s and their associated {@link DataStream}s to fire all active events
-     */
-    private static synchronized void clientDataStreamUpdate(){
-        localDatas.forEach((c, d) -> {
-                    try {
-                        if (!done && c.inServer() && d.getDataSender().read(byteIn) != 0) {
-                            byte type = byteIn.get(0);
-                            byteIn.clear();
-                            switch (type) {
-                                case 0:
-                                    try {
-                                        c.receiveInt(d.readInt());
-                                    } catch (IOException e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 1:
-                                    try {
-                                        c.receiveChar(d.readChar());
-                                    } catch (IOException e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 2:
-                                    try {
-                                        c.receiveLong(d.readLong());
-                                    } catch (IOException e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 3:
-                                    try {
-                                        c.receiveDouble(d.readDouble());
-                                    } catch (IOException e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 4:
-                                    try {
-                                        c.receiveByte(d.readByte());
-                                    } catch (IOException e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 5:
-                                    try {
-                                        c.receiveShort(d.readShort());
-                                    } catch (IOException e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 6:
-                                    try {
-                                        c.receiveFloat(d.readFloat());
-                                    } catch (IOException e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 7:
-                                    try {
-                                        c.receiveBool(d.readBool());
-                                    } catch (IOException e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 8:
-                                    try {
-                                        c.receiveString(d.readString());
-                                    } catch (Exception e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 9:
-                                    try {
-                                        c.receiveObject(d.readObject());
-                                    } catch (Exception e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 11:
-                                    try {
-                                        c.leaveServer(d.readString(), true);
-                                        removeLocalClient(c);
-                                    } catch (Exception e) {
-                                        if (NetEventHandler.DEV_VERSION) {
-                                            e.printStackTrace(System.out);
-                                        }
-                                    }
-                                    break;
-                                case 12:
-                                    c.leaveServer(null, true);
-                                    break;
-                            }
-                        }
-                    } catch (SocketException e) {
-                        try {
-                            c.leaveServer("The connection was forcibly closed from the other side", true);
-                        } catch (IOException ex) {
-                        }
-                    } catch (IOException e) {
-                        if (NetEventHandler.DEV_VERSION) {
-                            e.printStackTrace(System.out);
-                        }
-                    }
-                    if (c.inServer() && !d.isOpen()) {
-                        try {
-                            c.leaveServer("The connection was forcibly closed from the other side", true);
-                        } catch (IOException e) {
-                            if (NetEventHandler.DEV_VERSION) {
-                                e.printStackTrace(System.out);
-                            }
-                        }
-                    }
-                }
-            );
-            removeableClientDatas.forEach(u -> {
-                localDatas.remove(u);
-            });
-            removeableClientDatas.clear();
-            serverReceiver.forEach(c -> {try {
-                        SocketAddress a;
-                LinkedList<Byte> out = new LinkedList();
-                if (!done && (a = c.getUdpPort().receive(serverDataVerify)) != null) {
-                    if(new String(serverDataVerify.array()).equals("sinfo")) {
-                        serverDataVerify.clear();
-                        while(c.getUdpPort().receive(portIn) == null){}
-                        int port = ((portIn.array()[1] & 255) << Byte.SIZE) | (portIn.array()[0] & 255);
-                        portIn.clear();
-                        while(c.getUdpPort().receive(intIn) == null){}
-                        int temp = intIn.getInt(0);
-                        intIn.clear();
-                        serverData = ByteBuffer.allocate(temp);
-                        while (c.getUdpPort().receive(serverData) == null) {
-                        }
-                        byte[] serverDataArr = Arrays.copyOf(serverData.array(), serverData.position());
-                        serverData.clear();
-                        SocketAddress finalA = a;
-                            c.receiveServerInfo(new InetSocketAddress(((InetSocketAddress) finalA).getAddress(), port), serverDataArr);
+     *  Answers a client searching for public servers through a registered {@link Server}'s broadcast port
+     * @param s The {@link Server} whose broadcast port received a request
+     */
+    private static synchronized void serverInfoRequestUpdate(Server s) {
+        if (s.isOpen() && s.isPublic() && s.acceptingNewClients() && !done) {
+            SocketAddress a = null;
+            try {
+                while ((a = s.getUdpPort().receive(datagram)) != null) {
+                    if (datagram.getInt(0) == s.getServerType()) {
+                        s.sendServerInfo(a);
                     }
+                    datagram.clear();
                 }
             } catch (Exception ex) {
                 if(NetEventHandler.DEV_VERSION){
                     ex.printStackTrace(System.out);
                 }
             }
+        }
+    }
+    /***
+     *  Receives the info of public servers that answered a registered {@link ClientSideConnection}'s search. Each answer is a single datagram holding "sinfo", the server's port, the length of its info and the info, see {@link Server#sendServerInfo(SocketAddress)}; datagrams that are not whole answers are ignored.
+     * @param c The {@link ClientSideConnection} whose udp port received data
+     */
+    private static synchronized void serverInfoUpdate(ClientSideConnection c){
+        try {
+            SocketAddress a;
+            while (!done && (a = c.getUdpPort().receive(serverInfoIn.clear())) != null) {
+                serverInfoIn.flip();
+                if(serverInfoIn.remaining() < SINFO.length + 2 + Integer.BYTES || !serverInfoIn.slice(0, SINFO.length).equals(ByteBuffer.wrap(SINFO))){continue;}
+                serverInfoIn.position(SINFO.length);
+                int port = (serverInfoIn.get() & 255) | ((serverInfoIn.get() & 255) << Byte.SIZE);
+                int length = serverInfoIn.getInt();
+                if(length < 0 || length != serverInfoIn.remaining()){continue;}
+                byte[] serverDataArr = new byte[length];
+                serverInfoIn.get(serverDataArr);
+                c.receiveServerInfo(new InetSocketAddress(((InetSocketAddress) a).getAddress(), port), serverDataArr);
+            }
+        } catch (Exception ex) {
+            if(NetEventHandler.DEV_VERSION){
+                ex.printStackTrace(System.out);
+            }
+        }
+    }
+    /**
+     * Returns whether all currently running programs are ending
+     * @return Whether all currently running programs are ending
+     */
+    static boolean isDone() {
+        return done;
+    }
+    /**
+     * Returns the {@link EventLoop} currently owning the fewest connections
+     * @return The least loaded {@link EventLoop}
+     */
+    private static EventLoop leastLoadedLoop() {
+        if(loops == null){
+            new NetEventHandler();
+        }
+        EventLoop out = loops[0];
+        for(int i = 1; i < loops.length; i++){
+            if(loops[i].getLoad() < out.getLoad()){
+                out = loops[i];
             }
-            );
-        removableServerReceivers.forEach(serverReceiver::remove);
-        removableServerReceivers.clear();
+        }
+        return out;
+    }
+    /**
+     * Returns the {@link EventLoop} that a {@link Server}'s {@link UnreliableChannel} should receive its datagrams on
+     * @return The least loaded {@link EventLoop}
+     */
+    static EventLoop datagramLoop() {
+        return leastLoadedLoop();
     }
     public static DataStream registerServerClient(ServerSideConnection s){
         new NetEventHandler();
-        serverDatas.put(s, new DataStream(s.connection));
-        return serverDatas.get(s);
+        DataStream d = new DataStream(s.connection, s, leastLoadedLoop());
+        serverDatas.put(s, d);
+        return d;
     }
     public static DataStream registerLocalClient(ClientSideConnection s, SocketChannel in){
         new NetEventHandler();
-        localDatas.put(s, new DataStream(in));
-        return localDatas.get(s);
+        DataStream d = new DataStream(in, s, leastLoadedLoop());
+        localDatas.put(s, d);
+        d.loop.register(d);
+        return d;
     }
     public static void removeServerClient(ServerSideConnection s){
-        removeableServerDatas.add(s);
+        serverDatas.remove(s);
     }
     public static void removeLocalClient(ClientSideConnection s){
-        removeableClientDatas.add(s);
+        localDatas.remove(s);
     }
+    /**
+     * Registers a {@link Server}, or updates its registration after its socket or broadcast port has been reopened
+     * @param s {@link Server} to register
+     */
     public static void registerServer(Server s){
         new NetEventHandler();
-        if(!servers.contains(s)) {
-            servers.add(s);
+        servers.add(s);
+        if(s.getSocket() != null){
+            register(s.getSocket(), SelectionKey.OP_ACCEPT, s);
+        }
+        if(s.getUdpPort() != null){
+            register(s.getUdpPort(), SelectionKey.OP_READ, s);
         }
     }
 
     public static void removeServer(Server s) {
-        removeableServers.add(s);
+        servers.remove(s);
     }
     public static void registerServerDataReceiver(ClientSideConnection s){
         new NetEventHandler();
         serverReceiver.add(s);
+        register(s.getUdpPort(), SelectionKey.OP_READ, s);
     }
     public static void removeServerDataReceiver(ClientSideConnection s){
-        removableServerReceivers.add(s);
+        serverReceiver.remove(s);
     }
 
     /**
@@ -508,387 +418,2169 @@ public class NetEventHandler {
     public static class DataStream{
         protected final SocketChannel stored;
         /**
-         * Whether the connection is open
+         * The {@link ServerSideConnection} or {@link ClientSideConnection} that the DataStream fires events for
          */
-        protected boolean open;
+        protected final Object owner;
         /**
-         * {@link ByteBuffer}s for use of reading and writing data
+         * The {@link EventLoop} that owns the DataStream
          */
-        protected final ByteBuffer intSend = ByteBuffer.allocate(Integer.BYTES), charSend = ByteBuffer.allocate(Character.BYTES), longSend = ByteBuffer.allocate(Long.BYTES), doubleSend = ByteBuffer.allocate(Double.BYTES), byteSend = ByteBuffer.allocate(1), shortSend = ByteBuffer.allocate(Short.BYTES), floatSend = ByteBuffer.allocate(Float.BYTES), booleanSend = ByteBuffer.allocate(1);
+        protected final EventLoop loop;
         /**
-         * The associated {@link ObjectOutputStream}
+         * Queue the connection's events are fired through when {@link #CALLBACK_EXECUTOR} is set (null when events are fired directly on the {@link EventLoop})
          */
-        protected final ObjectOutputStream objectOut;
+        protected final Executor events;
         /**
-         * The associated {@link PipedInputStream}
+         * Whether the connection is open
          */
-        protected final PipedInputStream pipeIn;
+        protected volatile boolean open;
         /**
-         * The associated {@link ObjectInputStream}
+         * Messages that have been encoded but not yet sent, see {@link #flush()}. Taken from the {@link BufferPool}, and given back (leaving this null) once the connection has closed and everything queued has been sent.
          */
-        protected final ObjectInputStream objectIn;
+        protected ByteBuffer sendBuffer;
         /**
-         * The associated {@link PipedOutputStream}
+         * Whether the {@link EventLoop} has been asked to send the send buffer
          */
-        protected final PipedOutputStream byteOut;
+        private boolean flushScheduled;
         /**
-         * Initializes the DataStream
-         * @param in Input source used by the DataStream
+         * The associated {@link ObjectOutputStream}, created when the first {@link Object} is sent
          */
-        private DataStream(SocketChannel in){
-            this.stored = in;
-            open = true;
-            try {
-                byteOut = new PipedOutputStream();
-                PipedInputStream tempIn = new PipedInputStream(byteOut);
-                new ObjectOutputStream(byteOut);
-                objectIn = new ObjectInputStream(tempIn);
-                pipeIn = new PipedInputStream();
-                objectOut = new ObjectOutputStream(new PipedOutputStream(pipeIn));
-                new ObjectInputStream(pipeIn);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        protected ObjectOutputStream objectOut;
         /**
-         * Sends an {@link Integer} through the associated {@link ObjectOutputStream}
-         * @param in {@link Integer} value that was received from the connection
-         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         * Buffer that {@link Object}s are serialized into before being sent, so that their length can be sent in front of them
          */
-        synchronized public void sendInt(int in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            stored.write(ByteBuffer.wrap(new byte[]{0}));
-            intSend.putInt(0, in);
-            stored.write(intSend);
-            intSend.clear();
-        }
+        private final FrameBuffer objectBytes;
         /**
-         * Sends a {@link Character} through the associated {@link ObjectOutputStream}
-         * @param in {@link Character} that was received from the connection
-         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         * {@link DataOutput} over {@link #objectBytes} that the {@link Serializer} writes to
          */
-        synchronized public void sendChar(char in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            stored.write(ByteBuffer.wrap(new byte[]{1}));
-            charSend.putChar(0, in);
-            stored.write(charSend);
-            charSend.clear();}
+        private final DataOutputStream objectData;
         /**
-         * Sends a {@link Long} through the associated {@link ObjectOutputStream}
-         * @param in {@link Long} value that was received from the connection
-         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         * {@link Serializer} of the owner's type of connection, see {@link Server#getSerializer()} and {@link ClientSideConnection#getSerializer()}
          */
-        synchronized public void sendLong(long in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            stored.write(ByteBuffer.wrap(new byte[]{2}));
-            longSend.putLong(0, in);
-            stored.write(longSend);
-            longSend.clear();
-        }
+        private final Serializer serializer;
         /**
-         * Sends a {@link Double} through the associated {@link ObjectOutputStream}
-         * @param in {@link Double} value that was received from the connection
-         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         * {@link MessageRegistry} of the owner's type of connection, see {@link Server#getMessageRegistry()} and {@link ClientSideConnection#getMessageRegistry()}
          */
-        synchronized public void sendDouble(double in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            stored.write(ByteBuffer.wrap(new byte[]{3}));
-            doubleSend.putDouble(0, in);
-            stored.write(doubleSend);
-            doubleSend.clear();
-        }
+        private final MessageRegistry messages;
         /**
-         * Sends a {@link Byte} through the associated {@link ObjectOutputStream}
-         * @param in {@link Byte} value that was received from the connection
-         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         * Data that could not be sent yet because the connection's send buffer was full, oldest first. This is sent by the {@link EventLoop} once the connection is ready for more. Holds {@link ByteBuffer}s, {@link SharedFrame.View}s of messages shared with other connections, and a {@link FileTransfer} for the chunk of a file being sent.
          */
-        synchronized public void sendByte(byte in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            stored.write(ByteBuffer.wrap(new byte[]{4}));
-            byteSend.put(0, in);
-            stored.write(byteSend);
-            byteSend.clear();
-        }
+        private final ArrayDeque<Object> outbound;
         /**
-         * Sends a {@link Short} through the associated {@link ObjectOutputStream}
-         * @param in {@link Short} value that was received from the connection
-         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         * Files waiting for their next chunk to be sent, in the order their chunks take turns
          */
-        synchronized public void sendShort(short in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            stored.write(ByteBuffer.wrap(new byte[]{5}));
-            shortSend.putShort(0, in);
-            stored.write(shortSend);
-            shortSend.clear();
-        }
+        private final ArrayDeque<FileTransfer> files;
         /**
-         * Sends a {@link Float} through the associated {@link ObjectOutputStream}
-         * @param in {@link Float} value that was received from the connection
-         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         * Whether a chunk of a file is in {@link #outbound}. Only one chunk is queued at a time so that files are sent no faster than the connection can take them.
          */
-        synchronized public void sendFloat(float in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            stored.write(ByteBuffer.wrap(new byte[]{6}));
-            floatSend.putFloat(0, in);
-            stored.write(floatSend);
-            floatSend.clear();
-        }
+        private boolean chunkQueued;
         /**
-         * Sends a {@link Boolean} through the associated {@link ObjectOutputStream}
-         * @param in {@link Boolean} value that was received from the connection
-         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         * Number of the next file sent
          */
-        synchronized public void sendBool(boolean in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            stored.write(ByteBuffer.wrap(new byte[]{7}));
-            if(in){booleanSend.put(0, (byte) 1);}else{booleanSend.put(0, (byte) 0);}
-            stored.write(booleanSend);
-            booleanSend.clear();
-        }
+        private int nextFileId;
         /**
-         * Sends a {@link String} through the associated {@link ObjectOutputStream}
-         * @param in {@link String} that was received from the connection
-         * @throws IOException Any exception thrown by the underlying {@link OutputStream}.
-         * @throws InvalidClassException Something is wrong with a class used by serialization.
+         * Files being received, by the number the other side gave them
          */
-        synchronized public void sendString(String in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            stored.write(ByteBuffer.wrap(new byte[]{8}));
-            intSend.putInt(0, in.length());
-            stored.write(intSend);
-            intSend.clear();
-            for(int i = 0; i < in.length(); i++){
-                charSend.putChar(0, in.charAt(i));
-                stored.write(charSend);
-                charSend.clear();
-            }
-        }
+        private final Map<Integer, IncomingFile> incoming;
         /**
-         * Sends an {@link Object} through the associated {@link ObjectOutputStream}
-         * @param in {@link Object} to be sent through the stream
-         * @throws IOException Any exception thrown by the underlying {@link OutputStream}.
-         * @throws InvalidClassException Something is wrong with a class used by serialization.
+         * Futures of the calls made through the connection that have not been answered yet, by the number identifying the call
          */
-        synchronized public void sendObject(Object in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            objectOut.writeObject(in);
-            objectOut.flush();
-            byte temp = 0, ind = Byte.SIZE-1;
-            if(pipeIn.available() == 0){return;}
-            byte i;
-            for(i = (byte)pipeIn.read();; i = (byte)pipeIn.read()){
-                byteSend.put(0, (byte)((((255&i)<<(Byte.SIZE-1-ind))&~(1<<Byte.SIZE-1))|temp));
-                temp=(byte)((255&i)>>(ind--));
-                stored.write(byteSend);
-                byteSend.clear();
-                if(ind == 0){
-                    byteSend.put(0, temp);
-                    stored.write(byteSend);
-                    byteSend.clear();
-                    ind = Byte.SIZE-1;
-                    temp = 0;
-                }
-                if(pipeIn.available() == 0){break;}
-            }
-            if(ind == 1){
-                byteSend.put(0, (byte)(((255&i)<<(Byte.SIZE-1-ind))|temp|(1<<Byte.SIZE-1)));
-            }
-            else{
-                byteSend.put(0, (byte)(((255&i)<<(Byte.SIZE-1-ind))|temp));
-                temp=(byte)(((255&i)>>ind)|(1<<Byte.SIZE-1));
-                stored.write(byteSend);
-                byteSend.clear();
-                byteSend.put(0, temp);
-            }
-            stored.write(byteSend);
-            byteSend.clear();
-        }
-
+        private final Map<Integer, CompletableFuture<Object>> calls;
         /**
-         * Util method for closing DataStreams, you should not have to use this
-         * @param in Reason for closing
-         * @throws IOException If any I/O errors occur
+         * Number of the next call made
          */
-        public void sendCloseUpdate(String in) throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            if(in == null) {
-                stored.write(ByteBuffer.wrap(new byte[]{12}));
-            }
-            else{
-                stored.write(ByteBuffer.wrap(new byte[]{11}));
-                intSend.putInt(0, in.length());
-                stored.write(intSend);
-                intSend.clear();
-                for(int i = 0; i < in.length(); i++){
-                    charSend.putChar(0, in.charAt(i));
-                    stored.write(charSend);
-                    charSend.clear();
-                }
-            }
-        }
+        private int nextCallId;
         /**
-         * Receives an {@link Integer} through the associated {@link ObjectOutputStream} (Freezing the thread until one is available if it isn't already)
-         * @return An {@link Integer} received through the DataStream
-         * @throws IOException If an I/O error occurs while reading from the underlying stream.
+         * Util array used to send several queued {@link ByteBuffer}s at once
          */
-        synchronized public int readInt() throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            int i = 0;
-            while(i < Integer.BYTES){
-                i+=stored.read(intSend);
-            }
-            int out = intSend.getInt(0);
-            intSend.clear();
-            return out;
-        }
+        private final ByteBuffer[] gather;
         /**
-         * Receives an {@link Character} through the associated {@link ObjectOutputStream} (Freezing the thread until one is available if it isn't already)
-         * @return A {@link Character} received through the DataStream
-         * @throws IOException If an I/O error occurs while reading from the underlying stream.
+         * Number of bytes in {@link #outbound}
          */
-        synchronized public char readChar() throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            int i = 0;
-            while(i < Character.BYTES){
-                i+=stored.read(charSend);
-            }
-            char out = charSend.getChar(0);
-            charSend.clear();
-            return out;
-        }
+        private long pendingBytes;
         /**
-         * Receives an {@link Double} through the associated {@link ObjectOutputStream} (Freezing the thread until one is available if it isn't already)
-         * @return An {@link Double} received through the DataStream
-         * @throws IOException If an I/O error occurs while reading from the underlying stream.
+         * Whether data can be sent without building up past {@link #WRITE_HIGH_WATER_MARK}
          */
-        synchronized public double readDouble() throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            int i = 0;
-            while(i < Double.BYTES){
-                i+=stored.read(doubleSend);
-            }
-            double out = doubleSend.getDouble(0);
-            doubleSend.clear();
-            return out;}
+        protected volatile boolean writable;
         /**
-         * Receives an {@link Long} through the associated {@link ObjectOutputStream} (Freezing the thread until one is available if it isn't already)
-         * @return An {@link Long} received through the DataStream
-         * @throws IOException If an I/O error occurs while reading from the underlying stream.
+         * Whether the connection should be closed once all queued data has been sent
          */
-        synchronized public long readLong() throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            int i = 0;
-            while(i < Long.BYTES){
-                i+=stored.read(longSend);
-            }
-            long out = longSend.getLong(0);
-            longSend.clear();
-            return out;
-        }
+        private boolean closeWhenSent;
         /**
-         * Receives an {@link Byte} through the associated {@link ObjectOutputStream} (Freezing the thread until one is available if it isn't already)
-         * @return An {@link Byte} received through the DataStream
-         * @throws IOException If an I/O error occurs while reading from the underlying stream.
+         * The {@link Compression} chosen by the owner
          */
-        synchronized public byte readByte() throws IOException {
-            if(!open){throw new IOException("The DataStream is closed");}
-            int i = 0;
-            while(i < Byte.BYTES){
-                i+=stored.read(byteSend);
-            }
-            byte out = byteSend.get(0);
-            byteSend.clear();
-            return out;
-        }
+        private final Compression compression;
         /**
-         * Receives an {@link Short} through the associated {@link ObjectOutputStream} (Freezing the thread until one is available if it isn't already)
+         * The {@link Compression} used for sent messages, which stays {@link Compression#NONE} until the other side has agreed to it
+         */
+        private volatile Compression sending;
+        /**
+         * Util array that messages are compressed into
+         */
+        private byte[] packed;
+        /**
+         * Util buffer that compressed messages are decompressed into, which stands in for {@link #received} while the message is read
+         */
+        private ByteBuffer inflated;
+        /**
+         * The receive buffer while a decompressed message is being read from {@link #inflated}, otherwise null
+         */
+        private ByteBuffer compressedSource;
+        /**
+         * How the number whose type was just read was sent: {@link #FIXED}, {@link #VARINT}, or {@link #PACKED} into its type
+         */
+        private int numberForm;
+        /**
+         * The value of an {@link Integer} that was packed into its type
+         */
+        private int packedValue;
+        /**
+         * Form of a number sent in full, see {@link #numberForm}
+         */
+        private static final int FIXED = 0;
+        /**
+         * Form of a number sent as a varint, see {@link #numberForm}
+         */
+        private static final int VARINT = 1;
+        /**
+         * Form of an {@link Integer} packed into its type, see {@link #numberForm}
+         */
+        private static final int PACKED = 2;
+        /**
+         * The latest version of the {@link Server}'s shared state received, encoded
+         */
+        private byte[] state;
+        /**
+         * Number of {@link #state}'s version, or -1 if no state has been received
+         */
+        private long stateVersion = -1;
+        /**
+         * The channel datagrams are sent and received through alongside the connection, see {@link UnreliableChannel}, or null if none has been opened
+         */
+        volatile UnreliableChannel unreliable;
+        /**
+         * Session token identifying the connection's datagrams, or 0 if no {@link UnreliableChannel} has been opened
+         */
+        volatile long unreliableToken;
+        /**
+         * Where the connection's datagrams are sent: for a {@link Server}, wherever the client's latest datagram came from (null until one arrives), and for a client, the {@link Server}'s {@link UnreliableChannel}
+         */
+        volatile SocketAddress unreliablePeer;
+        /**
+         * Sequence number of the latest datagram sent
+         */
+        private final AtomicInteger unreliableSent = new AtomicInteger();
+        /**
+         * Sequence number of the latest datagram received, datagrams arriving after a later one are dropped. This is only used by the thread receiving the connection's datagrams.
+         */
+        private int unreliableReceived;
+        /**
+         * The lane all of the connection's data goes through once its {@link Server} has moved it onto {@link Transport#UDP}, or null while it uses {@link Transport#TCP}
+         */
+        volatile ReliableLane lane;
+        /**
+         * Whether sent data goes to {@link #lane} instead of the TCP stream, which it does once everything sent before the switch has left
+         */
+        private boolean laneOut;
+        /**
+         * Whether received data is read from {@link #lane} instead of the TCP stream, which it is once the other side has said it switched. This is only used by the {@link EventLoop}.
+         */
+        private boolean laneIn;
+        /**
+         * Util buffer the TCP stream is read into once data is received through {@link #lane}, which only finds out whether the other side has closed the connection
+         */
+        private ByteBuffer probe;
+        /**
+         * Entry of {@link #outbound} after which sent data goes to {@link #lane}
+         */
+        private static final Object TO_LANE = new Object();
+        /**
+         * Bytes that have been received but not yet read. Between reads this holds the start of any message that has only partially arrived. Taken from the {@link BufferPool}, and given back (leaving this null) by the {@link EventLoop} once the connection has closed.
+         */
+        protected ByteBuffer received;
+        /**
+         * The associated {@link ObjectInputStream}, created when the first {@link Object} is received
+         */
+        protected ObjectInputStream objectIn;
+        /**
+         * Stream that {@link #objectIn} reads each received {@link Object} message through
+         */
+        private final FrameInputStream objectFrame;
+        /**
+         * {@link DataInput} over {@link #objectFrame} that the {@link Serializer} reads from
+         */
+        private final DataInputStream frameData;
+        /**
+         * Initializes the DataStream
+         * @param in Input source used by the DataStream
+         * @param owner The {@link ServerSideConnection} or {@link ClientSideConnection} that the DataStream fires events for
+         * @param loop The {@link EventLoop} that owns the DataStream
+         */
+        private DataStream(SocketChannel in, Object owner, EventLoop loop){
+            this.stored = in;
+            this.owner = owner;
+            this.loop = loop;
+            this.events = CALLBACK_EXECUTOR == null ? null : new SerialExecutor(CALLBACK_EXECUTOR);
+            open = true;
+            received = BufferPool.acquire(RECEIVE_BUFFER_SIZE).flip();
+            sendBuffer = BufferPool.acquire(SEND_BUFFER_SIZE);
+            outbound = new ArrayDeque<>();
+            files = new ArrayDeque<>();
+            incoming = new ConcurrentHashMap<>();
+            calls = new ConcurrentHashMap<>();
+            gather = new ByteBuffer[16];
+            writable = true;
+            objectBytes = new FrameBuffer(1024);
+            objectData = new DataOutputStream(objectBytes);
+            objectFrame = new FrameInputStream();
+            frameData = new DataInputStream(objectFrame);
+            sending = Compression.NONE;
+            packed = new byte[0];
+            if(owner instanceof ServerSideConnection c){
+                serializer = c.server.getSerializer();
+                messages = c.server.getMessageRegistry();
+                compression = c.server.getCompression();
+            }
+            else if(owner instanceof ClientSideConnection c){
+                serializer = c.getSerializer();
+                messages = c.getMessageRegistry();
+                compression = c.getCompression();
+            }
+            else{
+                serializer = null;
+                messages = null;
+                compression = Compression.NONE;
+            }
+        }
+        /**
+         * Sends data through the connection, queueing whatever the connection cannot take right away to be sent by the {@link EventLoop} once it is ready. Data is always sent in the order it was given.
+         * @param data Data to send, which may be reused once this returns
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        private void write(ByteBuffer data) throws IOException {
+            if(outbound.isEmpty()){
+                out().write(data);
+                if(!data.hasRemaining()){return;}
+                wantWrite();
+            }
+            int length = data.remaining();
+            outbound.add(BufferPool.acquire(length).put(data).flip());
+            queued(length);
+        }
+        /**
+         * Sends a message shared with other connections, see {@link Server#broadcast(Object)}. Messages that fit in the send buffer are copied into it to leave with the messages around them, larger ones are sent straight from the shared buffer, which is held while any of it is waiting to be sent.
+         * @param frame The message
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized void sendShared(SharedFrame frame) throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            if(frame.type == 16){
+                objectOut = null;
+            }
+            SharedFrame f = frame.compressed(sending);
+            int length = f.length();
+            if(length <= sendBuffer.remaining()){
+                f.copyTo(buffer(length));
+                return;
+            }
+            flush();
+            ByteBuffer view = f.view();
+            if(outbound.isEmpty()){
+                try {
+                    out().write(view);
+                } catch (IOException e) {
+                    f.release();
+                    throw e;
+                }
+                if(!view.hasRemaining()){
+                    f.release();
+                    return;
+                }
+                wantWrite();
+            }
+            outbound.add(new SharedFrame.View(f, view));
+            queued(view.remaining());
+        }
+        /**
+         * Returns where sent data goes
+         * @return {@link #lane} once sent data goes through it, otherwise the TCP stream
+         */
+        private GatheringByteChannel out() {
+            return laneOut ? lane : stored;
+        }
+        /**
+         * Has queued data sent as soon as wherever it goes is ready for more, see {@link #out()}
+         */
+        private void wantWrite() {
+            if(laneOut){
+                lane.wakeWhenReady();
+            }
+            else{
+                loop.wantWrite(this);
+            }
+        }
+        /**
+         * Checks whether sent data goes to {@link #lane}, so that the {@link EventLoop} stops waiting for the TCP stream to be ready for more
+         * @return Whether sent data goes to {@link #lane}
+         */
+        synchronized boolean sendsThroughLane() {
+            return laneOut;
+        }
+        /**
+         * Counts data added to {@link #outbound}, which stops the connection being writable once too much is waiting
+         * @param length Number of bytes added
+         */
+        private void queued(int length) {
+            pendingBytes += length;
+            if(writable && pendingBytes >= WRITE_HIGH_WATER_MARK){
+                setWritable(false);
+            }
+        }
+        /**
+         * Returns the data of an entry of {@link #outbound} that is sent from a buffer
+         * @param o The entry, or null
+         * @return The buffer the entry is sent from, or null if it is not sent from a buffer
+         */
+        private static ByteBuffer queuedBuffer(Object o) {
+            if(o instanceof ByteBuffer b){return b;}
+            if(o instanceof SharedFrame.View v){return v.buffer;}
+            return null;
+        }
+        /**
+         * Gives back the buffer of an entry of {@link #outbound} that is no longer needed, to the {@link BufferPool} or the {@link SharedFrame} it views
+         * @param o The entry
+         */
+        private static void releaseQueued(Object o) {
+            if(o instanceof ByteBuffer b){
+                BufferPool.release(b);
+            }
+            else if(o instanceof SharedFrame.View v){
+                v.frame.release();
+            }
+        }
+        /**
+         * Sends as much queued data as the connection can take. Called by the {@link EventLoop} when the connection is ready for more data, or when {@link #lane} has room for more. A connection closing once everything has been sent also waits for {@link #lane} to have everything acknowledged.
+         * @return Whether all queued data has been sent
+         * @throws IOException If an I/O error occurs while writing to the underlying stream. All queued data is dropped when this happens.
+         */
+        synchronized boolean writeQueued() throws IOException {
+            try {
+                while(true){
+                    pumpFiles();
+                    if(outbound.isEmpty()){break;}
+                    if(outbound.peek() == TO_LANE){
+                        outbound.poll();
+                        laneOut = true;
+                        continue;
+                    }
+                    long written;
+                    if(outbound.peek() instanceof FileTransfer f){
+                        written = f.file.transferTo(f.position - f.chunkRemaining, f.chunkRemaining, out());
+                        if(written == 0 && f.position - f.chunkRemaining >= f.file.size()){
+                            abortFile(f);
+                            continue;
+                        }
+                        f.chunkRemaining -= written;
+                        if(f.chunkRemaining == 0){
+                            outbound.poll();
+                            chunkQueued = false;
+                            if(f.remaining == 0){
+                                f.finish();
+                            }
+                        }
+                    }
+                    else{
+                        int count = 0;
+                        for(Object o : outbound){
+                            ByteBuffer b = queuedBuffer(o);
+                            if(count == gather.length || b == null){break;}
+                            gather[count++] = b;
+                        }
+                        written = out().write(gather, 0, count);
+                        ByteBuffer head;
+                        while((head = queuedBuffer(outbound.peek())) != null && !head.hasRemaining()){
+                            releaseQueued(outbound.poll());
+                        }
+                    }
+                    pendingBytes -= written;
+                    if(written == 0){break;}
+                }
+            } catch (IOException e) {
+                releaseOutbound();
+                pendingBytes = 0;
+                cancelFiles();
+                if(closeWhenSent){
+                    closeWhenSent = false;
+                    releaseSendBuffer();
+                    closeChannels();
+                }
+                throw e;
+            } finally {
+                Arrays.fill(gather, null);
+            }
+            if(!writable && pendingBytes <= WRITE_LOW_WATER_MARK){
+                setWritable(true);
+            }
+            if(!outbound.isEmpty() && laneOut){
+                lane.wakeWhenReady();
+            }
+            if(outbound.isEmpty() && closeWhenSent){
+                if(laneOut && !lane.isFlushed()){
+                    lane.wakeWhenReady();
+                }
+                else{
+                    closeWhenSent = false;
+                    releaseSendBuffer();
+                    closeChannels();
+                }
+            }
+            return outbound.isEmpty();
+        }
+        /**
+         * Sends queued data once {@link #lane} is ready for more, see {@link ReliableLane#wakeWhenReady()}. Called on the {@link EventLoop}.
+         */
+        void writeLane() {
+            try {
+                writeQueued();
+            } catch (IOException e) {
+                if(DEV_VERSION){
+                    e.printStackTrace(System.out);
+                }
+            }
+        }
+        /**
+         * Closes the TCP stream, along with {@link #lane} and the connection's session on the {@link UnreliableChannel} it goes through
+         * @throws IOException If an I/O error occurs while closing the TCP stream
+         */
+        private void closeChannels() throws IOException {
+            ReliableLane l = lane;
+            if(l != null){
+                l.close();
+                unreliable.detach(this);
+            }
+            stored.close();
+        }
+        /**
+         * Drops everything queued, giving the queued buffers back to the {@link BufferPool}
+         */
+        private void releaseOutbound() {
+            outbound.forEach(DataStream::releaseQueued);
+            outbound.clear();
+        }
+        /**
+         * Gives the send buffer back to the {@link BufferPool} once the connection has closed and everything queued has been sent or dropped
+         */
+        private void releaseSendBuffer() {
+            BufferPool.release(sendBuffer);
+            sendBuffer = null;
+        }
+        /**
+         * Gives the receive buffer back to the {@link BufferPool}. Called by the {@link EventLoop} once the connection has closed, so it is never in the middle of reading from the buffer.
+         */
+        void releaseReceiveBuffer() {
+            endInflated();
+            BufferPool.release(received);
+            received = null;
+        }
+        /**
+         * Starts sending a file through the connection. The file is sent in chunks of at most {@link #FILE_CHUNK_SIZE} bytes that are copied from the file to the connection by the operating system using {@link FileChannel#transferTo(long, long, WritableByteChannel)}. Only one chunk is queued at a time, and only while less than {@link #WRITE_LOW_WATER_MARK} bytes are waiting to be sent, so messages sent while the file is being sent are sent between its chunks and files take turns with each other.
+         * @param file The file to send
+         * @param position Position in the file to start sending from
+         * @param length Number of bytes to send
+         * @param name Name of the file given to the other side
+         * @param close Whether to close the file once it has been sent
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendFile(FileChannel file, long position, long length, String name, boolean close) throws IOException {
+            if(position < 0 || length < 0){
+                throw new IllegalArgumentException("Negative position or length");
+            }
+            FileTransfer f = new FileTransfer(nextFileId++, file, position, length, close);
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            checkSize(Long.BYTES + nameBytes.length);
+            reserve(1 + 2 * Integer.BYTES + Long.BYTES).put((byte) 25).putInt(f.id).putLong(length).putInt(nameBytes.length);
+            putBuffer(ByteBuffer.wrap(nameBytes));
+            files.add(f);
+            pumpFiles();
+        }
+        /**
+         * Queues the next chunk of the file whose turn it is, if no chunk is queued and the connection is keeping up
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        private void pumpFiles() throws IOException {
+            if(chunkQueued || files.isEmpty() || pendingBytes >= WRITE_LOW_WATER_MARK){return;}
+            FileTransfer f = files.poll();
+            int length = (int) Math.min(FILE_CHUNK_SIZE, f.remaining);
+            buffer(1 + 2 * Integer.BYTES).put((byte) 26).putInt(f.id).putInt(length);
+            flush();
+            f.position += length;
+            f.remaining -= length;
+            if(f.remaining > 0){
+                files.add(f);
+            }
+            if(length == 0){
+                f.finish();
+                return;
+            }
+            f.chunkRemaining = length;
+            outbound.add(f);
+            pendingBytes += length;
+            chunkQueued = true;
+            wantWrite();
+        }
+        /**
+         * Stops sending a file that ended before all of it was sent. The rest of its current chunk is sent as zeros so the connection stays in step, followed by a message telling the other side the file failed.
+         * @param f The file, whose chunk is at the head of {@link #outbound}
+         */
+        private void abortFile(FileTransfer f) {
+            outbound.poll();
+            outbound.addFirst(ByteBuffer.allocate(1 + Integer.BYTES).put((byte) 27).putInt(f.id).flip());
+            outbound.addFirst(ByteBuffer.allocate((int) f.chunkRemaining));
+            pendingBytes += 1 + Integer.BYTES;
+            chunkQueued = false;
+            files.remove(f);
+            f.remaining = 0;
+            f.finish();
+        }
+        /**
+         * Stops receiving a file or stream the other side could not send in full. Called in order with the connection's events.
+         * @param id Number the other side gave the file
+         */
+        void abortFile(int id) {
+            IncomingFile f = incoming.remove(id);
+            if(f != null){
+                f.receiver.failed(new IOException("The sender stopped before sending all of it"));
+            }
+        }
+        /**
+         * Stops sending every file, closing the ones opened to be sent
+         */
+        private void cancelFiles() {
+            chunkQueued = false;
+            files.forEach(FileTransfer::finish);
+            files.clear();
+        }
+        /**
+         * Starts receiving a file on behalf of the connection. Called in order with the connection's events.
+         * @param id Number the other side gave the file
+         * @param receiver Where the file's chunks go, or null to ignore the file
+         * @param length Size of the file in bytes
+         */
+        void startFile(int id, FileReceiver receiver, long length) {
+            if(receiver == null){return;}
+            if(length == 0){
+                finishFile(receiver);
+                return;
+            }
+            incoming.put(id, new IncomingFile(receiver, length));
+        }
+        /**
+         * Hands a chunk of a file being received to its {@link FileReceiver}. Called in order with the connection's events.
+         * @param id Number the other side gave the file
+         * @param data The chunk
+         */
+        void fileChunk(int id, ByteBuffer data) {
+            IncomingFile f = incoming.get(id);
+            if(f == null){return;}
+            f.remaining -= data.remaining();
+            try {
+                f.receiver.receiveChunk(data);
+            } catch (IOException e) {
+                incoming.remove(id);
+                f.receiver.failed(e);
+                return;
+            }
+            if(f.remaining <= 0){
+                incoming.remove(id);
+                finishFile(f.receiver);
+            }
+        }
+        /**
+         * Fires a {@link FileReceiver}'s finished event
+         * @param receiver The {@link FileReceiver}
+         */
+        private static void finishFile(FileReceiver receiver) {
+            try {
+                receiver.finished();
+            } catch (IOException e) {
+                receiver.failed(e);
+            }
+        }
+        /**
+         * Fails every file being received. Called in order with the connection's events once the connection has closed.
+         */
+        private void failFiles() {
+            for(Integer id : incoming.keySet()){
+                IncomingFile f = incoming.remove(id);
+                if(f != null){
+                    f.receiver.failed(new IOException("The connection closed before the file was received"));
+                }
+            }
+        }
+        /**
+         * Starts sending a stream of data through the connection, see {@link ChunkedOutputStream}
+         * @param name Name of the stream given to the other side
+         * @return A {@link ChunkedOutputStream} sending the stream
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public ChunkedOutputStream openStream(String name) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            checkSize(Integer.BYTES + nameBytes.length);
+            int id = nextFileId++;
+            reserve(1 + 2 * Integer.BYTES).put((byte) 28).putInt(id).putInt(nameBytes.length);
+            putBuffer(ByteBuffer.wrap(nameBytes));
+            return new ChunkedOutputStream(this, id, FILE_CHUNK_SIZE);
+        }
+        /**
+         * Sends a chunk of a stream. If the connection is not writable this first waits until it is, unless called from the {@link EventLoop}, so a stream is sent no faster than the connection can take it.
+         * @param id Number of the stream
+         * @param data Array holding the chunk
+         * @param length Number of bytes in the chunk, from the start of data
+         * @throws IOException If the DataStream is closed, the wait is interrupted, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized void sendChunk(int id, byte[] data, int length) throws IOException {
+            while(!writable && open && !loop.inLoop()){
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the connection to become writable");
+                }
+            }
+            reserve(1 + 2 * Integer.BYTES).put((byte) 26).putInt(id).putInt(length);
+            putBuffer(ByteBuffer.wrap(data, 0, length));
+        }
+        /**
+         * Ends a stream
+         * @param id Number of the stream
+         * @param abort Whether the stream was abandoned, which fails it on the other side
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized void endStream(int id, boolean abort) throws IOException {
+            reserve(1 + Integer.BYTES).put((byte) (abort ? 27 : 29)).putInt(id);
+        }
+        /**
+         * Starts receiving a stream on behalf of the connection. Called in order with the connection's events.
+         * @param id Number the other side gave the stream
+         * @param receiver Where the stream's chunks go, or null to ignore the stream
+         */
+        void startStream(int id, FileReceiver receiver) {
+            if(receiver != null){
+                incoming.put(id, new IncomingFile(receiver, Long.MAX_VALUE));
+            }
+        }
+        /**
+         * Finishes receiving a stream the other side has ended. Called in order with the connection's events.
+         * @param id Number the other side gave the stream
+         */
+        void endStream(int id) {
+            IncomingFile f = incoming.remove(id);
+            if(f != null){
+                finishFile(f.receiver);
+            }
+        }
+        /**
+         * Changes whether the connection is writable, firing the owner's writabilityChanged event
+         * @param in Whether the connection is writable
+         */
+        private void setWritable(boolean in) {
+            writable = in;
+            if(in){
+                notifyAll();
+            }
+            loop.execute(() -> dispatch(() -> {
+                if(owner instanceof ServerSideConnection c){
+                    c.writabilityChanged(in);
+                }
+                else if(owner instanceof ClientSideConnection c){
+                    c.writabilityChanged(in);
+                }
+            }));
+        }
+        /**
+         * Checks whether data can be sent without building up past {@link #WRITE_HIGH_WATER_MARK}
+         * @return Whether the DataStream is writable
+         */
+        public boolean isWritable() {
+            return writable;
+        }
+        /**
+         * Makes room for a message in the send buffer, sending what the buffer already holds if the message does not fit. The buffer is sent automatically by the {@link EventLoop} once it has finished its current round of work, so a burst of messages leaves in a single write.
+         * @param bytes Number of bytes about to be added
+         * @return The send buffer
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while writing to the underlying stream.
+         */
+        private ByteBuffer reserve(int bytes) throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            return buffer(bytes);
+        }
+        /**
+         * Makes room for data in the send buffer like {@link #reserve(int)}, even if the DataStream has been closed. Used to finish sending what was sent before the DataStream closed.
+         * @param bytes Number of bytes about to be added
+         * @return The send buffer
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        private ByteBuffer buffer(int bytes) throws IOException {
+            if(sendBuffer == null){throw new ClosedChannelException();}
+            if(sendBuffer.remaining() < bytes){
+                flush();
+            }
+            if(!flushScheduled){
+                flushScheduled = true;
+                loop.scheduleFlush(this);
+            }
+            return sendBuffer;
+        }
+        /**
+         * Adds a {@link String} message to the send buffer. {@link String}s are sent as their length in bytes followed by their UTF-8 encoding, or one byte per character if every character fits in Latin-1 and that is shorter, encoded straight into the send buffer without copying the {@link String}. When {@link #LEGACY_STRINGS} is set the original two bytes per character format is used instead.
+         * @param in {@link String} to add
+         * @param legacy Type of the message in the original format
+         * @param utf8 Type of the message when UTF-8 encoded
+         * @param latin1 Whether the message may be sent as Latin-1 (as type 14)
+         * @throws IOException If the DataStream is closed, the message is larger than {@link #MAX_MESSAGE_SIZE}, or an I/O error occurs while writing to the underlying stream.
+         */
+        private void putString(String in, byte legacy, byte utf8, boolean latin1) throws IOException {
+            int length = in.length();
+            if(LEGACY_STRINGS){
+                checkStringSize((long) Character.BYTES * length);
+                reserve(1 + Integer.BYTES).put(legacy).putInt(length);
+                putChars(in);
+                return;
+            }
+            long bytes = length;
+            for(int i = 0; i < length; i++){
+                char ch = in.charAt(i);
+                if(ch < 0x80){continue;}
+                if(ch >= 0x100){latin1 = false;}
+                if(ch < 0x800){bytes += 1;}
+                else if(Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(in.charAt(i + 1))){bytes += 2; i++;}
+                else if(!Character.isSurrogate(ch)){bytes += 2;}
+            }
+            latin1 &= bytes > length;
+            checkStringSize(latin1 ? length : bytes);
+            if(latin1){
+                reserve(1 + Integer.BYTES).put((byte) 14).putInt(length);
+                for(int i = 0; i < length; i++){
+                    put((byte) in.charAt(i));
+                }
+                return;
+            }
+            reserve(1 + Integer.BYTES).put(utf8).putInt((int) bytes);
+            for(int i = 0; i < length; i++){
+                char ch = in.charAt(i);
+                if(sendBuffer.remaining() < 4){
+                    flush();
+                }
+                if(ch < 0x80){
+                    sendBuffer.put((byte) ch);
+                }
+                else if(ch < 0x800){
+                    sendBuffer.put((byte) (0xC0 | ch >> 6)).put((byte) (0x80 | ch & 0x3F));
+                }
+                else if(Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(in.charAt(i + 1))){
+                    int cp = Character.toCodePoint(ch, in.charAt(++i));
+                    sendBuffer.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F)).put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+                }
+                else if(Character.isSurrogate(ch)){
+                    sendBuffer.put((byte) '?');
+                }
+                else{
+                    sendBuffer.put((byte) (0xE0 | ch >> 12)).put((byte) (0x80 | ch >> 6 & 0x3F)).put((byte) (0x80 | ch & 0x3F));
+                }
+            }
+        }
+        /**
+         * Checks that a {@link String} message is small enough for the receiving side to accept, before any of it is added to the send buffer
+         * @param bytes Number of bytes the {@link String} is encoded into
+         * @throws ProtocolException If the message would be larger than {@link #MAX_MESSAGE_SIZE}
+         */
+        private static void checkStringSize(long bytes) throws ProtocolException {
+            if(bytes > MAX_MESSAGE_SIZE - 1 - Integer.BYTES){
+                throw new ProtocolException("Message is larger than the maximum message size");
+            }
+        }
+        /**
+         * Adds the characters of a {@link String} to the send buffer, sending the buffer whenever it fills up
+         * @param in {@link String} to add
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        private void putChars(String in) throws IOException {
+            for(int i = 0; i < in.length(); i++){
+                if(sendBuffer.remaining() < Character.BYTES){
+                    flush();
+                }
+                sendBuffer.putChar(in.charAt(i));
+            }
+        }
+        /**
+         * Adds a single byte to the send buffer, sending the buffer first if it is full
+         * @param in Byte to add
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        private void put(byte in) throws IOException {
+            if(!sendBuffer.hasRemaining()){
+                flush();
+            }
+            sendBuffer.put(in);
+        }
+        /**
+         * Sends everything in the send buffer right away instead of waiting for the {@link EventLoop} to send it
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void flush() throws IOException {
+            if(sendBuffer == null || sendBuffer.position() == 0){return;}
+            sendBuffer.flip();
+            try {
+                write(sendBuffer);
+            } finally {
+                sendBuffer.clear();
+            }
+        }
+        /**
+         * Sends the send buffer on behalf of the {@link EventLoop}, see {@link #reserve(int)}
+         */
+        synchronized void autoFlush() {
+            flushScheduled = false;
+            try {
+                flush();
+            } catch (IOException e) {
+                if(DEV_VERSION){
+                    e.printStackTrace(System.out);
+                }
+            }
+        }
+        /**
+         * Sends an {@link Integer} through the associated {@link ObjectOutputStream}
+         * @param in {@link Integer} value that was received from the connection
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendInt(int in) throws IOException {
+            if(COMPACT_NUMBERS){
+                int zigzag = in << 1 ^ in >> 31;
+                if(zigzag >>> 7 == 0){
+                    reserve(1).put((byte) (0x80 | zigzag));
+                    return;
+                }
+                if(zigzag >>> 21 == 0){
+                    putVarint(reserve(1 + 3).put((byte) 32), zigzag);
+                    return;
+                }
+            }
+            reserve(1 + Integer.BYTES).put((byte) 0).putInt(in);
+        }
+        /**
+         * Sends a {@link Character} through the associated {@link ObjectOutputStream}
+         * @param in {@link Character} that was received from the connection
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendChar(char in) throws IOException {
+            reserve(1 + Character.BYTES).put((byte) 1).putChar(in);
+        }
+        /**
+         * Sends a {@link Long} through the associated {@link ObjectOutputStream}
+         * @param in {@link Long} value that was received from the connection
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendLong(long in) throws IOException {
+            long zigzag = in << 1 ^ in >> 63;
+            if(COMPACT_NUMBERS && zigzag >>> 49 == 0){
+                ByteBuffer out = reserve(1 + 7).put((byte) 33);
+                while(zigzag >>> 7 != 0){
+                    out.put((byte) (zigzag | 0x80));
+                    zigzag >>>= 7;
+                }
+                out.put((byte) zigzag);
+                return;
+            }
+            reserve(1 + Long.BYTES).put((byte) 2).putLong(in);
+        }
+        /**
+         * Sends a {@link Double} through the associated {@link ObjectOutputStream}
+         * @param in {@link Double} value that was received from the connection
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendDouble(double in) throws IOException {
+            reserve(1 + Double.BYTES).put((byte) 3).putDouble(in);
+        }
+        /**
+         * Sends a {@link Byte} through the associated {@link ObjectOutputStream}
+         * @param in {@link Byte} value that was received from the connection
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendByte(byte in) throws IOException {
+            reserve(2).put((byte) 4).put(in);
+        }
+        /**
+         * Sends a {@link Short} through the associated {@link ObjectOutputStream}
+         * @param in {@link Short} value that was received from the connection
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendShort(short in) throws IOException {
+            int zigzag = in << 1 ^ in >> 31;
+            if(COMPACT_NUMBERS && zigzag >>> 7 == 0){
+                reserve(2).put((byte) 34).put((byte) zigzag);
+                return;
+            }
+            reserve(1 + Short.BYTES).put((byte) 5).putShort(in);
+        }
+        /**
+         * Adds a zigzag encoded number to the send buffer as a varint, seven bits to a byte starting from the lowest, with the top bit of every byte but the last set
+         * @param out The send buffer, with room for the varint
+         * @param zigzag The number, zigzag encoded so that numbers close to zero are small whatever their sign
+         */
+        private static void putVarint(ByteBuffer out, int zigzag) {
+            while(zigzag >>> 7 != 0){
+                out.put((byte) (zigzag | 0x80));
+                zigzag >>>= 7;
+            }
+            out.put((byte) zigzag);
+        }
+        /**
+         * Sends a {@link Float} through the associated {@link ObjectOutputStream}
+         * @param in {@link Float} value that was received from the connection
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendFloat(float in) throws IOException {
+            reserve(1 + Float.BYTES).put((byte) 6).putFloat(in);
+        }
+        /**
+         * Sends a {@link Boolean} through the associated {@link ObjectOutputStream}
+         * @param in {@link Boolean} value that was received from the connection
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendBool(boolean in) throws IOException {
+            reserve(2).put((byte) 7).put(in ? (byte) 1 : (byte) 0);
+        }
+        /**
+         * Sends a {@link String} through the associated {@link ObjectOutputStream}
+         * @param in {@link String} that was received from the connection
+         * @throws IOException Any exception thrown by the underlying {@link OutputStream}.
+         * @throws InvalidClassException Something is wrong with a class used by serialization.
+         */
+        synchronized public void sendString(String in) throws IOException {
+            if(sending != Compression.NONE && !LEGACY_STRINGS && in.length() >= COMPRESSION_THRESHOLD){
+                byte[] bytes = in.getBytes(StandardCharsets.UTF_8);
+                checkSize(bytes.length);
+                if(sendCompressed((byte) 13, ByteBuffer.wrap(bytes))){return;}
+            }
+            putString(in, (byte) 8, (byte) 13, true);
+        }
+        /**
+         * Sends an {@link Object} as a message of its class's number in the connection's {@link MessageRegistry} if its class is registered, otherwise through the connection's {@link Serializer}, or the associated {@link ObjectOutputStream} if the {@link Serializer} cannot write it. The {@link Object} is serialized into a reusable buffer and sent as one message, its length followed by the serialized bytes. The stream is reset before every {@link Object} so each message can be read on its own, and a new stream is started after a failed send, which the other side recognizes by its header.
+         * @param in {@link Object} to be sent through the stream
+         * @throws IOException Any exception thrown by the underlying {@link OutputStream}.
+         * @throws InvalidClassException Something is wrong with a class used by serialization.
+         */
+        synchronized public void sendObject(Object in) throws IOException {
+            reserve(1 + Integer.BYTES);
+            byte type = objectType(in);
+            try {
+                writeObject(in, type);
+                sendFrame(type);
+            } catch (IOException e) {
+                if(type == 16){
+                    objectOut = null;
+                }
+                throw e;
+            } finally {
+                objectBytes.clear();
+            }
+        }
+        /**
+         * Decides how an {@link Object} is sent, see {@link #sendObject(Object)}
+         * @param in The {@link Object}
+         * @return 18 if its class is registered in the connection's {@link MessageRegistry}, 17 if the connection's {@link Serializer} can write it, otherwise 16 for Java serialization
+         */
+        private byte objectType(Object in) {
+            return objectType(in, serializer, messages);
+        }
+        /**
+         * Decides how an {@link Object} is sent by a connection, see {@link #sendObject(Object)}
+         * @param in The {@link Object}
+         * @param serializer The connection's {@link Serializer}, or null
+         * @param messages The connection's {@link MessageRegistry}, or null
+         * @return 18 if its class is registered in the {@link MessageRegistry}, 17 if the {@link Serializer} can write it, otherwise 16 for Java serialization
+         */
+        static byte objectType(Object in, Serializer serializer, MessageRegistry messages) {
+            if(in != null && messages != null && messages.getId(in.getClass()) != -1){return 18;}
+            if(in != null && serializer != null && serializer.canSerialize(in.getClass())){return 17;}
+            return 16;
+        }
+        /**
+         * Serializes an {@link Object} into {@link #objectBytes}
+         * @param in The {@link Object}
+         * @param type How to serialize it, see {@link #objectType(Object)}
+         * @throws IOException Any exception thrown while serializing the {@link Object}
+         */
+        private void writeObject(Object in, byte type) throws IOException {
+            if(type == 18){
+                int id = messages.getId(in.getClass());
+                objectData.writeShort(id);
+                messages.codec(id).write(in, objectData);
+            }
+            else if(type == 17){
+                serializer.serialize(in, objectData);
+            }
+            else{
+                if(objectOut == null){
+                    objectOut = new ObjectOutputStream(objectBytes);
+                }
+                objectOut.reset();
+                objectOut.writeObject(in);
+                objectOut.flush();
+            }
+        }
+        /**
+         * Makes a call through the connection: sends a request that the other side answers with the handler registered for the request's class, completing the returned future with the answer. Each call is sent as its own type (38) holding a number identifying the call and the request, serialized the same way as {@link #sendObject(Object)}, and the answer comes back as another type (39) holding the same number, so any number of calls can wait for their answers at once and be answered in any order.
+         * @param request The request
+         * @param timeout Longest time (in milliseconds) to wait for the answer before the future fails with a {@link java.util.concurrent.TimeoutException}, or zero or less to wait until the connection closes. Timeouts are scheduled on a timer shared by every call.
+         * @return A future completed with the answer, or failed with a {@link RemoteCallException} if the call failed on the other side, or an {@link IOException} if the connection closes first. It is completed like the connection's events fire, on the {@link EventLoop} or through {@link #CALLBACK_EXECUTOR}.
+         * @throws IOException If the DataStream is closed, or the request could not be sent
+         */
+        synchronized public CompletableFuture<Object> call(Object request, long timeout) throws IOException {
+            reserve(1 + Integer.BYTES);
+            int id = nextCallId++;
+            while(calls.containsKey(id)){
+                id = nextCallId++;
+            }
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            byte type = objectType(request);
+            try {
+                objectData.writeInt(id);
+                objectData.writeByte(type);
+                writeObject(request, type);
+                calls.put(id, future);
+                sendFrame((byte) 38);
+            } catch (IOException e) {
+                calls.remove(id);
+                if(type == 16){
+                    objectOut = null;
+                }
+                throw e;
+            } finally {
+                objectBytes.clear();
+            }
+            int callId = id;
+            future.whenComplete((r, e) -> calls.remove(callId, future));
+            if(!open){
+                future.completeExceptionally(new IOException("The connection closed before the call was answered"));
+            }
+            else if(timeout > 0){
+                future.orTimeout(timeout, TimeUnit.MILLISECONDS);
+            }
+            return future;
+        }
+        /**
+         * Sends the answer to a call
+         * @param id Number of the call
+         * @param answer The answer
+         * @param failure Why the call failed, or null if it did not
+         */
+        private synchronized void answer(int id, Object answer, Throwable failure) {
+            if(!open){return;}
+            if(failure == null){
+                byte type = objectType(answer);
+                try {
+                    objectData.writeInt(id);
+                    objectData.writeByte(type);
+                    writeObject(answer, type);
+                    sendFrame((byte) 39);
+                    return;
+                } catch (IOException e) {
+                    if(type == 16){
+                        objectOut = null;
+                    }
+                    failure = e;
+                } finally {
+                    objectBytes.clear();
+                }
+            }
+            if(failure instanceof CompletionException && failure.getCause() != null){
+                failure = failure.getCause();
+            }
+            String reason = failure.toString();
+            try {
+                objectData.writeInt(id);
+                objectData.writeByte(0);
+                objectData.writeUTF(reason.length() > 1024 ? reason.substring(0, 1024) : reason);
+                sendFrame((byte) 39);
+            } catch (IOException e) {
+                if(DEV_VERSION){
+                    e.printStackTrace(System.out);
+                }
+            } finally {
+                objectBytes.clear();
+            }
+        }
+        /**
+         * Sends a byte array as a single message, copying it into the send buffer in bulk
+         * @param in Array to send
+         * @throws IOException If the array is larger than {@link #MAX_MESSAGE_SIZE}, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendBytes(byte[] in) throws IOException {
+            checkSize(in.length);
+            if(sendCompressed((byte) 19, ByteBuffer.wrap(in))){return;}
+            reserve(1 + Integer.BYTES).put((byte) 19).putInt(in.length);
+            putBuffer(ByteBuffer.wrap(in));
+        }
+        /**
+         * Sends a int array as a single message, copying it into the send buffer in bulk
+         * @param in Array to send
+         * @throws IOException If the array is larger than {@link #MAX_MESSAGE_SIZE}, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendInts(int[] in) throws IOException {
+            checkSize((long) in.length * Integer.BYTES);
+            reserve(1 + Integer.BYTES).put((byte) 20).putInt(in.length);
+            for(int i = 0; i < in.length;){
+                if(sendBuffer.remaining() < Integer.BYTES){
+                    flush();
+                }
+                int count = Math.min(in.length - i, sendBuffer.remaining() / Integer.BYTES);
+                sendBuffer.asIntBuffer().put(in, i, count);
+                sendBuffer.position(sendBuffer.position() + count * Integer.BYTES);
+                i += count;
+            }
+        }
+        /**
+         * Sends a long array as a single message, copying it into the send buffer in bulk
+         * @param in Array to send
+         * @throws IOException If the array is larger than {@link #MAX_MESSAGE_SIZE}, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendLongs(long[] in) throws IOException {
+            checkSize((long) in.length * Long.BYTES);
+            reserve(1 + Integer.BYTES).put((byte) 21).putInt(in.length);
+            for(int i = 0; i < in.length;){
+                if(sendBuffer.remaining() < Long.BYTES){
+                    flush();
+                }
+                int count = Math.min(in.length - i, sendBuffer.remaining() / Long.BYTES);
+                sendBuffer.asLongBuffer().put(in, i, count);
+                sendBuffer.position(sendBuffer.position() + count * Long.BYTES);
+                i += count;
+            }
+        }
+        /**
+         * Sends a float array as a single message, copying it into the send buffer in bulk
+         * @param in Array to send
+         * @throws IOException If the array is larger than {@link #MAX_MESSAGE_SIZE}, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendFloats(float[] in) throws IOException {
+            checkSize((long) in.length * Float.BYTES);
+            reserve(1 + Integer.BYTES).put((byte) 22).putInt(in.length);
+            for(int i = 0; i < in.length;){
+                if(sendBuffer.remaining() < Float.BYTES){
+                    flush();
+                }
+                int count = Math.min(in.length - i, sendBuffer.remaining() / Float.BYTES);
+                sendBuffer.asFloatBuffer().put(in, i, count);
+                sendBuffer.position(sendBuffer.position() + count * Float.BYTES);
+                i += count;
+            }
+        }
+        /**
+         * Sends a double array as a single message, copying it into the send buffer in bulk
+         * @param in Array to send
+         * @throws IOException If the array is larger than {@link #MAX_MESSAGE_SIZE}, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendDoubles(double[] in) throws IOException {
+            checkSize((long) in.length * Double.BYTES);
+            reserve(1 + Integer.BYTES).put((byte) 23).putInt(in.length);
+            for(int i = 0; i < in.length;){
+                if(sendBuffer.remaining() < Double.BYTES){
+                    flush();
+                }
+                int count = Math.min(in.length - i, sendBuffer.remaining() / Double.BYTES);
+                sendBuffer.asDoubleBuffer().put(in, i, count);
+                sendBuffer.position(sendBuffer.position() + count * Double.BYTES);
+                i += count;
+            }
+        }
+        /**
+         * Sends the remaining bytes of a {@link ByteBuffer} as a single message, without changing the {@link ByteBuffer}'s position
+         * @param in {@link ByteBuffer} to send
+         * @throws IOException If the data is larger than {@link #MAX_MESSAGE_SIZE}, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized public void sendBuffer(ByteBuffer in) throws IOException {
+            checkSize(in.remaining());
+            if(sendCompressed((byte) 24, in.duplicate())){return;}
+            reserve(1 + Integer.BYTES).put((byte) 24).putInt(in.remaining());
+            putBuffer(in.duplicate());
+        }
+        /**
+         * Checks that a message's data fits in a message
+         * @param bytes Size of the message's data in bytes
+         * @throws ProtocolException If the data is larger than {@link #MAX_MESSAGE_SIZE}
+         */
+        private void checkSize(long bytes) throws ProtocolException {
+            if(bytes > MAX_MESSAGE_SIZE - Integer.BYTES){
+                throw new ProtocolException("Message is larger than the maximum message size");
+            }
+        }
+        /**
+         * Adds data to the send buffer, or sends it directly after the send buffer if it does not fit
+         * @param data Data to send
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        private void putBuffer(ByteBuffer data) throws IOException {
+            if(data.remaining() <= sendBuffer.remaining()){
+                sendBuffer.put(data);
+            }
+            else{
+                flush();
+                write(data);
+            }
+        }
+        /**
+         * Adds what has been written to {@link #objectBytes} to the send buffer as one message, its length following its type. Messages that do not fit in the send buffer are sent directly after it.
+         * @param type Type of the message
+         * @throws IOException If the message is larger than {@link #MAX_MESSAGE_SIZE}, or an I/O error occurs while writing to the underlying stream.
+         */
+        private void sendFrame(byte type) throws IOException {
+            if(objectBytes.size() > MAX_MESSAGE_SIZE){
+                throw new ProtocolException("Message is larger than the maximum message size");
+            }
+            if(sendCompressed(type, objectBytes.view())){return;}
+            reserve(1 + Integer.BYTES).put(type).putInt(objectBytes.size());
+            putBuffer(objectBytes.view());
+        }
+        /**
+         * Sends a message made of its length followed by its data compressed, if the other side has agreed to compression, the data is at least {@link #COMPRESSION_THRESHOLD} bytes, and compressing it saves at least a thirty-second of its size. Compressed messages are sent as their own type (30), followed by the {@link Compression} used, the type of the message, the length of the compressed data and the length of the data.
+         * @param type Type of the message
+         * @param data The message's data
+         * @return Whether the message was sent, otherwise it still has to be sent uncompressed
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while writing to the underlying stream.
+         */
+        private boolean sendCompressed(byte type, ByteBuffer data) throws IOException {
+            Compression c = sending;
+            int length = data.remaining();
+            if(c == Compression.NONE || COMPRESSION_THRESHOLD < 0 || length < COMPRESSION_THRESHOLD){return false;}
+            int worth = length - (length >>> 5);
+            if(packed.length < worth){
+                packed = new byte[worth];
+            }
+            try {
+                int compressed = FrameCompressor.compress(c, data, packed, worth);
+                if(compressed < 0){return false;}
+                reserve(3 + 2 * Integer.BYTES).put((byte) 30).put((byte) c.ordinal()).put(type).putInt(compressed).putInt(length);
+                putBuffer(ByteBuffer.wrap(packed, 0, compressed));
+                return true;
+            } finally {
+                if(packed.length > FrameBuffer.MAX_RETAINED){
+                    packed = new byte[0];
+                }
+            }
+        }
+        /**
+         * Sends a version of the {@link Server}'s shared state, see {@link StateSync}
+         * @param type Type of the message, 35 for the whole state or 36 for changes
+         * @param frame The message's data
+         * @throws IOException If the DataStream is closed, the data is larger than {@link #MAX_MESSAGE_SIZE}, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized void sendState(byte type, byte[] frame) throws IOException {
+            checkSize(frame.length);
+            if(sendCompressed(type, ByteBuffer.wrap(frame))){return;}
+            reserve(1 + Integer.BYTES).put(type).putInt(frame.length);
+            putBuffer(ByteBuffer.wrap(frame));
+        }
+        /**
+         * Tells the {@link Server} which version of its shared state the client has received
+         * @param version The version, or -1 if the changes received could not be applied
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized void sendStateAck(long version) throws IOException {
+            reserve(1 + Long.BYTES).put((byte) 37).putLong(version);
+        }
+        /**
+         * Agrees on compression with a client that has just joined, telling it which {@link Compression}s the {@link Server} supports. Nothing is sent to clients that did not offer any, as they may not understand the reply.
+         * @param offered The {@link Compression}s the client supports, see {@link Compression#supported(Compression)}
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized void offerCompression(int offered) throws IOException {
+            if(offered == 0){return;}
+            sending = (offered & compression.bit()) != 0 ? compression : Compression.NONE;
+            reserve(2).put((byte) 31).put((byte) Compression.supported(compression));
+        }
+        /**
+         * Agrees on compression with the {@link Server}, once it has told the client which {@link Compression}s it supports
+         * @param supported The {@link Compression}s the {@link Server} supports, see {@link Compression#supported(Compression)}
+         */
+        void acceptCompression(int supported) {
+            sending = (supported & compression.bit()) != 0 ? compression : Compression.NONE;
+        }
+
+        /**
+         * Gives a client that has just joined and asked for an unreliable channel a session token, telling it the token and the port of the {@link Server}'s {@link UnreliableChannel}
+         * @param u The {@link Server}'s {@link UnreliableChannel}
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized void offerUnreliable(UnreliableChannel u) throws IOException {
+            unreliableToken = u.register(this);
+            unreliable = u;
+            if(!open){
+                u.detach(this);
+                return;
+            }
+            reserve(1 + Integer.BYTES + Long.BYTES).put((byte) 40).putInt(u.getPort()).putLong(unreliableToken);
+        }
+        /**
+         * Opens the client's {@link UnreliableChannel} to the {@link Server}, once the {@link Server} has sent its port and the client's session token. This should only be called once {@link #hasMessage()} has returned true.
+         * @throws IOException If the DataStream is closed, or the channel could not be opened
+         */
+        void openUnreliable() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            int port = received.getInt();
+            long token = received.getLong();
+            if(unreliable != null){return;}
+            InetSocketAddress server = new InetSocketAddress(((InetSocketAddress) stored.getRemoteAddress()).getAddress(), port);
+            unreliableToken = token;
+            unreliablePeer = server;
+            unreliable = UnreliableChannel.connect(this, server);
+            if(!open){
+                unreliable.detach(this);
+            }
+        }
+        /**
+         * Moves a client that has just joined onto the {@link Server}'s {@link Transport#UDP} transport: gives it a session token, tells it the token and the port of the {@link Server}'s {@link UnreliableChannel}, and sends everything after that through a {@link ReliableLane}. The client's data keeps being read from the TCP stream until it says it has switched too, see {@link #acceptLane()}.
+         * @param u The {@link Server}'s {@link UnreliableChannel}
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while writing to the underlying stream.
+         */
+        synchronized void offerTransport(UnreliableChannel u) throws IOException {
+            unreliableToken = u.register(this);
+            unreliable = u;
+            if(!open){
+                u.detach(this);
+                return;
+            }
+            lane = new ReliableLane(this, u);
+            reserve(1 + Integer.BYTES + Long.BYTES).put((byte) 41).putInt(u.getPort()).putLong(unreliableToken);
+            switchToLane();
+        }
+        /**
+         * Moves the client onto its {@link Server}'s {@link Transport#UDP} transport once the {@link Server} has sent the port of its {@link UnreliableChannel} and the client's session token: opens the client's {@link UnreliableChannel}, tells the {@link Server} it has switched, and from then on sends and receives everything through a {@link ReliableLane}. This should only be called once {@link #hasMessage()} has returned true.
+         * @throws IOException If the DataStream is closed, or the channel could not be opened
+         */
+        void acceptTransport() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            int port = received.getInt();
+            long token = received.getLong();
+            if(unreliable != null){
+                throw new ProtocolException("Received a second datagram channel");
+            }
+            InetSocketAddress server = new InetSocketAddress(((InetSocketAddress) stored.getRemoteAddress()).getAddress(), port);
+            unreliableToken = token;
+            unreliablePeer = server;
+            UnreliableChannel u = UnreliableChannel.connect(this, server);
+            lane = new ReliableLane(this, u);
+            unreliable = u;
+            laneIn = true;
+            synchronized (this) {
+                if(open){
+                    reserve(1).put((byte) 42);
+                    switchToLane();
+                    return;
+                }
+            }
+            u.detach(this);
+        }
+        /**
+         * Reads received data from {@link #lane} from now on, once the client has said it sends everything through it. This should only be called once {@link #hasMessage()} has returned true.
+         * @throws ProtocolException If the client was not moved onto {@link Transport#UDP}
+         */
+        void acceptLane() throws ProtocolException {
+            if(lane == null){
+                throw new ProtocolException("Received a transport switch that was not offered");
+            }
+            laneIn = true;
+            lane.startReading();
+        }
+        /**
+         * Sends everything after what has already been sent or queued through {@link #lane}
+         * @throws IOException If an I/O error occurs while writing to the underlying stream.
+         */
+        private void switchToLane() throws IOException {
+            flush();
+            if(outbound.isEmpty()){
+                laneOut = true;
+            }
+            else{
+                outbound.add(TO_LANE);
+            }
+        }
+        /**
+         * Sends the remaining bytes of a {@link ByteBuffer} as a single datagram through the connection's {@link UnreliableChannel}, without changing the {@link ByteBuffer}'s position
+         * @param data The data
+         * @return Whether the datagram was sent, which it is not until the channel has been opened, or when the network has no room for it
+         * @throws IOException If the data is larger than {@link #MAX_DATAGRAM_SIZE}, or an I/O error occurs while sending the datagram
+         */
+        boolean sendUnreliable(ByteBuffer data) throws IOException {
+            if(data.remaining() > MAX_DATAGRAM_SIZE){
+                throw new ProtocolException("Datagram is larger than the maximum datagram size");
+            }
+            UnreliableChannel u = unreliable;
+            SocketAddress peer = unreliablePeer;
+            if(!open || u == null || peer == null){return false;}
+            return u.send(unreliableToken, peer, UnreliableChannel.DATA, unreliableSent.incrementAndGet(), data);
+        }
+        /**
+         * Checks whether datagrams can be sent through the connection's {@link UnreliableChannel}
+         * @return Whether the channel has been opened and, for a {@link Server}, the client's address is known
+         */
+        boolean hasUnreliable() {
+            return open && unreliable != null && unreliablePeer != null;
+        }
+        /**
+         * Hands a datagram received through the connection's {@link UnreliableChannel} to the owner, in order with the connection's other events, unless a later datagram has already been received
+         * @param sequence Sequence number of the datagram
+         * @param data The datagram's data, which is copied
+         */
+        void receiveUnreliable(int sequence, ByteBuffer data) {
+            if(sequence - unreliableReceived <= 0){return;}
+            unreliableReceived = sequence;
+            ByteBuffer in = ByteBuffer.allocate(data.remaining()).put(data).flip().asReadOnlyBuffer();
+            Runnable event = owner instanceof ServerSideConnection c ? () -> c.receiveUnreliable(in) : () -> ((ClientSideConnection) owner).receiveUnreliable(in);
+            if(loop.inLoop()){
+                dispatch(event);
+            }
+            else{
+                loop.execute(() -> {
+                    if(open){
+                        dispatch(event);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Util method for closing DataStreams, you should not have to use this
+         * @param in Reason for closing
+         * @throws IOException If any I/O errors occur
+         */
+        synchronized public void sendCloseUpdate(String in) throws IOException {
+            if(in == null) {
+                reserve(1).put((byte) 12);
+            }
+            else{
+                putString(in, (byte) 11, (byte) 15, false);
+            }
+        }
+        /**
+         * Reads as many bytes as the connection has available into the receive buffer in a single read, keeping any partially received message from earlier reads in front of them. A receive buffer that grew for a large message goes back to its starting size once it has been emptied. Once data is received through {@link #lane}, the TCP stream is only read when the lane has nothing, to find out whether the other side has closed the connection, which also fails the lane as nothing sent through it can arrive anymore. This never waits for data to arrive.
+         * @return The number of bytes read, or -1 if the connection was closed from the other side
+         * @throws IOException If an I/O error occurs while reading from the underlying stream, or a message is larger than {@link #MAX_MESSAGE_SIZE}
+         */
+        int fill() throws IOException {
+            endInflated();
+            if(received == null){throw new ClosedChannelException();}
+            if(!received.hasRemaining() && received.capacity() > RECEIVE_BUFFER_SIZE){
+                BufferPool.release(received);
+                received = BufferPool.acquire(RECEIVE_BUFFER_SIZE).flip();
+            }
+            if(received.remaining() == received.capacity()){
+                if(received.capacity() >= MAX_MESSAGE_SIZE){
+                    throw new ProtocolException("Message is larger than the maximum message size");
+                }
+                ByteBuffer grown = BufferPool.acquire((int)Math.min(MAX_MESSAGE_SIZE, 2L * received.capacity())).put(received);
+                BufferPool.release(received);
+                received = grown;
+            }
+            else{
+                received.compact();
+            }
+            int read;
+            if(laneIn){
+                read = lane.read(received);
+                if(read == 0){
+                    if(probe == null){
+                        probe = ByteBuffer.allocate(1);
+                    }
+                    read = stored.read(probe.clear()) == -1 ? -1 : 0;
+                }
+            }
+            else{
+                read = stored.read(received);
+            }
+            received.flip();
+            if(read == -1 && lane != null){
+                lane.fail();
+            }
+            return read;
+        }
+        /**
+         * Reads the TCP stream of a connection that has closed but is still sending what it has queued through {@link #lane}, to find out whether the other side has closed the connection too. The lane is failed once it has, as nothing sent through it can arrive anymore, and anything else read is dropped. Called by the {@link EventLoop}.
+         * @return Whether the TCP stream should still be read
+         */
+        boolean readClosed() {
+            ReliableLane l = lane;
+            if(l == null){return false;}
+            if(probe == null){
+                probe = ByteBuffer.allocate(1);
+            }
+            try {
+                if(stored.read(probe.clear()) != -1){return true;}
+            } catch (IOException e) {}
+            l.fail();
+            return false;
+        }
+        /**
+         * Goes back to reading from the receive buffer once a decompressed message has been read, see {@link #inflate()}
+         */
+        private void endInflated() {
+            if(compressedSource == null){return;}
+            received = compressedSource;
+            compressedSource = null;
+            if(inflated.capacity() > FrameBuffer.MAX_RETAINED){
+                inflated = null;
+            }
+        }
+        /**
+         * Checks whether the whole of the next message has been received, without consuming any of it. Messages that have only partially arrived are left in the receive buffer until the rest of them is read by {@link #fill()}.
+         * @return Whether the next message can be read without waiting
+         * @throws IOException If the next message is larger than {@link #MAX_MESSAGE_SIZE}, or is of a type that is not known
+         */
+        boolean hasMessage() throws IOException {
+            endInflated();
+            if(received == null){return false;}
+            int available = received.remaining(), start = received.position();
+            if(available < 1){return false;}
+            long length;
+            switch (received.get(start)) {
+                case 0, 6 -> length = Integer.BYTES;
+                case 1, 5 -> length = Character.BYTES;
+                case 2, 3 -> length = Long.BYTES;
+                case 4, 7 -> length = 1;
+                case 8, 11 -> {
+                    if(available < 1 + Integer.BYTES){return false;}
+                    length = Integer.BYTES + Character.BYTES * lengthField(start + 1);
+                }
+                case 13, 14, 15 -> {
+                    if(available < 1 + Integer.BYTES){return false;}
+                    length = Integer.BYTES + lengthField(start + 1);
+                }
+                case 27, 29 -> length = Integer.BYTES;
+                case 32, 33, 34 -> {
+                    int max = received.get(start) == 33 ? 10 : received.get(start) == 32 ? 5 : 3;
+                    length = -1;
+                    for(int i = 0; i < max && i + 1 < available; i++){
+                        if(received.get(start + 1 + i) >= 0){
+                            length = i + 1;
+                            break;
+                        }
+                        if(i == max - 1){
+                            throw new ProtocolException("Varint is longer than its type allows");
+                        }
+                    }
+                    if(length == -1){return false;}
+                }
+                case 31 -> length = 1;
+                case 40, 41 -> length = Integer.BYTES + Long.BYTES;
+                case 30 -> {
+                    if(available < 3 + 2 * Integer.BYTES){return false;}
+                    lengthField(start + 3 + Integer.BYTES);
+                    length = 2 + 2 * Integer.BYTES + lengthField(start + 3);
+                }
+                case 25 -> {
+                    if(available < 1 + Integer.BYTES + Long.BYTES + Integer.BYTES){return false;}
+                    length = Integer.BYTES + Long.BYTES + Integer.BYTES + lengthField(start + 1 + Integer.BYTES + Long.BYTES);
+                }
+                case 26, 28 -> {
+                    if(available < 1 + 2 * Integer.BYTES){return false;}
+                    length = 2 * Integer.BYTES + lengthField(start + 1 + Integer.BYTES);
+                }
+                case 19, 24 -> {
+                    if(available < 1 + Integer.BYTES){return false;}
+                    length = Integer.BYTES + lengthField(start + 1);
+                }
+                case 20, 22 -> {
+                    if(available < 1 + Integer.BYTES){return false;}
+                    length = Integer.BYTES + Integer.BYTES * lengthField(start + 1);
+                }
+                case 21, 23 -> {
+                    if(available < 1 + Integer.BYTES){return false;}
+                    length = Integer.BYTES + Long.BYTES * lengthField(start + 1);
+                }
+                case 37 -> length = Long.BYTES;
+                case 16, 17, 18, 35, 36, 38, 39 -> {
+                    if(available < 1 + Integer.BYTES){return false;}
+                    length = Integer.BYTES + lengthField(start + 1);
+                }
+                case 12, 42 -> length = 0;
+                default -> {
+                    if(received.get(start) >= 0){
+                        throw new ProtocolException("Received a message of unknown type " + received.get(start));
+                    }
+                    length = 0;
+                }
+            }
+            if(length < 0 || length >= MAX_MESSAGE_SIZE){
+                throw new ProtocolException("Message is larger than the maximum message size");
+            }
+            return available >= 1 + length;
+        }
+        /**
+         * Receives the type of the next message. This should only be called once {@link #hasMessage()} has returned true.
+         * @return The type of the next message
+         * @throws IOException If the DataStream is closed
+         */
+        /**
+         * Reads a length or count field of the next message without consuming it
+         * @param index Position of the field in the receive buffer
+         * @return The value of the field
+         * @throws ProtocolException If the field is negative
+         */
+        private long lengthField(int index) throws ProtocolException {
+            int value = received.getInt(index);
+            if(value < 0){
+                throw new ProtocolException("Received a message with a negative length");
+            }
+            return value;
+        }
+        public byte readType() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            byte type = received.get();
+            numberForm = FIXED;
+            if(type < 0){
+                numberForm = PACKED;
+                packedValue = (type & 0x7F) >>> 1 ^ -(type & 1);
+                return 0;
+            }
+            switch (type) {
+                case 30: return inflate();
+                case 32: numberForm = VARINT; return 0;
+                case 33: numberForm = VARINT; return 2;
+                case 34: numberForm = VARINT; return 5;
+                default: return type;
+            }
+        }
+        /**
+         * Decompresses a compressed message (see {@link #sendCompressed(byte, ByteBuffer)}) into {@link #inflated}, which is read from in place of the receive buffer until the next call to {@link #hasMessage()}
+         * @return The type of the decompressed message
+         * @throws IOException If the message is not valid
+         */
+        private byte inflate() throws IOException {
+            int codec = received.get();
+            byte type = received.get();
+            int length = received.getInt(), original = received.getInt();
+            if(type != 13 && type != 14 && type != 15 && (type < 16 || type > 19) && type != 24 && (type < 35 || type > 36) && (type < 38 || type > 39)){
+                throw new ProtocolException("Received a compressed message of type " + type + ", which cannot be compressed");
+            }
+            if(original > MAX_MESSAGE_SIZE - 1 - Integer.BYTES){
+                throw new ProtocolException("Message is larger than the maximum message size");
+            }
+            if(length < 0 || length > received.remaining()){
+                throw new ProtocolException("Compressed message is longer than the data received");
+            }
+            int size = 1 + Integer.BYTES + original;
+            if(inflated == null || inflated.capacity() < size){
+                inflated = ByteBuffer.allocate(Math.max(size, RECEIVE_BUFFER_SIZE));
+            }
+            ByteBuffer data = received.slice(received.position(), length);
+            received.position(received.position() + length);
+            FrameCompressor.decompress(codec, data, inflated.array(), 1 + Integer.BYTES, original);
+            inflated.clear().put(0, type).putInt(1, original).limit(size).position(1);
+            compressedSource = received;
+            received = inflated;
+            return type;
+        }
+        /**
+         * Receives an {@link Integer} from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @return An {@link Integer} received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public int readInt() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            int form = numberForm;
+            numberForm = FIXED;
+            if(form == PACKED){return packedValue;}
+            if(form == VARINT){return (int) readVarint();}
+            return received.getInt();
+        }
+        /**
+         * Receives an {@link Character} from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @return A {@link Character} received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public char readChar() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            return received.getChar();
+        }
+        /**
+         * Receives an {@link Double} from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @return An {@link Double} received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public double readDouble() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            return received.getDouble();
+        }
+        /**
+         * Receives an {@link Long} from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @return An {@link Long} received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public long readLong() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            if(numberForm == VARINT){
+                numberForm = FIXED;
+                return readVarint();
+            }
+            return received.getLong();
+        }
+        /**
+         * Receives an {@link Byte} from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @return An {@link Byte} received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public byte readByte() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            return received.get();
+        }
+        /**
+         * Receives an {@link Short} from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
          * @return An {@link Short} received through the DataStream
-         * @throws IOException If an I/O error occurs while reading from the underlying stream.
+         * @throws IOException If the DataStream is closed
          */
-        synchronized public short readShort() throws IOException {
+        public short readShort() throws IOException {
             if(!open){throw new IOException("The DataStream is closed");}
-            int i = 0;
-            while(i < Short.BYTES){
-                i+=stored.read(shortSend);
+            if(numberForm == VARINT){
+                numberForm = FIXED;
+                return (short) readVarint();
             }
-            short out = shortSend.getShort(0);
-            shortSend.clear();
-            return out;
+            return received.getShort();
+        }
+        /**
+         * Receives a varint written by {@link #putVarint(ByteBuffer, int)} or {@link #sendLong(long)}, undoing its zigzag encoding
+         * @return The number
+         */
+        private long readVarint() {
+            long zigzag = 0;
+            byte b;
+            int shift = 0;
+            do {
+                b = received.get();
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while(b < 0);
+            return zigzag >>> 1 ^ -(zigzag & 1);
         }
         /**
-         * Receives an {@link Float} through the associated {@link ObjectOutputStream} (Freezing the thread until one is available if it isn't already)
+         * Receives an {@link Float} from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
          * @return An {@link Float} received through the DataStream
-         * @throws IOException If an I/O error occurs while reading from the underlying stream.
+         * @throws IOException If the DataStream is closed
          */
-        synchronized public float readFloat() throws IOException {
+        public float readFloat() throws IOException {
             if(!open){throw new IOException("The DataStream is closed");}
-            int i = 0;
-            while(i < Float.BYTES){
-                i+=stored.read(floatSend);
-            }
-            float out = floatSend.getFloat(0);
-            floatSend.clear();
-            return out;
+            return received.getFloat();
         }
         /**
-         * Receives an {@link Boolean} through the associated {@link ObjectOutputStream} (Freezing the thread until one is available if it isn't already)
+         * Receives an {@link Boolean} from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
          * @return An {@link Boolean} received through the DataStream
-         * @throws IOException If an I/O error occurs while reading from the underlying stream.
+         * @throws IOException If the DataStream is closed
          */
-        synchronized public boolean readBool() throws IOException {
+        public boolean readBool() throws IOException {
             if(!open){throw new IOException("The DataStream is closed");}
-            int i = 0;
-            while(i < 1){
-                i+=stored.read(booleanSend);
-            }
-            boolean out = booleanSend.get(0) == 1;
-            booleanSend.clear();
-            return out;
+            return received.get() == 1;
         }
         /**
-         * Receives an {@link String} through the associated {@link ObjectOutputStream} (Freezing the thread until one is available if it isn't already)
+         * Receives an {@link String} from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @param type Type of the message the {@link String} is in, which decides how it is encoded (8 and 11 for two bytes per character, 13 and 15 for UTF-8, 14 for Latin-1)
          * @return An {@link String} received through the DataStream
-         * @throws IOException If an I/O error occurs while reading from the underlying stream.
+         * @throws IOException If the DataStream is closed
          */
-        synchronized public String readString() throws IOException {
+        public String readString(byte type) throws IOException {
             if(!open){throw new IOException("The DataStream is closed");}
-            int length = readInt();
-            String out = "";
-            for(int i = 0; i < length; i++){
-                out+=readChar();
+            int length = received.getInt(), start = received.position();
+            String out;
+            switch (type) {
+                case 13, 15 -> out = decode(start, length, StandardCharsets.UTF_8);
+                case 14 -> out = decode(start, length, StandardCharsets.ISO_8859_1);
+                default -> {
+                    char[] chars = new char[length];
+                    received.asCharBuffer().get(chars);
+                    out = new String(chars);
+                    length *= Character.BYTES;
+                }
+            }
+            received.position(start + length);
+            return out;
+        }
+        /**
+         * Decodes bytes of the receive buffer into a {@link String}, straight from its backing array when it is a heap buffer, otherwise through a copy
+         * @param start Index of the first byte
+         * @param length Number of bytes
+         * @param charset How the bytes are encoded
+         * @return The decoded {@link String}
+         */
+        private String decode(int start, int length, Charset charset) {
+            if(received.hasArray()){
+                return new String(received.array(), received.arrayOffset() + start, length, charset);
             }
+            byte[] bytes = new byte[length];
+            received.get(start, bytes);
+            return new String(bytes, charset);
+        }
+        /**
+         * Receives a byte array from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @return A byte array received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public byte[] readBytes() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            byte[] out = new byte[received.getInt()];
+            received.get(out);
+            return out;
+        }
+        /**
+         * Receives a int array from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @return A int array received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public int[] readInts() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            int[] out = new int[received.getInt()];
+            received.asIntBuffer().get(out);
+            received.position(received.position() + out.length * Integer.BYTES);
+            return out;
+        }
+        /**
+         * Receives a long array from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @return A long array received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public long[] readLongs() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            long[] out = new long[received.getInt()];
+            received.asLongBuffer().get(out);
+            received.position(received.position() + out.length * Long.BYTES);
+            return out;
+        }
+        /**
+         * Receives a float array from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @return A float array received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public float[] readFloats() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            float[] out = new float[received.getInt()];
+            received.asFloatBuffer().get(out);
+            received.position(received.position() + out.length * Float.BYTES);
+            return out;
+        }
+        /**
+         * Receives a double array from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @return A double array received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public double[] readDoubles() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            double[] out = new double[received.getInt()];
+            received.asDoubleBuffer().get(out);
+            received.position(received.position() + out.length * Double.BYTES);
             return out;
         }
         /**
-         * Receives an {@link Object} through the associated {@link SocketChannel} (Freezing the thread until one is available if it isn't already)
+         * Receives the data of a {@link ByteBuffer} message from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * When events are fired on the {@link EventLoop} this is a read-only view of the receive buffer, which is only valid until the event that receives it returns. When {@link #CALLBACK_EXECUTOR} is set the data is copied, since the receive buffer will have been reused by the time the event fires.
+         * @return A read-only {@link ByteBuffer} holding the data received through the DataStream
+         * @throws IOException If the DataStream is closed
+         */
+        public ByteBuffer readBuffer() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            int length = received.getInt(), start = received.position();
+            ByteBuffer out = received.slice(start, length);
+            if(events != null){
+                out = ByteBuffer.allocate(length).put(out).flip();
+            }
+            received.position(start + length);
+            return out.asReadOnlyBuffer();
+        }
+        /**
+         * Receives an {@link Object} from the data already received through the DataStream. This should only be called once {@link #hasMessage()} has returned true.
+         * @param type Type of the message the {@link Object} is in (16 for Java serialization, 17 for the connection's {@link Serializer})
          * @return An {@link Object} received through the DataStream
-         * @throws IOException Any exception thrown by the underlying {@link SocketChannel}.
+         * @throws IOException If the DataStream is closed, or an I/O error occurs while deserializing the {@link Object}
          * @throws InvalidClassException Something is wrong with a class used by serialization.
          * @throws ClassNotFoundException Class of a serialized object cannot be found.
          */
-        synchronized public Object readObject() throws IOException, ClassNotFoundException {if(!open){throw new IOException("The DataStream is closed");}
-            byte read = 0, buffer = 0, ind = 0;
-            byteSend.clear();
-            while((read&(1<<Byte.SIZE-1)) == 0){
-                while(stored.read(byteSend) == 0){byteSend.clear();}
-                read = byteSend.get(0);
-                byte temp = (byte)(read&~(1<<Byte.SIZE-1));
-                byteSend.clear();
-                buffer|=temp<<ind; ind+=Byte.SIZE-1;
-                if(ind > 7){
-                    byteOut.write(buffer);
-                    ind%=8;
-                    buffer=(byte)(temp>>Byte.SIZE-1-ind);
+        public Object readObject(byte type) throws IOException, ClassNotFoundException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            objectFrame.frame(received, received.getInt());
+            try {
+                return readFramed(type);
+            } finally {
+                objectFrame.finish();
+            }
+        }
+        /**
+         * Deserializes an {@link Object} from the message {@link #objectFrame} is over
+         * @param type How the {@link Object} was serialized (16 for Java serialization, 17 for the connection's {@link Serializer}, 18 for a registered message class)
+         * @return The {@link Object}
+         * @throws IOException If an I/O error occurs while deserializing the {@link Object}
+         * @throws ClassNotFoundException Class of a serialized object cannot be found.
+         */
+        private Object readFramed(int type) throws IOException, ClassNotFoundException {
+            if(type == 18){
+                int id = frameData.readUnsignedShort();
+                CompactSerializer.Codec codec = messages == null ? null : messages.codec(id);
+                if(codec == null){
+                    throw new ProtocolException("Received message " + id + ", but no class is registered against it");
+                }
+                return codec.read(frameData);
+            }
+            if(type == 17){
+                if(serializer == null){
+                    throw new ProtocolException("Received an Object written by a Serializer, but there is no Serializer to read it");
                 }
+                return serializer.deserialize(frameData);
+            }
+            if(type != 16){
+                throw new ProtocolException("Received an Object of unknown type " + type);
+            }
+            if(objectIn == null || objectFrame.available() >= Short.BYTES && received.getShort(received.position()) == ObjectStreamConstants.STREAM_MAGIC){
+                objectIn = new ObjectInputStream(objectFrame);
             }
             return objectIn.readObject();
         }
         /**
-         * Closes the DataStream and associated {@link SocketChannel}. You should not call this directly unless you know what you're doing.
+         * Receives a call from the data already received through the DataStream, and fires the handler registered for the request's class, which answers it. Calls that cannot be read or have no handler are answered with a failure. This should only be called once {@link #hasMessage()} has returned true.
+         * @throws IOException If the DataStream is closed, or the message is too short to hold the call's number
+         */
+        void readCall() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            objectFrame.frame(received, received.getInt());
+            int id;
+            Object request;
+            try {
+                id = frameData.readInt();
+                try {
+                    request = readFramed(frameData.readUnsignedByte());
+                } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                    answer(id, null, e);
+                    return;
+                }
+            } finally {
+                objectFrame.finish();
+            }
+            dispatch(() -> {
+                Object answer;
+                try {
+                    if(owner instanceof ServerSideConnection<?> c){
+                        Server<?> server = c.server;
+                        ServerCallHandler<ServerSideConnection<?>, Object> handler = request == null ? null : server.getCallHandler(request.getClass());
+                        if(handler == null){
+                            throw new UnsupportedOperationException("No handler for calls of " + (request == null ? "null" : request.getClass().getName()));
+                        }
+                        answer = handler.handle(c, request);
+                    }
+                    else{
+                        CallHandler<Object> handler = request == null ? null : ((ClientSideConnection) owner).getCallHandler(request.getClass());
+                        if(handler == null){
+                            throw new UnsupportedOperationException("No handler for calls of " + (request == null ? "null" : request.getClass().getName()));
+                        }
+                        answer = handler.handle(request);
+                    }
+                } catch (Exception e) {
+                    answer(id, null, e);
+                    return;
+                }
+                if(answer instanceof CompletionStage<?> stage){
+                    stage.whenComplete((r, e) -> answer(id, r, e));
+                }
+                else{
+                    answer(id, answer, null);
+                }
+            });
+        }
+        /**
+         * Receives the answer to a call made through the DataStream from the data already received, and completes the call's future with it. Answers to calls that have timed out are dropped. This should only be called once {@link #hasMessage()} has returned true.
+         * @throws IOException If the DataStream is closed, or the message is too short to hold the call's number
+         */
+        void readAnswer() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            objectFrame.frame(received, received.getInt());
+            CompletableFuture<Object> future;
+            Object answer = null;
+            Throwable failure = null;
+            try {
+                future = calls.get(frameData.readInt());
+                if(future == null){return;}
+                try {
+                    int type = frameData.readUnsignedByte();
+                    if(type == 0){
+                        failure = new RemoteCallException(frameData.readUTF());
+                    }
+                    else{
+                        answer = readFramed(type);
+                    }
+                } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                    failure = e;
+                }
+            } finally {
+                objectFrame.finish();
+            }
+            Object result = answer;
+            Throwable error = failure;
+            dispatch(() -> {
+                if(error == null){
+                    future.complete(result);
+                }
+                else{
+                    future.completeExceptionally(error);
+                }
+            });
+        }
+        /**
+         * Fails every call still waiting for its answer. Called in order with the connection's events once the connection has closed.
+         */
+        private void failCalls() {
+            for(Integer id : calls.keySet()){
+                CompletableFuture<Object> future = calls.remove(id);
+                if(future != null){
+                    future.completeExceptionally(new IOException("The connection closed before the call was answered"));
+                }
+            }
+        }
+        /**
+         * Receives a version of the {@link Server}'s shared state from the data already received through the DataStream, applying it to the previous version if only the changes were sent, and acknowledges it. This should only be called once {@link #hasMessage()} has returned true.
+         * @param type Type of the message, 35 for the whole state or 36 for changes
+         * @return The state
+         * @throws IOException If the DataStream is closed, the changes do not apply to the state held, or the state could not be decoded
+         * @throws ClassNotFoundException If the class of the state cannot be found
+         */
+        public Object readState(byte type) throws IOException, ClassNotFoundException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            int length = received.getInt(), end = received.position() + length;
+            ByteBuffer data = received.slice(received.position(), length);
+            received.position(end);
+            if(type == 35){
+                stateVersion = data.getLong();
+                state = new byte[data.remaining()];
+                data.get(state);
+            }
+            else{
+                long from = data.getLong(), version = data.getLong();
+                if(state == null || from != stateVersion){
+                    sendStateAck(-1);
+                    throw new ProtocolException("Received changes to state version " + from + ", but holding version " + stateVersion);
+                }
+                try {
+                    state = StateSync.apply(state, data);
+                } catch (ProtocolException e) {
+                    state = null;
+                    stateVersion = -1;
+                    sendStateAck(-1);
+                    throw e;
+                }
+                stateVersion = version;
+            }
+            sendStateAck(stateVersion);
+            return StateSync.decode(state, serializer);
+        }
+        /**
+         * Returns the number of the version of the {@link Server}'s shared state last received
+         * @return The version, or -1 if no state has been received
+         */
+        public long getStateVersion() {
+            return stateVersion;
+        }
+        /**
+         * Receives the number of a registered message class from the data already received through the DataStream, after which the message itself must be received with {@link #readMessage(int)}. This should only be called once {@link #hasMessage()} has returned true.
+         * @return The number of the message's class in the connection's {@link MessageRegistry}
+         * @throws IOException If the DataStream is closed, or the message is too short to hold a number
+         */
+        public int readMessageId() throws IOException {
+            if(!open){throw new IOException("The DataStream is closed");}
+            objectFrame.frame(received, received.getInt());
+            try {
+                return frameData.readUnsignedShort();
+            } catch (IOException e) {
+                objectFrame.finish();
+                throw e;
+            }
+        }
+        /**
+         * Receives a message of a registered class from the data already received through the DataStream, following its number read by {@link #readMessageId()}
+         * @param id The number of the message's class in the connection's {@link MessageRegistry}
+         * @return The message received through the DataStream
+         * @throws IOException If no class is registered against the number, or an I/O error occurs while reading the message
+         */
+        public Object readMessage(int id) throws IOException {
+            try {
+                CompactSerializer.Codec codec = messages == null ? null : messages.codec(id);
+                if(codec == null){
+                    throw new ProtocolException("Received message " + id + ", but no class is registered against it");
+                }
+                return codec.read(frameData);
+            } finally {
+                objectFrame.finish();
+            }
+        }
+        /**
+         * Fires an event of the connection, either directly or in order through the connection's queue when {@link #CALLBACK_EXECUTOR} is set
+         * @param event The event to fire
+         */
+        void dispatch(Runnable event) {
+            if(events == null){
+                event.run();
+            }
+            else{
+                events.execute(event);
+            }
+        }
+        /**
+         * A file or stream being received
+         */
+        private static final class IncomingFile {
+            /**
+             * Where the file's or stream's chunks go
+             */
+            final FileReceiver receiver;
+            /**
+             * Bytes of the file that have not been received yet, which for a stream never runs out
+             */
+            long remaining;
+
+            /**
+             * Creates a new IncomingFile
+             * @param receiver Where the file's chunks go
+             * @param remaining Size of the file in bytes
+             */
+            IncomingFile(FileReceiver receiver, long remaining) {
+                this.receiver = receiver;
+                this.remaining = remaining;
+            }
+        }
+        /**
+         * Closes the DataStream and associated {@link SocketChannel}. Any data still queued is sent before the {@link SocketChannel} is closed. You should not call this directly unless you know what you're doing.
          */
         public void close() {
-            open = false;
-            try {stored.close();} catch (IOException e) {}
+            synchronized (loop) {
+                if(open){
+                    loop.release();
+                    loop.execute(this::releaseReceiveBuffer);
+                }
+                open = false;
+            }
+            if(!incoming.isEmpty()){
+                loop.execute(() -> dispatch(this::failFiles));
+            }
+            if(!calls.isEmpty()){
+                loop.execute(() -> dispatch(this::failCalls));
+            }
+            UnreliableChannel u = unreliable;
+            if(u != null && lane == null){
+                u.detach(this);
+            }
+            synchronized (this) {
+                notifyAll();
+                try {flush();} catch (IOException e) {}
+                if((!outbound.isEmpty() || !files.isEmpty() || laneOut && !lane.isFlushed()) && stored.isOpen()){
+                    closeWhenSent = true;
+                    wantWrite();
+                    return;
+                }
+                cancelFiles();
+                releaseSendBuffer();
+            }
+            try {closeChannels();} catch (IOException e) {}
         }
 
         /**
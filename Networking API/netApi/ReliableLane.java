@@ -0,0 +1,714 @@
+package netApi;
+
+import netApi.NetEventHandler.DataStream;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Carries a connection's stream of messages as datagrams when its {@link Server} uses {@link Transport#UDP}, sending lost datagrams again and handing on what arrives in order. The stream is cut into numbered segments that each fit in one datagram, so a message of any size is split across as many segments as it needs and put back together by the receiver, which acknowledges the segments it has received in order along with up to four ranges it has received past a gap. Segments that at least three later segments have overtaken are sent again straight away, and others once the retransmission timeout, worked out from measured round trip times, runs out. How many segments are sent ahead of acknowledgements is limited both by the receiver's free space and by a congestion window that grows while segments arrive and shrinks when they are lost, like TCP's. All of this happens on the datagrams of the connection's {@link UnreliableChannel}, alongside the unreliable ones.
+ * @hidden
+ */
+final class ReliableLane implements ByteChannel, GatheringByteChannel {
+    /**
+     * Most bytes of the stream in a segment
+     */
+    static final int SEGMENT_SIZE = 1200;
+    /**
+     * Most segments sent ahead of the oldest unacknowledged one, and most segments held by the receiver ahead of what has been read. Must be a power of two.
+     */
+    private static final int WINDOW = 512;
+    /**
+     * Mask turning a segment's number into its slot
+     */
+    private static final int MASK = WINDOW - 1;
+    /**
+     * Number of later segments that must have arrived for a segment to count as lost
+     */
+    private static final int LOSS_THRESHOLD = 3;
+    /**
+     * Congestion window (in bytes) a lane starts with, ten full segments like TCP's
+     */
+    private static final int INITIAL_CONGESTION_WINDOW = 10 * SEGMENT_SIZE;
+    /**
+     * Most ranges of segments received past a gap reported in an acknowledgement
+     */
+    private static final int MAX_SACK_BLOCKS = 4;
+    /**
+     * Retransmission timeout (in nanoseconds) before any round trip has been measured
+     */
+    private static final long INITIAL_RTO = 200_000_000L;
+    /**
+     * Shortest retransmission timeout (in nanoseconds)
+     */
+    private static final long MIN_RTO = 10_000_000L;
+    /**
+     * Least time (in nanoseconds) the retransmission timeout leaves on top of the smoothed round trip time, so that a steady round trip time does not make it run out on segments that are only a little late
+     */
+    private static final long RTO_MARGIN = 10_000_000L;
+    /**
+     * Longest retransmission timeout (in nanoseconds), which the timeout doubles up to each time it runs out
+     */
+    private static final long MAX_RTO = 2_000_000_000L;
+    /**
+     * Most times a segment is sent before the other side is taken to be gone and the lane fails
+     */
+    private static final int MAX_TRANSMISSIONS = 12;
+    /**
+     * State of a segment that has not been sent yet
+     */
+    private static final byte UNSENT = 0;
+    /**
+     * State of a segment that has been sent and may still be on its way
+     */
+    private static final byte IN_FLIGHT = 1;
+    /**
+     * State of a segment the receiver has reported receiving past a gap
+     */
+    private static final byte SACKED = 2;
+    /**
+     * State of a segment taken to be lost and waiting to be sent again
+     */
+    private static final byte LOST = 3;
+    /**
+     * The connection whose stream the lane carries
+     */
+    private final DataStream stream;
+    /**
+     * The channel the lane's datagrams go through
+     */
+    private final UnreliableChannel channel;
+    /**
+     * Segments from the oldest unacknowledged one to the last written, by their number's slot
+     */
+    private final Segment[] sent;
+    /**
+     * Number of the oldest segment not acknowledged in order
+     */
+    private int una;
+    /**
+     * Number of the next segment to send for the first time
+     */
+    private int nxt;
+    /**
+     * Number of the next segment to write to
+     */
+    private int end;
+    /**
+     * Number of bytes in segments that have been sent and may still be on their way
+     */
+    private int pipe;
+    /**
+     * Number of segments in the {@link #LOST} state
+     */
+    private int lost;
+    /**
+     * Highest segment number the receiver has reported receiving past a gap, only meaningful while it is at least {@link #una}
+     */
+    private int sackHigh;
+    /**
+     * Most bytes in flight, see {@link #pipe}. Counting bytes instead of segments, as TCP does, keeps a stream of small messages that each leave in their own segment from being held back.
+     */
+    private double cwnd;
+    /**
+     * Congestion window at which it stops doubling every round trip and grows by one segment per round trip instead
+     */
+    private double ssthresh;
+    /**
+     * Number of segments past {@link #una} the receiver last said it had room for
+     */
+    private int peerWindow;
+    /**
+     * Whether lost segments are being sent again, which the congestion window only shrinks once for
+     */
+    private boolean recovering;
+    /**
+     * Number of the first segment sent after recovery started, which ends recovery once acknowledged
+     */
+    private int recoveryEnd;
+    /**
+     * Smoothed round trip time in nanoseconds, or -1 until one has been measured
+     */
+    private long srtt;
+    /**
+     * Variation of the round trip time in nanoseconds
+     */
+    private long rttvar;
+    /**
+     * Retransmission timeout in nanoseconds
+     */
+    private long rto;
+    /**
+     * Whether the retransmission timer is running
+     */
+    private boolean timerArmed;
+    /**
+     * Whether the connection is waiting for room in the lane, or for everything sent to be acknowledged, see {@link #wakeWhenReady()}
+     */
+    private boolean wakeWriter;
+    /**
+     * Received segments from the oldest unread one on, by their number's slot
+     */
+    private final byte[][] slots;
+    /**
+     * Number of bytes in each of {@link #slots}
+     */
+    private final int[] lengths;
+    /**
+     * Whether each of {@link #slots} holds a segment that has not been read
+     */
+    private final boolean[] present;
+    /**
+     * Number of the segment being read
+     */
+    private int rcvRead;
+    /**
+     * Bytes of the segment being read that have been read
+     */
+    private int readOffset;
+    /**
+     * Number of the next segment expected in order
+     */
+    private int rcvNxt;
+    /**
+     * Number after the highest segment received
+     */
+    private int rcvHigh;
+    /**
+     * Number of the latest segment received, sent back in acknowledgements to measure round trip times
+     */
+    private int lastReceived;
+    /**
+     * Room the last acknowledgement said there was, see {@link #peerWindow}
+     */
+    private int advertised;
+    /**
+     * Whether segments have been received since the last acknowledgement
+     */
+    private boolean ackDue;
+    /**
+     * Whether the connection has been asked to read what has arrived in order
+     */
+    private boolean readScheduled;
+    /**
+     * Whether the lane has been closed, or has failed
+     */
+    private boolean closed;
+
+    /**
+     * Creates a new ReliableLane
+     * @param stream The connection whose stream the lane carries
+     * @param channel The channel the lane's datagrams go through
+     */
+    ReliableLane(DataStream stream, UnreliableChannel channel) {
+        this.stream = stream;
+        this.channel = channel;
+        sent = new Segment[WINDOW];
+        slots = new byte[WINDOW][];
+        lengths = new int[WINDOW];
+        present = new boolean[WINDOW];
+        cwnd = INITIAL_CONGESTION_WINDOW;
+        ssthresh = WINDOW * SEGMENT_SIZE;
+        peerWindow = WINDOW;
+        advertised = WINDOW;
+        srtt = -1;
+        rto = INITIAL_RTO;
+    }
+
+    /**
+     * Adds as much of a {@link ByteBuffer} to the stream as there is room for, and sends whatever the windows allow
+     * @param src The data
+     * @return The number of bytes added, which is 0 when the lane is full
+     * @throws ClosedChannelException If the lane has been closed, or has failed
+     */
+    @Override
+    public synchronized int write(ByteBuffer src) throws ClosedChannelException {
+        if(closed){throw new ClosedChannelException();}
+        int written = append(src);
+        trySend();
+        return written;
+    }
+
+    /**
+     * Adds as much of several {@link ByteBuffer}s to the stream as there is room for, in order, and sends whatever the windows allow
+     * @param srcs The data
+     * @param offset Index of the first {@link ByteBuffer} in srcs
+     * @param length Number of {@link ByteBuffer}s
+     * @return The number of bytes added, which is 0 when the lane is full
+     * @throws ClosedChannelException If the lane has been closed, or has failed
+     */
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws ClosedChannelException {
+        if(closed){throw new ClosedChannelException();}
+        long written = 0;
+        for(int i = offset; i < offset + length; i++){
+            written += append(srcs[i]);
+            if(srcs[i].hasRemaining()){break;}
+        }
+        trySend();
+        return written;
+    }
+
+    /**
+     * Adds as much of several {@link ByteBuffer}s to the stream as there is room for, see {@link #write(ByteBuffer[], int, int)}
+     * @param srcs The data
+     * @return The number of bytes added
+     * @throws ClosedChannelException If the lane has been closed, or has failed
+     */
+    @Override
+    public long write(ByteBuffer[] srcs) throws ClosedChannelException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Copies data into segments, filling up the last segment if it has not been sent yet
+     * @param src The data
+     * @return The number of bytes copied
+     */
+    private int append(ByteBuffer src) {
+        int written = 0;
+        while(src.hasRemaining()){
+            Segment s;
+            if(end != nxt && sent[end - 1 & MASK].length < SEGMENT_SIZE){
+                s = sent[end - 1 & MASK];
+            }
+            else{
+                if(end - una >= WINDOW){break;}
+                s = sent[end & MASK];
+                if(s == null){
+                    s = sent[end & MASK] = new Segment();
+                }
+                s.reset();
+                end++;
+            }
+            int n = Math.min(src.remaining(), SEGMENT_SIZE - s.length);
+            src.get(s.data, s.length, n);
+            s.length += n;
+            written += n;
+        }
+        return written;
+    }
+
+    /**
+     * Sends segments taken to be lost, then new segments, while the congestion window and the receiver's room allow. Nothing is sent until a {@link Server} knows where its client's datagrams come from.
+     */
+    private void trySend() {
+        SocketAddress peer = stream.unreliablePeer;
+        if(closed || peer == null){return;}
+        for(int seq = una; lost > 0 && seq != nxt && pipe < cwnd; seq++){
+            Segment s = sent[seq & MASK];
+            if(s.state == LOST){
+                lost--;
+                transmit(seq, s, peer);
+            }
+        }
+        while(nxt != end && pipe < cwnd && nxt - una < Math.max(1, peerWindow)){
+            transmit(nxt, sent[nxt & MASK], peer);
+            nxt++;
+        }
+        if(una != nxt){
+            armTimer(rto);
+        }
+    }
+
+    /**
+     * Sends whatever the windows allow once a {@link Server} has learned where its client's datagrams come from
+     */
+    synchronized void resume() {
+        trySend();
+    }
+
+    /**
+     * Sends a segment
+     * @param seq The segment's number
+     * @param s The segment
+     * @param peer Where to send it
+     */
+    private void transmit(int seq, Segment s, SocketAddress peer) {
+        s.state = IN_FLIGHT;
+        s.transmissions++;
+        s.sentAt = System.nanoTime();
+        pipe += s.length;
+        try {
+            channel.send(stream.unreliableToken, peer, UnreliableChannel.SEGMENT, seq, ByteBuffer.wrap(s.data, 0, s.length));
+        } catch (IOException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+
+    /**
+     * Starts the retransmission timer if it is not running
+     * @param delay Time until the timer runs out, in nanoseconds
+     */
+    private void armTimer(long delay) {
+        if(timerArmed){return;}
+        timerArmed = true;
+        stream.loop.schedule(delay, this::timeout);
+    }
+
+    /**
+     * Runs when the retransmission timer runs out. If the oldest unacknowledged segment was sent a whole timeout ago, it is sent again straight away and the timeout doubles. Should it run out again, every segment in flight is taken to be lost and the congestion window goes back to a single segment, so a round trip that was only briefly slow does not cost the whole window. A segment sent too many times fails the lane.
+     */
+    private synchronized void timeout() {
+        timerArmed = false;
+        if(closed || una == nxt){return;}
+        Segment head = sent[una & MASK];
+        long waited = System.nanoTime() - head.sentAt;
+        if(head.state == IN_FLIGHT && waited < rto){
+            armTimer(rto - waited);
+            return;
+        }
+        if(head.transmissions >= MAX_TRANSMISSIONS){
+            fail();
+            return;
+        }
+        rto = Math.min(rto * 2, MAX_RTO);
+        SocketAddress peer = stream.unreliablePeer;
+        if(head.transmissions == 1 && peer != null){
+            if(head.state == IN_FLIGHT){
+                pipe -= head.length;
+            }
+            else{
+                lost--;
+            }
+            transmit(una, head, peer);
+            armTimer(rto);
+            return;
+        }
+        ssthresh = Math.max(pipe / 2.0, 2 * SEGMENT_SIZE);
+        cwnd = SEGMENT_SIZE;
+        recovering = false;
+        for(int seq = una; seq != nxt; seq++){
+            Segment s = sent[seq & MASK];
+            if(s.state == IN_FLIGHT){
+                s.state = LOST;
+                pipe -= s.length;
+                lost++;
+            }
+        }
+        trySend();
+    }
+
+    /**
+     * Handles an acknowledgement: drops the segments it acknowledges, measures the round trip time, marks segments overtaken by at least {@link #LOSS_THRESHOLD} later ones as lost, adjusts the congestion window, and sends whatever the windows now allow
+     * @param ack Number of the next segment the receiver expects in order
+     * @param in The rest of the acknowledgement: the receiver's room, the number of the latest segment it received, and the ranges it has received past a gap
+     */
+    synchronized void receiveAck(int ack, ByteBuffer in) {
+        if(closed || in.remaining() < 2 * Integer.BYTES + 1 || ack - una < 0 || ack - nxt > 0){return;}
+        int window = in.getInt(), echo = in.getInt(), blocks = in.get();
+        if(in.remaining() < blocks * 2 * Integer.BYTES){return;}
+        long now = System.nanoTime();
+        if(nxt - echo > 0 && end - echo <= WINDOW){
+            Segment s = sent[echo & MASK];
+            if(s.transmissions == 1 && !s.sampled){
+                s.sampled = true;
+                measure(now - s.sentAt);
+            }
+        }
+        int acked = 0;
+        for(; una != ack; una++){
+            Segment s = sent[una & MASK];
+            if(s.state == IN_FLIGHT){
+                pipe -= s.length;
+                acked += s.length;
+            }
+            else if(s.state == LOST){
+                lost--;
+                acked += s.length;
+            }
+            s.state = UNSENT;
+        }
+        boolean lossFound = false;
+        if(blocks > 0){
+            for(int b = 0; b < blocks; b++){
+                int start = in.getInt(), stop = in.getInt();
+                if(start - una < 0){start = una;}
+                if(stop - nxt > 0){stop = nxt;}
+                for(int seq = start; seq - stop < 0; seq++){
+                    Segment s = sent[seq & MASK];
+                    if(s.state == IN_FLIGHT){
+                        pipe -= s.length;
+                        acked += s.length;
+                    }
+                    else if(s.state == LOST){
+                        lost--;
+                        acked += s.length;
+                    }
+                    else{
+                        continue;
+                    }
+                    s.state = SACKED;
+                    if(seq - sackHigh > 0 || sackHigh - una < 0){
+                        sackHigh = seq;
+                    }
+                }
+            }
+            if(sackHigh - una > 0){
+                int overtaken = 0;
+                for(int seq = sackHigh; seq - una >= 0; seq--){
+                    Segment s = sent[seq & MASK];
+                    if(s.state == SACKED){
+                        overtaken++;
+                    }
+                    else if(s.state == IN_FLIGHT && overtaken >= LOSS_THRESHOLD && (s.transmissions == 1 || now - s.sentAt >= srtt)){
+                        s.state = LOST;
+                        pipe -= s.length;
+                        lost++;
+                        lossFound = true;
+                    }
+                }
+            }
+        }
+        if(lossFound && !recovering){
+            recovering = true;
+            recoveryEnd = nxt;
+            ssthresh = Math.max(cwnd / 2, 2 * SEGMENT_SIZE);
+            cwnd = ssthresh;
+        }
+        if(recovering && una - recoveryEnd >= 0){
+            recovering = false;
+        }
+        if(acked > 0 && !recovering){
+            cwnd = Math.min(WINDOW * SEGMENT_SIZE, cwnd < ssthresh ? cwnd + acked : cwnd + (double) SEGMENT_SIZE * acked / cwnd);
+        }
+        peerWindow = window;
+        trySend();
+        if(acked > 0 && wakeWriter){
+            wakeWriter = false;
+            stream.loop.execute(stream::writeLane);
+        }
+    }
+
+    /**
+     * Updates the round trip time and retransmission timeout with a new measurement, as TCP does
+     * @param sample The measured round trip time, in nanoseconds
+     */
+    private void measure(long sample) {
+        if(srtt < 0){
+            srtt = sample;
+            rttvar = sample / 2;
+        }
+        else{
+            rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+            srtt = (7 * srtt + sample) / 8;
+        }
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + Math.max(4 * rttvar, RTO_MARGIN)));
+    }
+
+    /**
+     * Stores a received segment, and has the connection read the stream if the segment was the next one expected in order. Segments already received, or too far ahead to have room for, are dropped.
+     * @param seq The segment's number
+     * @param data The segment's data, which is consumed
+     */
+    synchronized void receiveSegment(int seq, ByteBuffer data) {
+        if(closed){return;}
+        ackDue = true;
+        lastReceived = seq;
+        if(data.remaining() > SEGMENT_SIZE || seq - rcvNxt < 0 || seq - rcvRead >= WINDOW){return;}
+        int i = seq & MASK;
+        if(!present[i]){
+            if(slots[i] == null){
+                slots[i] = new byte[SEGMENT_SIZE];
+            }
+            lengths[i] = data.remaining();
+            data.get(slots[i], 0, lengths[i]);
+            present[i] = true;
+            if(seq - rcvHigh >= 0){
+                rcvHigh = seq + 1;
+            }
+        }
+        if(seq == rcvNxt){
+            while(rcvNxt - rcvRead < WINDOW && present[rcvNxt & MASK]){
+                rcvNxt++;
+            }
+            scheduleRead();
+        }
+    }
+
+    /**
+     * Sends an acknowledgement if segments have been received since the last one
+     */
+    synchronized void acknowledge() {
+        if(ackDue){
+            sendAck();
+        }
+    }
+
+    /**
+     * Sends an acknowledgement of the segments received in order, with the receiver's room, the latest segment received, and the highest ranges of segments received past a gap
+     */
+    private void sendAck() {
+        SocketAddress peer = stream.unreliablePeer;
+        if(closed || peer == null){return;}
+        ackDue = false;
+        int[] starts = new int[MAX_SACK_BLOCKS], stops = new int[MAX_SACK_BLOCKS];
+        int blocks = 0;
+        for(int seq = rcvNxt; seq - rcvHigh < 0; seq++){
+            if(!present[seq & MASK]){continue;}
+            int start = seq;
+            while(seq - rcvHigh < 0 && present[seq & MASK]){
+                seq++;
+            }
+            starts[blocks % MAX_SACK_BLOCKS] = start;
+            stops[blocks % MAX_SACK_BLOCKS] = seq;
+            blocks++;
+        }
+        int count = Math.min(blocks, MAX_SACK_BLOCKS);
+        advertised = WINDOW - (rcvNxt - rcvRead);
+        ByteBuffer out = ByteBuffer.allocate(2 * Integer.BYTES + 1 + count * 2 * Integer.BYTES);
+        out.putInt(advertised).putInt(lastReceived).put((byte) count);
+        for(int b = blocks - 1; b >= blocks - count; b--){
+            out.putInt(starts[b % MAX_SACK_BLOCKS]).putInt(stops[b % MAX_SACK_BLOCKS]);
+        }
+        try {
+            channel.send(stream.unreliableToken, peer, UnreliableChannel.ACK, rcvNxt, out.flip());
+        } catch (IOException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+
+    /**
+     * Has the connection read the stream, unless it has already been asked to
+     */
+    private void scheduleRead() {
+        if(readScheduled){return;}
+        readScheduled = true;
+        stream.loop.execute(() -> stream.loop.laneReadable(stream));
+    }
+
+    /**
+     * Has the connection read whatever has already arrived in order, once it has started reading the stream from the lane
+     */
+    synchronized void startReading() {
+        readScheduled = false;
+        if(rcvRead != rcvNxt || closed){
+            scheduleRead();
+        }
+    }
+
+    /**
+     * Copies as much of the stream as has arrived in order and fits. Once a quarter or less of the receiver's room was free when it was last acknowledged, reading sends a new acknowledgement so the sender knows it has room again.
+     * @param dst Where to copy the stream
+     * @return The number of bytes copied, or -1 if the lane has failed and nothing is left to read
+     */
+    @Override
+    public synchronized int read(ByteBuffer dst) {
+        readScheduled = false;
+        int read = 0;
+        while(rcvRead != rcvNxt && dst.hasRemaining()){
+            int i = rcvRead & MASK;
+            int n = Math.min(dst.remaining(), lengths[i] - readOffset);
+            dst.put(slots[i], readOffset, n);
+            readOffset += n;
+            read += n;
+            if(readOffset == lengths[i]){
+                present[i] = false;
+                readOffset = 0;
+                rcvRead++;
+            }
+        }
+        if(rcvRead != rcvNxt){
+            scheduleRead();
+        }
+        if(read == 0 && closed){return -1;}
+        if(read > 0 && advertised <= WINDOW / 4){
+            sendAck();
+        }
+        return read;
+    }
+
+    /**
+     * Has the connection send its queued data again once acknowledgements make room in the lane or acknowledge everything, see {@link DataStream#writeLane()}. The connection is woken straight away if that has already happened.
+     */
+    synchronized void wakeWhenReady() {
+        if(closed || una == end){
+            stream.loop.execute(stream::writeLane);
+        }
+        else{
+            wakeWriter = true;
+        }
+    }
+
+    /**
+     * Checks whether everything written has been acknowledged
+     * @return Whether nothing is waiting to be acknowledged, which is also true once the lane has closed or failed
+     */
+    synchronized boolean isFlushed() {
+        return closed || una == end;
+    }
+
+    /**
+     * Fails the lane once the other side is taken to be gone, waking the connection so it finds out when it next reads or sends
+     */
+    synchronized void fail() {
+        closed = true;
+        stream.loop.execute(() -> stream.loop.laneReadable(stream));
+        stream.loop.execute(stream::writeLane);
+    }
+
+    /**
+     * Checks whether the lane is open
+     * @return Whether the lane has not been closed and has not failed
+     */
+    @Override
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes the lane, dropping everything not yet acknowledged
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    /**
+     * A numbered piece of the stream sent in a single datagram. Segments are kept in their slot and reused for later numbers.
+     */
+    private static final class Segment {
+        /**
+         * The segment's bytes
+         */
+        final byte[] data = new byte[SEGMENT_SIZE];
+        /**
+         * Number of bytes in the segment
+         */
+        int length;
+        /**
+         * {@link #UNSENT}, {@link #IN_FLIGHT}, {@link #SACKED} or {@link #LOST}
+         */
+        byte state;
+        /**
+         * Number of times the segment has been sent
+         */
+        int transmissions;
+        /**
+         * When the segment was last sent, from {@link System#nanoTime()}
+         */
+        long sentAt;
+        /**
+         * Whether the segment's round trip time has been measured
+         */
+        boolean sampled;
+
+        /**
+         * Empties the segment for a new number
+         */
+        void reset() {
+            length = 0;
+            state = UNSENT;
+            transmissions = 0;
+            sampled = false;
+        }
+    }
+}
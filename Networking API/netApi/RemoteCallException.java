@@ -0,0 +1,26 @@
+package netApi;
+
+import java.io.IOException;
+
+/**
+ * Signals that a call made with call failed on the other side of the connection, because the other side had no handler for the request's class, the handler threw an exception, or the request or answer could not be sent. The message describes what went wrong on the other side.
+ */
+public class RemoteCallException extends IOException {
+    /**
+     * Version of the class's serialized form
+     */
+    private static final long serialVersionUID = 1L;
+    /**
+     * Creates a new RemoteCallException
+     * @param s Description of error
+     */
+    public RemoteCallException(String s) {
+        super(s);
+    }
+    /**
+     * Creates a new RemoteCallException
+     */
+    public RemoteCallException() {
+        super();
+    }
+}
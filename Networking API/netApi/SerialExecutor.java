@@ -0,0 +1,79 @@
+package netApi;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queue of events belonging to a single connection. Events are run one at a time and in the order they were received on a shared {@link Executor}, so that connections can fire their events in parallel while each connection still sees its own events in order.
+ * @hidden
+ */
+class SerialExecutor implements Executor {
+    /**
+     * Most events run in one turn before the queue gives the shared {@link Executor}'s thread back to other connections
+     */
+    private static final int BATCH_SIZE = 64;
+    /**
+     * The shared {@link Executor} events are run on
+     */
+    private final Executor executor;
+    /**
+     * Events waiting to be run
+     */
+    private final Queue<Runnable> events;
+    /**
+     * Whether a turn of this queue has been handed to the shared {@link Executor} and not yet finished
+     */
+    private final AtomicBoolean scheduled;
+
+    /**
+     * Creates a new SerialExecutor
+     * @param executor The shared {@link Executor} events are run on
+     */
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+        events = new ConcurrentLinkedQueue<>();
+        scheduled = new AtomicBoolean();
+    }
+
+    /**
+     * Queues an event to run after all previously queued events of this connection
+     * @param event The event to run
+     */
+    @Override
+    public void execute(Runnable event) {
+        events.add(event);
+        schedule();
+    }
+
+    /**
+     * Hands a turn of this queue to the shared {@link Executor} if there are events waiting and no turn is already scheduled
+     */
+    private void schedule() {
+        if(!events.isEmpty() && scheduled.compareAndSet(false, true)){
+            executor.execute(this::runBatch);
+        }
+    }
+
+    /**
+     * Runs up to {@link #BATCH_SIZE} waiting events, then schedules another turn if more are waiting
+     */
+    private void runBatch() {
+        try {
+            Runnable event;
+            for(int i = 0; i < BATCH_SIZE && (event = events.poll()) != null; i++){
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    if(NetEventHandler.DEV_VERSION){
+                        e.printStackTrace(System.out);
+                    }
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package netApi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Turns {@link Object}s sent with {@link ServerSideConnection#send(Object)} or {@link ClientSideConnection#send(Object)} into bytes and back. A Serializer is chosen per type of connection by overriding {@link Server#getSerializer()} or {@link ClientSideConnection#getSerializer()}, and both sides of a connection must use matching Serializers. {@link Object}s of classes the Serializer cannot handle are sent with Java serialization instead.
+ */
+public interface Serializer {
+    /**
+     * Checks whether {@link Object}s of a class can be written by this Serializer. This is called for every {@link Object} sent, so it should be fast.
+     * @param type Class of the {@link Object} about to be sent
+     * @return Whether the Serializer can write {@link Object}s of the class
+     */
+    boolean canSerialize(Class<?> type);
+
+    /**
+     * Writes an {@link Object}, including whatever the other side needs to know what class to read it as
+     * @param o {@link Object} to write, of a class that {@link #canSerialize(Class)} accepted
+     * @param out Where to write the {@link Object}
+     * @throws IOException If the {@link Object} could not be written
+     */
+    void serialize(Object o, DataOutput out) throws IOException;
+
+    /**
+     * Reads an {@link Object} written by {@link #serialize(Object, DataOutput)}
+     * @param in Where to read the {@link Object} from, which ends where the written {@link Object} ended
+     * @return The {@link Object} read
+     * @throws IOException If the {@link Object} could not be read
+     * @throws ClassNotFoundException If the class of the {@link Object} cannot be found
+     */
+    Object deserialize(DataInput in) throws IOException, ClassNotFoundException;
+}
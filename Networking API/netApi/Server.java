@@ -7,7 +7,16 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
 
 /**
  * Class for hosting and managing clients. This essentially acts as a collection of {@link ServerSideConnection}s that automatically updates when one joins or leaves.
@@ -22,11 +31,23 @@ public abstract class Server<T extends ServerSideConnection> {
      * Socket for opening connections to clients
      */
     private ServerSocketChannel socket;
+    /**
+     * Channel the datagrams of every client's unreliable channel and {@link Transport#UDP} transport go through (null unless the server uses {@link Transport#UDP} or {@link #allowsUnreliable()} returned true when the server opened)
+     */
+    private volatile UnreliableChannel unreliable;
+    /**
+     * How clients send and receive their messages once they have joined
+     */
+    private final Transport transport;
     private int port;
     /**
-     * Lists of all users connected.
+     * Lists of all users connected. Users can join and leave from different {@link EventLoop}s at the same time, so this is added to and removed from without locking and is safe to iterate while it changes.
      */
-    private ArrayList<T> users;
+    private Collection<T> users;
+    /**
+     * Subscribers of each topic, see {@link #subscribe(ServerSideConnection, String)}. Topics are added when their first client subscribes and removed when their last unsubscribes, and each topic's subscribers can be added to and removed from without locking while it is published to.
+     */
+    private final Map<String, Set<T>> topics = new ConcurrentHashMap<>();
     /**
      * Whether the server is public.
      */
@@ -35,16 +56,34 @@ public abstract class Server<T extends ServerSideConnection> {
      * Whether the server is open.
      */
     private boolean isOpen;
+    /**
+     * Handlers of the message classes registered with {@link #onMessage(Class, ServerMessageHandler)}, indexed by the classes' numbers in the server's {@link MessageRegistry}
+     */
+    private volatile ServerMessageHandler<?, ?>[] messageHandlers;
+    /**
+     * Handlers of the calls registered with {@link #onCall(Class, ServerCallHandler)}, by the class of their requests
+     */
+    private volatile Map<Class<?>, ServerCallHandler<?, ?>> callHandlers = Map.of();
+    /**
+     * The state shared with every client through {@link #syncState(Object)}
+     */
+    final StateSync stateSync;
     /**
      * Creates a new server that is initialized closed
      * @param isPublic Whether the server will start public
      * @throws IOException If an I/O error occurs
      */
     public Server(boolean isPublic) throws IOException {
-        this.isPublic = isPublic;
-        isOpen = false;
-        port = 0;
-        users = new ArrayList();
+        this(isPublic, Transport.TCP);
+    }
+    /**
+     * Creates a new server that is initialized closed
+     * @param isPublic Whether the server will start public
+     * @param transport How clients send and receive their messages once they have joined
+     * @throws IOException If an I/O error occurs
+     */
+    public Server(boolean isPublic, Transport transport) throws IOException {
+        this(0, isPublic, transport);
     }
     /**
      * Creates a new server that is initialized closed
@@ -53,30 +92,41 @@ public abstract class Server<T extends ServerSideConnection> {
      * @param port The port that the server will be set to use
      */
     public Server(int port, boolean isPublic) throws IOException {
+        this(port, isPublic, Transport.TCP);
+    }
+    /**
+     * Creates a new server that is initialized closed
+     * @param port The port that the server will be set to use
+     * @param isPublic Whether the server will start public
+     * @param transport How clients send and receive their messages once they have joined
+     * @throws IOException If an I/O error occurs
+     */
+    public Server(int port, boolean isPublic, Transport transport) throws IOException {
         this.isPublic = isPublic;
         this.port = port;
+        this.transport = transport == null ? Transport.TCP : transport;
         isOpen = false;
-        users = new ArrayList();
+        users = new ConcurrentLinkedQueue<>();
+        messageHandlers = new ServerMessageHandler<?, ?>[0];
+        stateSync = new StateSync(NetEventHandler.STATE_HISTORY);
     }
     /**
-     * Sends the server info to the SocketAddress a through udp (called automatically when clients are searching for servers and the server is public)
+     * Sends the server info to the SocketAddress a through udp as a single datagram (called automatically when clients are searching for servers and the server is public)
      * @param a Destination of server info
      */
     public void sendServerInfo(SocketAddress a){
         try{
             if(a instanceof InetSocketAddress){
                 byte[] data = getServerInfo();
-                serverBroadcast.send(ByteBuffer.wrap("sinfo".getBytes()), a);
-                serverBroadcast.send(ByteBuffer.wrap(new byte[]{(byte)(getPort()&255), (byte)(byte)(getPort() >> 8)}), a);
-                ByteBuffer temp = ByteBuffer.allocate(Integer.BYTES);
-                temp.putInt(0, data.length);
-                serverBroadcast.send(temp, a);
-                serverBroadcast.send(ByteBuffer.wrap(data), a);
+                byte[] header = "sinfo".getBytes();
+                ByteBuffer out = ByteBuffer.allocate(header.length + 2 + Integer.BYTES + data.length);
+                out.put(header).put((byte)(getPort()&255)).put((byte)(getPort() >> 8)).putInt(data.length).put(data).flip();
+                serverBroadcast.send(out, a);
             }
         }catch(Exception ex){}
     }
     /**
-     * Abstract method that returns the server's info as an array of bytes (to be processed by {@link ClientSideConnection#receiveServerInfo(InetSocketAddress, byte[])})
+     * Abstract method that returns the server's info as an array of bytes (to be processed by {@link ClientSideConnection#receiveServerInfo(InetSocketAddress, byte[])}). The info is sent in a single datagram, so it must be well under 64 kilobytes.
      * @return Server's info as an array of bytes
      */
     public abstract byte[] getServerInfo();
@@ -113,6 +163,7 @@ public abstract class Server<T extends ServerSideConnection> {
             serverBroadcast.join(InetAddress.getByName("232.45.103.96"), NetworkUtil.getUsableInterface());
             serverBroadcast.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 255);
             serverBroadcast.configureBlocking(false);
+            NetEventHandler.registerServer(this);
         }
         isPublic = in;
     }
@@ -133,6 +184,9 @@ public abstract class Server<T extends ServerSideConnection> {
             socket.configureBlocking(false);
             socket.bind(new InetSocketAddress(Inet4Address.getLocalHost(), port));
             socket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if(transport == Transport.UDP || allowsUnreliable()){
+                unreliable = UnreliableChannel.open(((InetSocketAddress) socket.getLocalAddress()).getAddress());
+            }
             isOpen = true;
             if(isPublic){
                 serverBroadcast = DatagramChannel.open();
@@ -164,14 +218,278 @@ public abstract class Server<T extends ServerSideConnection> {
             if (serverBroadcast != null) {
                 serverBroadcast.close();
             }
+            if (unreliable != null) {
+                unreliable.closeWhenIdle();
+                unreliable = null;
+            }
             users.forEach(u -> {
                 u.kick("The server is Closing");
             });
-            users = new ArrayList();
+            users = new ConcurrentLinkedQueue<>();
+            topics.values().forEach(subscribers -> subscribers.forEach(u -> u.topics.clear()));
+            topics.clear();
+        }
+    }
+    /**
+     * Returns the {@link Serializer} used for {@link Object}s sent between the server and its clients, which must match the one returned by the clients' {@link ClientSideConnection#getSerializer()}. This is called once for every client that joins. By default this is null, which sends everything with Java serialization; override it to return {@link CompactSerializer#INSTANCE} or another {@link Serializer} to use that instead.
+     * @return The server's {@link Serializer}
+     */
+    public Serializer getSerializer(){
+        return null;
+    }
+    /**
+     * Returns the {@link MessageRegistry} of the message classes sent between the server and its clients, which must match the one returned by the clients' {@link ClientSideConnection#getMessageRegistry()}. This is called once for every client that joins and should always return the same MessageRegistry. By default this is null, meaning no message classes are registered.
+     * @return The server's {@link MessageRegistry}
+     */
+    public MessageRegistry getMessageRegistry(){
+        return null;
+    }
+    /**
+     * Returns the {@link Compression} used for large messages sent to the server's clients. Messages are only compressed for clients that have agreed to it while joining, and a server returning {@link Compression#NONE} is never sent compressed messages either. This is called once for every client that joins. By default this is {@link Compression#NONE}.
+     * @return The server's {@link Compression}
+     */
+    public Compression getCompression(){
+        return Compression.NONE;
+    }
+    /**
+     * Returns whether clients that ask for it while joining are given an unreliable channel, through which data is sent as datagrams that may be lost or arrive out of order, but are never held up behind lost data the way messages sent over the connection are (see {@link ServerSideConnection#sendUnreliable(ByteBuffer)}). This suits data that is sent often and soon out of date, such as positions. This is called when the server opens. By default this is false.
+     * @return Whether the server gives clients unreliable channels
+     */
+    public boolean allowsUnreliable(){
+        return false;
+    }
+    /**
+     * Returns how clients send and receive their messages once they have joined, which is chosen when the server is created. Clients of older versions always use {@link Transport#TCP}, see {@link ServerSideConnection#getTransport()}.
+     * @return The server's {@link Transport}
+     */
+    public Transport getTransport(){
+        return transport;
+    }
+    /**
+     * Returns the channel the datagrams of every client's unreliable channel and {@link Transport#UDP} transport go through
+     * @return The channel, or null if the server neither uses {@link Transport#UDP} nor gives clients unreliable channels
+     * @hidden
+     */
+    UnreliableChannel getUnreliableChannel(){
+        return unreliable;
+    }
+    /**
+     * Sets the handler that fires when a client sends a message of a class registered in the server's {@link MessageRegistry}, in place of the client's {@link ServerSideConnection#receiveObject(Object)}. Messages of registered classes that have no handler still fire receiveObject.
+     * @param type The message class
+     * @param handler The handler for the message class, or null to remove it
+     * @param <M> The message class
+     * @throws IllegalArgumentException If the class is not registered in the server's {@link MessageRegistry}
+     */
+    public synchronized <M> void onMessage(Class<M> type, ServerMessageHandler<T, ? super M> handler){
+        MessageRegistry registry = getMessageRegistry();
+        int id = registry == null ? -1 : registry.getId(type);
+        if(id == -1){
+            throw new IllegalArgumentException(type.getName() + " is not registered in the server's MessageRegistry");
+        }
+        ServerMessageHandler<?, ?>[] handlers = Arrays.copyOf(messageHandlers, Math.max(messageHandlers.length, id + 1));
+        handlers[id] = handler;
+        messageHandlers = handlers;
+    }
+    /**
+     * Returns the handler of a registered message class. The handler is only ever given clients of this server and messages of the class it was set for, which is what makes treating it as a handler of any client and message safe.
+     * @param id The message class's number in the server's {@link MessageRegistry}
+     * @return The handler, or null if the class has none
+     */
+    @SuppressWarnings("unchecked")
+    ServerMessageHandler<ServerSideConnection<?>, Object> getMessageHandler(int id){
+        ServerMessageHandler<?, ?>[] handlers = messageHandlers;
+        return id < handlers.length ? (ServerMessageHandler<ServerSideConnection<?>, Object>) handlers[id] : null;
+    }
+    /**
+     * Sets the handler that answers calls clients make with {@link ClientSideConnection#call(Object)} whose requests are of a class. Calls whose requests have no handler fail with a {@link RemoteCallException}.
+     * @param type The class of request, which must match the request's class exactly
+     * @param handler The handler for the class of request, or null to remove it
+     * @param <M> The class of request
+     */
+    public synchronized <M> void onCall(Class<M> type, ServerCallHandler<T, ? super M> handler){
+        Map<Class<?>, ServerCallHandler<?, ?>> handlers = new HashMap<>(callHandlers);
+        if(handler == null){
+            handlers.remove(type);
+        }
+        else{
+            handlers.put(type, handler);
         }
+        callHandlers = handlers;
+    }
+    /**
+     * Returns the handler of a class of request. The handler is only ever given clients of this server and requests of the class it was set for, which is what makes treating it as a handler of any client and request safe.
+     * @param type The class of request
+     * @return The handler, or null if the class has none
+     */
+    @SuppressWarnings("unchecked")
+    ServerCallHandler<ServerSideConnection<?>, Object> getCallHandler(Class<?> type){
+        return (ServerCallHandler<ServerSideConnection<?>, Object>) callHandlers.get(type);
+    }
+    /**
+     * Publishes a new version of the state shared with every client, such as a game's board or the entities in a room, which the clients receive through {@link ClientSideConnection#receiveState(Object, long)}. The state is encoded once with the server's {@link Serializer} (or Java serialization if it cannot write the state), and each client is only sent the bytes that changed since the version it was last sent, so states that change a little at a time cost little to keep in step. Clients are sent the whole state when they join, when they are more than {@link NetEventHandler#STATE_HISTORY} versions behind, or when the changes would not be smaller. Clients that have not acknowledged any of the last {@link NetEventHandler#STATE_HISTORY} versions sent to them are skipped until they catch up.
+     * @param state The new state, which should be encoded the same way every time, so that unchanged parts give the same bytes
+     * @return The number of the new version, counting from 0
+     * @throws IOException If the state could not be encoded
+     */
+    public long syncState(Object state) throws IOException {
+        return stateSync.publish(Objects.requireNonNull(state), getSerializer(), this);
+    }
+    /**
+     * Sends the {@link Object} o to every client, like calling {@link ServerSideConnection#send(Object)} on each of them. The message is encoded once and the same bytes are shared by every client's connection, so a large message costs one serialization however many clients receive it. Single primitives are cheap enough to encode that they are still sent to each client separately.
+     * @param o Data to send to the clients
+     * @return The number of clients the data was sent to
+     * @throws IOException If the data could not be encoded
+     */
+    public int broadcast(Object o) throws IOException {
+        return broadcast(o, null);
+    }
+    /**
+     * Sends the {@link Object} o to every client accepted by a filter, see {@link #broadcast(Object)}
+     * @param o Data to send to the clients
+     * @param filter Decides which clients the data is sent to, or null to send it to every client
+     * @return The number of clients the data was sent to
+     * @throws IOException If the data could not be encoded
+     */
+    public int broadcast(Object o, Predicate<? super T> filter) throws IOException {
+        return send(o, users, filter);
+    }
+    /**
+     * Sends the {@link Object} o to a group of clients, encoding it once, see {@link #broadcast(Object)}
+     * @param o Data to send to the clients
+     * @param clients The clients
+     * @param filter Decides which of the clients the data is sent to, or null to send it to all of them
+     * @return The number of clients the data was sent to
+     * @throws IOException If the data could not be encoded
+     */
+    private int send(Object o, Iterable<T> clients, Predicate<? super T> filter) throws IOException {
+        SharedFrame frame = SharedFrame.of(o, getSerializer(), getMessageRegistry());
+        int sent = 0;
+        try {
+            for(T u : clients){
+                if(!u.isConnected() || filter != null && !filter.test(u)){continue;}
+                try {
+                    if(frame == null){
+                        u.send(o);
+                    }
+                    else{
+                        u.serverSideConnection.sendShared(frame);
+                    }
+                    sent++;
+                } catch (IOException e) {
+                    if(NetEventHandler.DEV_VERSION){
+                        e.printStackTrace(System.out);
+                    }
+                }
+            }
+        } finally {
+            if(frame != null){
+                frame.finish();
+            }
+        }
+        return sent;
+    }
+    /**
+     * Subscribes a client to a topic, such as a chat room, a game table or a spectator feed, so that it receives everything published to the topic with {@link #publish(String, Object)}. Clients are unsubscribed from all of their topics when they leave the server.
+     * @param c The client
+     * @param topic Name of the topic
+     * @return Whether the client was not already subscribed to the topic
+     */
+    public boolean subscribe(T c, String topic){
+        Objects.requireNonNull(topic);
+        boolean[] added = new boolean[1];
+        topics.compute(topic, (name, subscribers) -> {
+            if(subscribers == null){
+                subscribers = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = subscribers.add(c);
+            return subscribers;
+        });
+        ServerSideConnection<?> client = c;
+        client.topics.add(topic);
+        if(!c.isConnected()){
+            unsubscribe(c, topic);
+            return false;
+        }
+        return added[0];
+    }
+    /**
+     * Unsubscribes a client from a topic
+     * @param c The client
+     * @param topic Name of the topic
+     * @return Whether the client was subscribed to the topic
+     */
+    public boolean unsubscribe(T c, String topic){
+        return leaveTopic(c, topic);
+    }
+    /**
+     * Unsubscribes a client from a topic, see {@link #unsubscribe(ServerSideConnection, String)}
+     * @param c The client
+     * @param topic Name of the topic
+     * @return Whether the client was subscribed to the topic
+     */
+    private boolean leaveTopic(ServerSideConnection<?> c, String topic){
+        boolean[] removed = new boolean[1];
+        topics.computeIfPresent(topic, (name, subscribers) -> {
+            removed[0] = subscribers.remove(c);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+        c.topics.remove(topic);
+        return removed[0];
+    }
+    /**
+     * Unsubscribes a client from every topic it is subscribed to, which takes time in proportion to the client's number of topics
+     * @param c The client
+     */
+    public void unsubscribeAll(T c){
+        leaveTopics(c);
+    }
+    /**
+     * Unsubscribes a client from every topic it is subscribed to, see {@link #unsubscribeAll(ServerSideConnection)}
+     * @param c The client
+     */
+    private void leaveTopics(ServerSideConnection<?> c){
+        for(String topic : c.topics){
+            leaveTopic(c, topic);
+        }
+    }
+    /**
+     * Sends the {@link Object} o to every client subscribed to a topic, encoding it once like {@link #broadcast(Object)}. Only the topic's subscribers are visited, so publishing takes the same time however many other clients the server has.
+     * @param topic Name of the topic
+     * @param o Data to send to the subscribers
+     * @return The number of clients the data was sent to
+     * @throws IOException If the data could not be encoded
+     */
+    public int publish(String topic, Object o) throws IOException {
+        Set<T> subscribers = topics.get(topic);
+        if(subscribers == null){return 0;}
+        return send(o, subscribers, null);
+    }
+    /**
+     * Returns the clients subscribed to a topic
+     * @param topic Name of the topic
+     * @return A list of the clients subscribed to the topic, which is empty if the topic has no subscribers
+     */
+    public ArrayList<T> getSubscribers(String topic){
+        Set<T> subscribers = topics.get(topic);
+        return subscribers == null ? new ArrayList<>() : new ArrayList<>(subscribers);
+    }
+    /**
+     * Returns the names of every topic that has at least one subscriber
+     * @return A list of the topics' names
+     */
+    public ArrayList<String> getTopics(){
+        return new ArrayList<>(topics.keySet());
+    }
+    /**
+     * Returns the number of the latest version of the state published with {@link #syncState(Object)}
+     * @return The latest version, or -1 if no state has been published
+     */
+    public long getStateVersion(){
+        return stateSync.getVersion();
     }
     /**
      * Method used to authenticate the client when connecting to a server for security and to make sure that the client is connecting to the right type of server. This correlates to {@link ClientSideConnection}'s {@link ClientSideConnection#authenticate(SocketChannel)} method. This method is currently undefined, and you should define it if you want added security to your program.
+     * It is called on a thread of its own rather than an event loop thread, so it may wait for the client, but a client that has not passed within {@link NetEventHandler#HANDSHAKE_TIMEOUT} of connecting is cancelled and its channel closed. The channel is in non-blocking mode.
      * @param client Ip address of client
      * @return Whether the client passed authentication
      */
@@ -192,7 +510,6 @@ public abstract class Server<T extends ServerSideConnection> {
      */
     public void removeServerClient(T c) {
         c.kick();
-        users.remove(c);
     }
     /**
      * Removes a {@link ServerSideConnection} from this server.
@@ -202,6 +519,24 @@ public abstract class Server<T extends ServerSideConnection> {
     public void removeServerClient(T c, String in) {
         c.kick(in);
     }
+    /**
+     * Fires {@link #clientDisconnect(ServerSideConnection, String)} for a client whose connection broke or sent data that could not be read, then removes it with {@link #removeServerClient(ServerSideConnection)}. The client is always one of this server's own, which is what makes treating it as a T safe.
+     * @param c {@link ServerSideConnection} that is no longer connected
+     */
+    @SuppressWarnings("unchecked")
+    void removeBrokenClient(ServerSideConnection<?> c) {
+        T client = (T) c;
+        c.serverSideConnection.dispatch(() -> clientDisconnect(client, null));
+        removeServerClient(client);
+    }
+    /**
+     * Forgets a {@link ServerSideConnection} that has already disconnected or been kicked, without trying to kick it, unsubscribing it from all of its topics.
+     * @param c {@link ServerSideConnection} to be forgotten
+     */
+    void removeDisconnectedClient(ServerSideConnection<?> c) {
+        users.remove(c);
+        leaveTopics(c);
+    }
     /**
      * Returns a list of {@link ServerSideConnection}s currently connected to the server
      * @return A list of {@link ServerSideConnection}s currently connected to the server
@@ -226,6 +561,7 @@ public abstract class Server<T extends ServerSideConnection> {
         socket.configureBlocking(false);
         socket.bind(new InetSocketAddress(Inet4Address.getLocalHost(), port));
         socket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        NetEventHandler.registerServer(this);
     }
 
     /**
@@ -0,0 +1,18 @@
+package netApi;
+
+/**
+ * Answers one class of call made to a {@link Server} by its clients, see {@link Server#onCall(Class, ServerCallHandler)}
+ * @param <T> Type of {@link ServerSideConnection} the {@link Server} is associated with
+ * @param <M> The class of request handled
+ */
+@FunctionalInterface
+public interface ServerCallHandler<T, M> {
+    /**
+     * Fires when a client makes a call with a request of the handled class, and returns the answer sent back to the client. The answer may be a {@link java.util.concurrent.CompletionStage}, in which case it is sent once the stage completes, so a call can be answered without holding up the client's other events.
+     * @param client The client that made the call
+     * @param request The request received
+     * @return The answer, or a {@link java.util.concurrent.CompletionStage} of the answer
+     * @throws Exception If the call failed, which fails the client's future with a {@link RemoteCallException} describing the exception
+     */
+    Object handle(T client, M request) throws Exception;
+}
@@ -0,0 +1,16 @@
+package netApi;
+
+/**
+ * Handles one class of message received by a {@link Server} from its clients, see {@link Server#onMessage(Class, ServerMessageHandler)}
+ * @param <T> Type of {@link ServerSideConnection} the {@link Server} is associated with
+ * @param <M> The class of message handled
+ */
+@FunctionalInterface
+public interface ServerMessageHandler<T, M> {
+    /**
+     * Fires when a client sends a message of the handled class
+     * @param client The client that sent the message
+     * @param message The message received
+     */
+    void handle(T client, M message);
+}
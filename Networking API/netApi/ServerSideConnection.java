@@ -2,7 +2,14 @@ package netApi;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The server-side version of a client. This is the type of client that is stored and accessed on servers.
@@ -22,22 +29,24 @@ public abstract class ServerSideConnection<T extends Server> {
      */
     protected SocketChannel connection;
     /**
-     * Creates a new ServerClient
+     * Version of the {@link Server}'s shared state the client was last sent, or -1 if it has not been sent any, see {@link Server#syncState(Object)}
+     */
+    long stateSent = -1;
+    /**
+     * Latest version of the {@link Server}'s shared state the client has acknowledged receiving, or -1 if none
+     */
+    long stateAcked = -1;
+    /**
+     * Topics the client is subscribed to on its {@link Server}, see {@link Server#subscribe(ServerSideConnection, String)}
+     */
+    final Set<String> topics = ConcurrentHashMap.newKeySet();
+    /**
+     * Creates a new ServerClient. This does not wait on the client, the handshake checking the client's type is run afterwards by the {@link EventLoop} that owns the connection.
      * @param s Connection associated with the associated {@link ClientSideConnection}
      * @param serv {@link Server} associated with the ServerClient
      * @throws IOException If any I/O errors occur
      */
     public ServerSideConnection(SocketChannel s, T serv) throws IOException {
-        ByteBuffer temp = ByteBuffer.allocate(Integer.BYTES);
-        temp.putInt(0, serv.getServerType());
-        s.write(temp);
-        temp.clear();
-        s.read(temp);
-        if(temp.getInt(0) == -1){
-            s.close();
-            serv.clientCancelConnect(this);
-            return;
-        }
         s.configureBlocking(false);
         server = serv;
         connection = s;
@@ -51,7 +60,7 @@ public abstract class ServerSideConnection<T extends Server> {
         return connection;
     }
     /**
-     * Closes the connection with the {@link ClientSideConnection}, removing them from the {@link Server} with the message being in's value
+     * Closes the connection with the {@link ClientSideConnection}, removing them from the {@link Server} and from all of their topics with the message being in's value
      * @param in Reason for being kicked
      */
     public void kick(String in) {
@@ -64,6 +73,10 @@ public abstract class ServerSideConnection<T extends Server> {
                 e.printStackTrace(System.out);
             }
         }
+        Server<?> s = server;
+        if(s != null){
+            s.removeDisconnectedClient(this);
+        }
     }
     /**
      * Closes the connection with the {@link ClientSideConnection}, removing them from the {@link Server} with the message sent being null
@@ -79,7 +92,26 @@ public abstract class ServerSideConnection<T extends Server> {
         return serverSideConnection != null && serverSideConnection.isOpen();
     }
     /**
-     * Sends the client the {@link Object} o, automatically parsing it if it is a primitive or a {@link String}
+     * Returns the topics the client is subscribed to on its {@link Server}, see {@link Server#subscribe(ServerSideConnection, String)}
+     * @return A list of the topics' names
+     */
+    public ArrayList<String> getTopics(){
+        return new ArrayList<>(topics);
+    }
+    /**
+     * Returns whether data can be sent to the client without building up more than {@link NetEventHandler#WRITE_HIGH_WATER_MARK} bytes that the connection has not been able to send yet. Data sent while this is false is still delivered, but senders of large amounts of data should wait for {@link #writabilityChanged(boolean)} before sending more.
+     * @return Whether the connection is writable
+     */
+    public boolean isWritable(){
+        return isConnected() && serverSideConnection.isWritable();
+    }
+    /**
+     * Fires when the connection stops being writable because too much data is waiting to be sent, and again once enough of it has been sent (see {@link #isWritable()}). This does nothing unless overridden.
+     * @param writable Whether the connection is now writable
+     */
+    public void writabilityChanged(boolean writable){}
+    /**
+     * Sends the client the {@link Object} o, automatically parsing it if it is a primitive, a {@link String} or an array of bytes, ints, longs, floats or doubles
      * @param o Data to send to the {@link ClientSideConnection}
      * @throws IOException If any I/O errors occur
      */
@@ -103,11 +135,286 @@ public abstract class ServerSideConnection<T extends Server> {
                 serverSideConnection.sendBool((boolean) o);
             } else if (o instanceof String) {
                 serverSideConnection.sendString((String) o);
+            } else if (o instanceof byte[]) {
+                serverSideConnection.sendBytes((byte[]) o);
+            } else if (o instanceof int[]) {
+                serverSideConnection.sendInts((int[]) o);
+            } else if (o instanceof long[]) {
+                serverSideConnection.sendLongs((long[]) o);
+            } else if (o instanceof float[]) {
+                serverSideConnection.sendFloats((float[]) o);
+            } else if (o instanceof double[]) {
+                serverSideConnection.sendDoubles((double[]) o);
             } else {
                 serverSideConnection.sendObject(o);
             }
         }
     }
+    /**
+     * Sends the client the {@link Integer} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendInt(int in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendInt(in);
+        }
+    }
+    /**
+     * Sends the client the {@link Character} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendChar(char in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendChar(in);
+        }
+    }
+    /**
+     * Sends the client the {@link Long} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendLong(long in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendLong(in);
+        }
+    }
+    /**
+     * Sends the client the {@link Double} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendDouble(double in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendDouble(in);
+        }
+    }
+    /**
+     * Sends the client the {@link Byte} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendByte(byte in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendByte(in);
+        }
+    }
+    /**
+     * Sends the client the {@link Short} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendShort(short in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendShort(in);
+        }
+    }
+    /**
+     * Sends the client the {@link Float} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendFloat(float in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendFloat(in);
+        }
+    }
+    /**
+     * Sends the client the {@link Boolean} in, without the boxing and type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendBool(boolean in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendBool(in);
+        }
+    }
+    /**
+     * Sends the client the {@link String} in, without the type checks of {@link #send(Object)}. The value is written straight into the connection's send buffer.
+     * @param in Data to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendString(String in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendString(in);
+        }
+    }
+    /**
+     * Sends the client a byte array as a single message, copying it into the connection's send buffer in bulk
+     * @param in Array to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendBytes(byte[] in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendBytes(in);
+        }
+    }
+    /**
+     * Sends the client a int array as a single message, copying it into the connection's send buffer in bulk
+     * @param in Array to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendInts(int[] in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendInts(in);
+        }
+    }
+    /**
+     * Sends the client a long array as a single message, copying it into the connection's send buffer in bulk
+     * @param in Array to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendLongs(long[] in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendLongs(in);
+        }
+    }
+    /**
+     * Sends the client a float array as a single message, copying it into the connection's send buffer in bulk
+     * @param in Array to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendFloats(float[] in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendFloats(in);
+        }
+    }
+    /**
+     * Sends the client a double array as a single message, copying it into the connection's send buffer in bulk
+     * @param in Array to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendDoubles(double[] in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendDoubles(in);
+        }
+    }
+    /**
+     * Sends the client the remaining bytes of a {@link ByteBuffer} as a single message, without changing the {@link ByteBuffer}'s position. The client receives it through receiveBuffer.
+     * @param in {@link ByteBuffer} to send to the client
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendBuffer(ByteBuffer in) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendBuffer(in);
+        }
+    }
+    /**
+     * Sends the client the remaining bytes of a {@link ByteBuffer} as a single datagram through its unreliable channel, without changing the {@link ByteBuffer}'s position. Datagrams are not held up behind other data, but may be lost, and one arriving after a later one has been received is dropped. The client receives it through receiveUnreliable. Nothing is sent until the channel is ready, see {@link #hasUnreliableChannel()}.
+     * @param in {@link ByteBuffer} to send to the client, no larger than {@link NetEventHandler#MAX_DATAGRAM_SIZE}
+     * @return Whether the datagram was sent, which does not mean it will arrive
+     * @throws IOException If the data is too large, or any I/O errors occur
+     */
+    public boolean sendUnreliable(ByteBuffer in) throws IOException {
+        return isConnected() && serverSideConnection.sendUnreliable(in);
+    }
+    /**
+     * Sends the client a byte array as a single datagram through its unreliable channel, see {@link #sendUnreliable(ByteBuffer)}
+     * @param in Array to send to the client, no larger than {@link NetEventHandler#MAX_DATAGRAM_SIZE}
+     * @return Whether the datagram was sent, which does not mean it will arrive
+     * @throws IOException If the data is too large, or any I/O errors occur
+     */
+    public boolean sendUnreliable(byte[] in) throws IOException {
+        return sendUnreliable(ByteBuffer.wrap(in));
+    }
+    /**
+     * Returns whether datagrams can be sent to the client through its unreliable channel, which is once the client has asked for one while joining (see {@link ClientSideConnection#wantsUnreliable()}) and its first datagram has reached the server. The server must allow unreliable channels (see {@link Server#allowsUnreliable()}), or use {@link Transport#UDP}, which gives every client that supports it an unreliable channel.
+     * @return Whether the client's unreliable channel is ready
+     */
+    public boolean hasUnreliableChannel(){
+        return isConnected() && serverSideConnection.hasUnreliable();
+    }
+    /**
+     * Returns how the client's messages are sent and received, which is the server's {@link Transport} unless the client is of an older version that only supports {@link Transport#TCP}
+     * @return The client's {@link Transport}
+     */
+    public Transport getTransport(){
+        return isConnected() && serverSideConnection.lane != null ? Transport.UDP : Transport.TCP;
+    }
+    /**
+     * Sends the client a file. The file is copied to the connection in chunks by the operating system, without being read into memory, and other data sent while the file is being sent is sent between its chunks. Chunks are only queued while the connection is writable (see {@link #isWritable()}), so a large file does not crowd out other data. The client receives the file through receiveFile. The file is closed once it has been sent.
+     * @param file Path of the file to send
+     * @throws IOException If the file could not be opened, or any I/O errors occur
+     */
+    public void sendFile(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            sendFile(channel, 0, channel.size(), file.getFileName().toString(), true);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    /**
+     * Sends the client part of a file, see {@link #sendFile(Path)}. The file is left open, and should not be closed until it has been sent. The client receives it with an empty name.
+     * @param file The file to send
+     * @param position Position in the file to start sending from
+     * @param length Number of bytes to send
+     * @throws IOException If any I/O errors occur
+     */
+    public void sendFile(FileChannel file, long position, long length) throws IOException {
+        sendFile(file, position, length, "", false);
+    }
+    /**
+     * Sends the client part of a file
+     * @param file The file to send
+     * @param position Position in the file to start sending from
+     * @param length Number of bytes to send
+     * @param name Name of the file given to the client
+     * @param close Whether to close the file once it has been sent
+     * @throws IOException If any I/O errors occur
+     */
+    private void sendFile(FileChannel file, long position, long length, String name, boolean close) throws IOException {
+        if(isConnected()) {
+            serverSideConnection.sendFile(file, position, length, name, close);
+        }
+        else if(close){
+            file.close();
+        }
+    }
+    /**
+     * Starts sending the client a stream of data of any length, such as a large {@link Object} written through an {@link java.io.ObjectOutputStream} wrapped around the returned stream. The data is sent in chunks as it is written, with other data sent meanwhile sent between the chunks, and writing waits while the connection is not writable (see {@link #isWritable()}), so the stream never needs more memory than one chunk. This waiting is skipped when writing from an event fired without {@link NetEventHandler#CALLBACK_EXECUTOR}, as the connection cannot be written to until the event returns. The client receives the stream through receiveStream.
+     * @param name Name of the stream given to the client
+     * @return A {@link ChunkedOutputStream} to write the stream to, which must be closed once everything has been written
+     * @throws IOException If the connection is closed, or any I/O errors occur
+     */
+    public ChunkedOutputStream openStream(String name) throws IOException {
+        if(!isConnected()){throw new IOException("The connection is closed");}
+        return serverSideConnection.openStream(name);
+    }
+    /**
+     * Calls the client: sends it a request that the handler it registered with {@link ClientSideConnection#onCall(Class, CallHandler)} for the request's class answers, without waiting for the answer. Any number of calls can wait for their answers at once, which may arrive in any order. The call fails if it is not answered within {@link NetEventHandler#CALL_TIMEOUT} milliseconds.
+     * @param request The request, sent like {@link #send(Object)} sends {@link Object}s
+     * @return A future completed with the answer, or failed with a {@link RemoteCallException} if the call failed on the client, a {@link java.util.concurrent.TimeoutException} if it timed out, or an {@link IOException} if the connection closed first. It is completed like events fire, on the connection's event loop or through {@link NetEventHandler#CALLBACK_EXECUTOR}, so it should not be waited on from an event.
+     * @param <R> The class of the answer
+     * @throws IOException If the connection is closed, or the request could not be sent
+     */
+    public <R> CompletableFuture<R> call(Object request) throws IOException {
+        return call(request, NetEventHandler.CALL_TIMEOUT);
+    }
+    /**
+     * Calls the client like {@link #call(Object)}, with its own timeout
+     * @param request The request
+     * @param timeout Longest time (in milliseconds) to wait for the answer, or zero or less to wait until the connection closes
+     * @return A future completed with the answer
+     * @param <R> The class of the answer
+     * @throws IOException If the connection is closed, or the request could not be sent
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> call(Object request, long timeout) throws IOException {
+        if(!isConnected()){throw new IOException("The connection is closed");}
+        return (CompletableFuture<R>) (CompletableFuture<?>) serverSideConnection.call(request, timeout);
+    }
+    /**
+     * Sends anything given to {@link #send(Object)} that is still waiting in the connection's send buffer to the client right away. Sent data is gathered so that a burst of sends leaves in a single write, and is sent automatically once the connection's event loop finishes its current round of work, so this is only needed when data has to leave before then.
+     * @throws IOException If any I/O errors occur
+     */
+    public void flush() throws IOException {
+        if(isConnected()) {
+            serverSideConnection.flush();
+        }
+    }
 
     /**
      * Returns the {@link Server} the connection is associated with.
@@ -166,4 +473,70 @@ public abstract class ServerSideConnection<T extends Server> {
      * @param in The {@link Object} received by the server
      */
     public abstract void receiveObject(Object in);
+    /**
+     * Fires when the server receives data in the form of a byte array. By default this fires {@link #receiveObject(Object)} with the array, override it to handle arrays separately.
+     * @param in The byte array received by the server
+     */
+    public void receiveBytes(byte[] in){
+        receiveObject(in);
+    }
+    /**
+     * Fires when the server receives data in the form of a int array. By default this fires {@link #receiveObject(Object)} with the array, override it to handle arrays separately.
+     * @param in The int array received by the server
+     */
+    public void receiveInts(int[] in){
+        receiveObject(in);
+    }
+    /**
+     * Fires when the server receives data in the form of a long array. By default this fires {@link #receiveObject(Object)} with the array, override it to handle arrays separately.
+     * @param in The long array received by the server
+     */
+    public void receiveLongs(long[] in){
+        receiveObject(in);
+    }
+    /**
+     * Fires when the server receives data in the form of a float array. By default this fires {@link #receiveObject(Object)} with the array, override it to handle arrays separately.
+     * @param in The float array received by the server
+     */
+    public void receiveFloats(float[] in){
+        receiveObject(in);
+    }
+    /**
+     * Fires when the server receives data in the form of a double array. By default this fires {@link #receiveObject(Object)} with the array, override it to handle arrays separately.
+     * @param in The double array received by the server
+     */
+    public void receiveDoubles(double[] in){
+        receiveObject(in);
+    }
+    /**
+     * Fires when the server receives data sent as a {@link ByteBuffer}. The {@link ByteBuffer} is read-only and, unless {@link NetEventHandler#CALLBACK_EXECUTOR} is set, is a view of the connection's receive buffer that is only valid until this returns, so it can be read without being copied. By default this copies the data and fires {@link #receiveBytes(byte[])}.
+     * @param in The data received by the server
+     */
+    public void receiveBuffer(ByteBuffer in){
+        byte[] data = new byte[in.remaining()];
+        in.get(data);
+        receiveBytes(data);
+    }
+    /**
+     * Fires when the server receives a datagram sent through the client's unreliable channel with sendUnreliable. The {@link ByteBuffer} is read-only and holds a copy of the datagram, so it can be kept. This does nothing unless overridden.
+     * @param in The data received by the server
+     */
+    public void receiveUnreliable(ByteBuffer in){}
+    /**
+     * Fires when the server starts receiving a file sent with sendFile. The returned {@link FileReceiver} receives the file's chunks as they arrive, for example {@link FileReceiver#to(Path)} to save the file. By default this returns null, which ignores the file.
+     * @param name Name of the file, which is empty if it was sent from a {@link FileChannel}. This comes from the other side of the connection and should not be trusted as a path.
+     * @param length Size of the file in bytes
+     * @return Where the file's chunks go, or null to ignore the file
+     */
+    public FileReceiver receiveFile(String name, long length){
+        return null;
+    }
+    /**
+     * Fires when the server starts receiving a stream sent with openStream. The returned {@link FileReceiver} receives the stream's chunks as they arrive, and its finished event fires once the sender closes the stream. By default this returns null, which ignores the stream.
+     * @param name Name of the stream. This comes from the other side of the connection and should not be trusted.
+     * @return Where the stream's chunks go, or null to ignore the stream
+     */
+    public FileReceiver receiveStream(String name){
+        return null;
+    }
 }
@@ -0,0 +1,239 @@
+package netApi;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message encoded once to be sent to many connections, see {@link Server#broadcast(Object)}. The encoded message is held in a buffer taken from the {@link BufferPool}, which every connection sends from through its own view instead of a copy. The buffer is reference counted: each connection holding a view and the broadcast itself hold a reference, and the buffer goes back to the pool once all of them have released theirs.
+ * @hidden
+ */
+final class SharedFrame {
+    /**
+     * The whole message, type and length included
+     */
+    private final ByteBuffer data;
+    /**
+     * Type of the message, or of the message that was compressed for compressed messages
+     */
+    final byte type;
+    /**
+     * Number of holders of the message, see {@link #release()}
+     */
+    private final AtomicInteger refs;
+    /**
+     * The message compressed with each {@link Compression}, by ordinal, once a connection has needed it. Entries are this SharedFrame when compressing did not save enough to be worth it.
+     */
+    private SharedFrame[] compressed;
+
+    /**
+     * Creates a new SharedFrame, held once by its creator
+     * @param type Type of the message
+     * @param data The whole message
+     */
+    private SharedFrame(byte type, ByteBuffer data) {
+        this.type = type;
+        this.data = data;
+        this.refs = new AtomicInteger(1);
+    }
+
+    /**
+     * Encodes a message the way {@link ServerSideConnection#send(Object)} would send it
+     * @param o The message
+     * @param serializer The {@link Server}'s {@link Serializer}, or null
+     * @param messages The {@link Server}'s {@link MessageRegistry}, or null
+     * @return The encoded message, or null if the message is a single primitive or a {@link String} in the legacy format, which are cheaper to encode for each connection than to share
+     * @throws IOException If the message is larger than {@link NetEventHandler#MAX_MESSAGE_SIZE}, or could not be encoded
+     */
+    static SharedFrame of(Object o, Serializer serializer, MessageRegistry messages) throws IOException {
+        switch (o) {
+            case Integer i -> {return null;}
+            case Character c -> {return null;}
+            case Long l -> {return null;}
+            case Double v -> {return null;}
+            case Byte b -> {return null;}
+            case Short i -> {return null;}
+            case Float v -> {return null;}
+            case Boolean b -> {return null;}
+            case String s -> {
+                if(NetEventHandler.LEGACY_STRINGS){return null;}
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                return frame((byte) 13, bytes.length, ByteBuffer.wrap(bytes));
+            }
+            case byte[] a -> {return frame((byte) 19, a.length, ByteBuffer.wrap(a));}
+            case int[] a -> {
+                ByteBuffer bytes = ByteBuffer.allocate(checkSize((long) a.length * Integer.BYTES));
+                bytes.asIntBuffer().put(a);
+                return frame((byte) 20, a.length, bytes);
+            }
+            case long[] a -> {
+                ByteBuffer bytes = ByteBuffer.allocate(checkSize((long) a.length * Long.BYTES));
+                bytes.asLongBuffer().put(a);
+                return frame((byte) 21, a.length, bytes);
+            }
+            case float[] a -> {
+                ByteBuffer bytes = ByteBuffer.allocate(checkSize((long) a.length * Float.BYTES));
+                bytes.asFloatBuffer().put(a);
+                return frame((byte) 22, a.length, bytes);
+            }
+            case double[] a -> {
+                ByteBuffer bytes = ByteBuffer.allocate(checkSize((long) a.length * Double.BYTES));
+                bytes.asDoubleBuffer().put(a);
+                return frame((byte) 23, a.length, bytes);
+            }
+            case null, default -> {
+                FrameBuffer bytes = new FrameBuffer(256);
+                DataOutputStream out = new DataOutputStream(bytes);
+                byte type = NetEventHandler.DataStream.objectType(o, serializer, messages);
+                if(type == 18){
+                    int id = messages.getId(o.getClass());
+                    out.writeShort(id);
+                    messages.codec(id).write(o, out);
+                }
+                else if(type == 17){
+                    serializer.serialize(o, out);
+                }
+                else{
+                    ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+                    objectOut.writeObject(o);
+                    objectOut.flush();
+                }
+                return frame(type, bytes.size(), bytes.view());
+            }
+        }
+    }
+
+    /**
+     * Checks that a message is no larger than {@link NetEventHandler#MAX_MESSAGE_SIZE}
+     * @param bytes Size of the message's data in bytes
+     * @return The size
+     * @throws ProtocolException If the message is too large
+     */
+    private static int checkSize(long bytes) throws ProtocolException {
+        if(bytes > NetEventHandler.MAX_MESSAGE_SIZE - Integer.BYTES){
+            throw new ProtocolException("Message is larger than the maximum message size");
+        }
+        return (int) bytes;
+    }
+
+    /**
+     * Builds a message of its type, a number, and its data
+     * @param type Type of the message
+     * @param count The number following the type, which is the length of the data or the number of elements of an array
+     * @param payload The message's data, which is consumed
+     * @return The message
+     * @throws ProtocolException If the message is larger than {@link NetEventHandler#MAX_MESSAGE_SIZE}
+     */
+    private static SharedFrame frame(byte type, int count, ByteBuffer payload) throws ProtocolException {
+        ByteBuffer data = BufferPool.acquire(1 + Integer.BYTES + checkSize(payload.remaining()));
+        data.put(type).putInt(count).put(payload).flip();
+        return new SharedFrame(type, data);
+    }
+
+    /**
+     * Returns the message to send to a connection that compresses with a {@link Compression}, compressing the message the first time a connection needs it. Only messages that {@link NetEventHandler.DataStream} would compress are compressed, in the same format.
+     * @param c The connection's {@link Compression}
+     * @return The compressed message, or this SharedFrame if the message is not compressed for the connection
+     */
+    synchronized SharedFrame compressed(Compression c) {
+        int length = data.limit() - 1 - Integer.BYTES;
+        if(c == Compression.NONE || NetEventHandler.COMPRESSION_THRESHOLD < 0 || length < NetEventHandler.COMPRESSION_THRESHOLD || type != 13 && (type < 16 || type > 19)){
+            return this;
+        }
+        if(compressed == null){
+            compressed = new SharedFrame[Compression.values().length];
+        }
+        SharedFrame out = compressed[c.ordinal()];
+        if(out == null){
+            int worth = length - (length >>> 5);
+            byte[] packed = new byte[worth];
+            int n = FrameCompressor.compress(c, data.slice(1 + Integer.BYTES, length), packed, worth);
+            if(n < 0){
+                out = this;
+            }
+            else{
+                ByteBuffer bytes = BufferPool.acquire(3 + 2 * Integer.BYTES + n);
+                bytes.put((byte) 30).put((byte) c.ordinal()).put(type).putInt(n).putInt(length).put(packed, 0, n).flip();
+                out = new SharedFrame(type, bytes);
+            }
+            compressed[c.ordinal()] = out;
+        }
+        return out;
+    }
+
+    /**
+     * Returns the length of the whole message
+     * @return The length in bytes
+     */
+    int length() {
+        return data.limit();
+    }
+
+    /**
+     * Returns a view of the whole message for a connection to send, which holds the message until it is released with {@link #release()}
+     * @return A read-only view of the message
+     */
+    ByteBuffer view() {
+        refs.incrementAndGet();
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the whole message, for connections that gather it with other messages instead of sending it from its own buffer
+     * @param dst Where to copy the message
+     */
+    void copyTo(ByteBuffer dst) {
+        dst.put(data.duplicate());
+    }
+
+    /**
+     * Releases a hold on the message, giving its buffer back to the {@link BufferPool} once nothing holds it
+     */
+    void release() {
+        if(refs.decrementAndGet() == 0){
+            BufferPool.release(data);
+        }
+    }
+
+    /**
+     * Releases the creator's hold on the message and on every compressed version of it, once it has been given to every connection
+     */
+    synchronized void finish() {
+        if(compressed != null){
+            for(SharedFrame f : compressed){
+                if(f != null && f != this){
+                    f.release();
+                }
+            }
+        }
+        release();
+    }
+
+    /**
+     * A connection's view of a SharedFrame waiting to be sent
+     */
+    static final class View {
+        /**
+         * The SharedFrame viewed, which is released once the view has been sent
+         */
+        final SharedFrame frame;
+        /**
+         * The connection's view of the SharedFrame
+         */
+        final ByteBuffer buffer;
+
+        /**
+         * Creates a new View
+         * @param frame The SharedFrame viewed, already held for this view
+         * @param buffer The connection's view of the SharedFrame
+         */
+        View(SharedFrame frame, ByteBuffer buffer) {
+            this.frame = frame;
+            this.buffer = buffer;
+        }
+    }
+}
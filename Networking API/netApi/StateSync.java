@@ -0,0 +1,325 @@
+package netApi;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps a {@link Server}'s shared state in step with its clients, see {@link Server#syncState(Object)}. Each version of the state is encoded once, and every client is sent only the bytes that changed since the version it was last sent, which it will already hold when the changes arrive as messages are received in order. A client is sent the whole state instead when it has just joined, when the version it was last sent is no longer remembered, or when the changes would not be smaller.
+ * @hidden
+ */
+class StateSync {
+    /**
+     * Longest run of unchanged bytes that is sent anyway to join two runs of changed bytes, as each run costs a few bytes to describe
+     */
+    private static final int MERGE_GAP = 4;
+    /**
+     * The most recent encoded versions of the state, by version modulo the array's length
+     */
+    private final byte[][] history;
+    /**
+     * The latest version of the state, or -1 if none has been published
+     */
+    private long version;
+
+    /**
+     * Creates a new StateSync
+     * @param size Number of versions remembered
+     */
+    StateSync(int size) {
+        history = new byte[Math.max(1, size)][];
+        version = -1;
+    }
+
+    /**
+     * Returns the latest version of the state
+     * @return The latest version, or -1 if none has been published
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Publishes a new version of the state and sends it to every client that is keeping up. Clients that have been sent a whole history of versions without acknowledging any are skipped, and sent the latest version once they acknowledge enough to catch up.
+     * @param state The new state
+     * @param serializer The {@link Server}'s {@link Serializer}, or null
+     * @param server The {@link Server}, whose clients are sent the state
+     * @return The new version
+     * @throws IOException If the state could not be encoded
+     */
+    synchronized long publish(Object state, Serializer serializer, Server<?> server) throws IOException {
+        byte[] encoded = encode(state, serializer);
+        version++;
+        history[(int) (version % history.length)] = encoded;
+        Map<Long, byte[]> frames = new HashMap<>();
+        for(ServerSideConnection<?> c : server.getUsers()){
+            if(c.isConnected() && !behind(c)){
+                update(c, frames);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Checks whether a client has been sent a whole history of versions without acknowledging any
+     * @param c The client
+     * @return Whether the client should be skipped until it catches up
+     */
+    private boolean behind(ServerSideConnection<?> c) {
+        return c.stateSent >= 0 && c.stateSent - c.stateAcked >= history.length;
+    }
+
+    /**
+     * Sends a client the latest version of the state, as the changes since the version it was last sent if they are smaller, otherwise as the whole state
+     * @param c The client
+     * @param frames Messages already built for this version, by the version they apply to (-1 for the whole state), which are shared between clients. Versions whose changes were not worth sending map to null.
+     */
+    private void update(ServerSideConnection<?> c, Map<Long, byte[]> frames) {
+        byte[] encoded = history[(int) (version % history.length)];
+        byte[] base = remembered(c.stateSent);
+        byte[] delta = null;
+        if(base != null){
+            delta = frames.get(c.stateSent);
+            if(delta == null && !frames.containsKey(c.stateSent)){
+                delta = deltaFrame(c.stateSent, base, encoded);
+                frames.put(c.stateSent, delta);
+            }
+        }
+        if(delta != null){
+            send(c, (byte) 36, delta);
+            return;
+        }
+        byte[] snapshot = frames.get(-1L);
+        if(snapshot == null){
+            snapshot = snapshotFrame(encoded);
+            frames.put(-1L, snapshot);
+        }
+        send(c, (byte) 35, snapshot);
+    }
+
+    /**
+     * Sends the latest version of the state to a client that has just joined
+     * @param c The client
+     */
+    synchronized void join(ServerSideConnection<?> c) {
+        if(version >= 0 && c.stateSent < 0){
+            update(c, new HashMap<>());
+        }
+    }
+
+    /**
+     * Records that a client has received a version of the state. A client that was skipped for falling behind is sent the latest version as soon as this lets it catch up, and a client acknowledging version -1 could not apply the changes it was sent, and is sent the whole state.
+     * @param c The client
+     * @param acked The version the client received
+     */
+    synchronized void acknowledge(ServerSideConnection<?> c, long acked) {
+        boolean skipped = behind(c);
+        if(acked < 0){
+            c.stateSent = -1;
+            c.stateAcked = -1;
+            skipped = true;
+        }
+        else if(acked > c.stateAcked){
+            c.stateAcked = acked;
+        }
+        if(skipped && !behind(c) && c.stateSent < version && c.isConnected()){
+            update(c, new HashMap<>());
+        }
+    }
+
+    /**
+     * Sends a version of the state to a client, recording it as the version the client was last sent
+     * @param c The client
+     * @param type Type of the message, 35 for the whole state or 36 for changes
+     * @param frame The message's data
+     */
+    private void send(ServerSideConnection<?> c, byte type, byte[] frame) {
+        try {
+            c.serverSideConnection.sendState(type, frame);
+            c.stateSent = version;
+        } catch (IOException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+
+    /**
+     * Returns an encoded version of the state if it is still remembered
+     * @param v The version
+     * @return The encoded version, or null if it is not remembered
+     */
+    private byte[] remembered(long v) {
+        if(v < 0 || v <= version - history.length){return null;}
+        return history[(int) (v % history.length)];
+    }
+
+    /**
+     * Builds the data of a message holding the whole state: its version followed by the encoded state
+     * @param encoded The encoded state
+     * @return The message's data
+     */
+    private byte[] snapshotFrame(byte[] encoded) {
+        return ByteBuffer.allocate(Long.BYTES + encoded.length).putLong(version).put(encoded).array();
+    }
+
+    /**
+     * Builds the data of a message holding the changes between two versions of the state: the version they apply to, the new version, then the changes
+     * @param from The version the changes apply to
+     * @param base The encoded state the changes apply to
+     * @param encoded The new encoded state
+     * @return The message's data, or null if it would not be smaller than the whole state
+     */
+    private byte[] deltaFrame(long from, byte[] base, byte[] encoded) {
+        byte[] delta = diff(base, encoded);
+        if(delta == null){return null;}
+        return ByteBuffer.allocate(2 * Long.BYTES + delta.length).putLong(from).putLong(version).put(delta).array();
+    }
+
+    /**
+     * Encodes a state through a {@link Serializer} if it can write the state's class, otherwise with Java serialization. The first byte says which was used.
+     * @param state The state
+     * @param serializer The {@link Serializer}, or null
+     * @return The encoded state
+     * @throws IOException If the state could not be encoded
+     */
+    static byte[] encode(Object state, Serializer serializer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if(serializer != null && serializer.canSerialize(state.getClass())){
+            bytes.write(1);
+            DataOutputStream out = new DataOutputStream(bytes);
+            serializer.serialize(state, out);
+            out.flush();
+        }
+        else{
+            bytes.write(0);
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(state);
+            out.flush();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a state encoded by {@link #encode(Object, Serializer)}
+     * @param encoded The encoded state
+     * @param serializer The {@link Serializer}, or null
+     * @return The state
+     * @throws IOException If the state could not be decoded
+     * @throws ClassNotFoundException If the class of the state cannot be found
+     */
+    static Object decode(byte[] encoded, Serializer serializer) throws IOException, ClassNotFoundException {
+        if(encoded.length == 0){
+            throw new ProtocolException("Received an empty state");
+        }
+        InputStream in = new ByteArrayInputStream(encoded, 1, encoded.length - 1);
+        if(encoded[0] == 1){
+            if(serializer == null){
+                throw new ProtocolException("Received a state written by a Serializer, but there is no Serializer to read it");
+            }
+            return serializer.deserialize(new DataInputStream(in));
+        }
+        return new ObjectInputStream(in).readObject();
+    }
+
+    /**
+     * Finds the bytes that changed between two versions of the state. The changes are written as the new length followed by runs of changed bytes, each as the number of unchanged bytes before it, its length, and its bytes, with lengths as varints. Bytes past the end of the old version always count as changed.
+     * @param old The old version
+     * @param now The new version
+     * @return The changes, or null if they would not be smaller than the new version
+     */
+    static byte[] diff(byte[] old, byte[] now) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        putVarint(out, now.length);
+        int common = Math.min(old.length, now.length), written = 0, i = 0;
+        while(i < now.length){
+            if(i < common && old[i] == now[i]){
+                i++;
+                continue;
+            }
+            int start = i, end = i;
+            while(end < now.length){
+                if(end >= common || old[end] != now[end]){
+                    end++;
+                    continue;
+                }
+                int gap = end;
+                while(gap < common && gap - end < MERGE_GAP && old[gap] == now[gap]){
+                    gap++;
+                }
+                if(gap - end >= MERGE_GAP || gap >= now.length){break;}
+                end = gap;
+            }
+            putVarint(out, start - written);
+            putVarint(out, end - start);
+            out.write(now, start, end - start);
+            written = i = end;
+            if(out.size() >= now.length){return null;}
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Applies changes found by {@link #diff(byte[], byte[])} to the version they were found against
+     * @param old The version the changes apply to
+     * @param delta The changes, which are consumed
+     * @return The new version
+     * @throws ProtocolException If the changes are not valid
+     */
+    static byte[] apply(byte[] old, ByteBuffer delta) throws ProtocolException {
+        int length = readVarint(delta);
+        if(length > NetEventHandler.MAX_MESSAGE_SIZE){
+            throw new ProtocolException("State is larger than the maximum message size");
+        }
+        byte[] now = Arrays.copyOf(old, length);
+        int position = 0;
+        while(delta.hasRemaining()){
+            int skip = readVarint(delta), run = readVarint(delta);
+            if(skip > length - position || run > length - position - skip || run > delta.remaining()){
+                throw new ProtocolException("State changes do not fit the state");
+            }
+            position += skip;
+            delta.get(now, position, run);
+            position += run;
+        }
+        return now;
+    }
+
+    /**
+     * Writes a non-negative number seven bits to a byte, starting from the lowest, with the top bit of every byte but the last set
+     * @param out Where to write the number
+     * @param value The number
+     */
+    private static void putVarint(ByteArrayOutputStream out, int value) {
+        while(value >>> 7 != 0){
+            out.write(value | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads a number written by {@link #putVarint(ByteArrayOutputStream, int)}
+     * @param in Where to read the number from
+     * @return The number
+     * @throws ProtocolException If the number runs past the end of the data or does not fit in an int
+     */
+    private static int readVarint(ByteBuffer in) throws ProtocolException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7){
+            if(!in.hasRemaining()){
+                throw new ProtocolException("State changes are cut short");
+            }
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if(b >= 0){
+                if(value < 0){break;}
+                return value;
+            }
+        }
+        throw new ProtocolException("State changes hold a number that is too large");
+    }
+}
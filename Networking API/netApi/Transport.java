@@ -0,0 +1,15 @@
+package netApi;
+
+/**
+ * Ways a {@link Server}'s clients send and receive their messages, chosen when the {@link Server} is created. Clients always join over TCP, and either side's messages, events and order are the same whichever is used.
+ */
+public enum Transport {
+    /**
+     * Messages are sent over each client's TCP connection
+     */
+    TCP,
+    /**
+     * Once a client has joined, messages are sent as datagrams over UDP, with lost datagrams sent again and messages handed on in order. Unlike TCP, lost data is found from which later datagrams arrived instead of waiting for a timeout, so it is sent again sooner, which keeps delays shorter on networks that lose data. Large messages are split across as many datagrams as they need. The TCP connection stays open to tell when either side leaves. Clients can also send and receive unreliable datagrams through the same channel (see {@link ServerSideConnection#sendUnreliable(java.nio.ByteBuffer)}), and clients of older versions stay on TCP.
+     */
+    UDP
+}
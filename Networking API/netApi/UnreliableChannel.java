@@ -0,0 +1,321 @@
+package netApi;
+
+import netApi.NetEventHandler.DataStream;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Channel for datagrams that may be lost or arrive out of order, sent alongside a connection's TCP stream, see {@link ServerSideConnection#sendUnreliable(ByteBuffer)}. A {@link Server} has a single channel shared by all its clients, which tells them apart by the session token each is given over its TCP stream while it joins, and each client that asked for one has its own channel to its {@link Server}. Connections on {@link Transport#UDP} also send their {@link ReliableLane}'s segments and acknowledgements through their channel. Every datagram holds its kind, the session token and a sequence number, followed by its data.
+ * @hidden
+ */
+class UnreliableChannel {
+    /**
+     * Number of bytes in front of every datagram's data
+     */
+    static final int HEADER = 1 + Long.BYTES + Integer.BYTES;
+    /**
+     * Kind of datagram a client sends until the {@link Server} answers with one, so that the {@link Server} learns where to send the client's datagrams
+     */
+    static final byte HELLO = 1;
+    /**
+     * Kind of datagram holding data
+     */
+    static final byte DATA = 2;
+    /**
+     * Kind of datagram holding a segment of a {@link ReliableLane}, numbered by its sequence number
+     */
+    static final byte SEGMENT = 3;
+    /**
+     * Kind of datagram acknowledging the segments of a {@link ReliableLane} received, whose sequence number is the next segment expected in order
+     */
+    static final byte ACK = 4;
+    /**
+     * Time (in milliseconds) between a client's hello datagrams
+     */
+    private static final long HELLO_INTERVAL = 250;
+    /**
+     * Most datagrams received at once, so that a busy channel does not keep the {@link EventLoop} from its other connections
+     */
+    private static final int RECEIVE_BATCH = 64;
+    /**
+     * Size (in bytes) asked of the operating system for the channel's receive buffer, as a {@link Server}'s channel takes the datagrams of all its clients and drops any that arrive while the buffer is full
+     */
+    private static final int SOCKET_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * Source of session tokens, which must not be guessable as they are all that ties a datagram to its connection
+     */
+    private static final SecureRandom random = new SecureRandom();
+    /**
+     * Empty data of hello datagrams
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    /**
+     * Creates the channel of every {@link Server} and client from its underlying channel and the client's connection (null for a {@link Server}). Tests in this package replace it to create channels that override {@link #transmit(ByteBuffer, SocketAddress)}.
+     */
+    static volatile BiFunction<DatagramChannel, DataStream, UnreliableChannel> factory = UnreliableChannel::new;
+    /**
+     * The underlying channel
+     */
+    private final DatagramChannel channel;
+    /**
+     * Util buffer datagrams are received into, large enough for any datagram
+     */
+    private final ByteBuffer in;
+    /**
+     * The {@link Server}'s connections, by session token, or null for a client's channel
+     */
+    private final Map<Long, DataStream> sessions;
+    /**
+     * The client's connection, or null for a {@link Server}'s channel
+     */
+    private final DataStream client;
+    /**
+     * Whether the {@link Server} has answered the client's hello
+     */
+    private volatile boolean bound;
+    /**
+     * Whether a {@link Server}'s channel closes once its last connection stops using it, see {@link #closeWhenIdle()}
+     */
+    private volatile boolean closing;
+    /**
+     * {@link ReliableLane}s that received segments during the current batch of datagrams, which each send a single acknowledgement once the batch is done. This is only used by the thread receiving the channel's datagrams.
+     */
+    private final ArrayList<ReliableLane> acking;
+
+    /**
+     * Creates a new UnreliableChannel
+     * @param channel The underlying channel
+     * @param client The client's connection, or null for a {@link Server}'s channel
+     */
+    UnreliableChannel(DatagramChannel channel, DataStream client) {
+        this.channel = channel;
+        this.client = client;
+        this.sessions = client == null ? new ConcurrentHashMap<>() : null;
+        this.in = ByteBuffer.allocate(65536);
+        this.acking = new ArrayList<>();
+    }
+
+    /**
+     * Opens a {@link Server}'s channel on any free port
+     * @param address Address of the {@link Server}'s socket
+     * @return The channel
+     * @throws IOException If the channel could not be opened
+     */
+    static UnreliableChannel open(InetAddress address) throws IOException {
+        DatagramChannel c = DatagramChannel.open();
+        try {
+            c.bind(new InetSocketAddress(address, 0));
+            c.configureBlocking(false);
+            c.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+        UnreliableChannel out = factory.apply(c, null);
+        NetEventHandler.datagramLoop().registerDatagrams(c, out);
+        return out;
+    }
+
+    /**
+     * Opens a client's channel to its {@link Server}, and starts sending hello datagrams until the {@link Server} answers or {@link NetEventHandler#HANDSHAKE_TIMEOUT} runs out
+     * @param d The client's connection, holding its session token
+     * @param server Address of the {@link Server}'s channel
+     * @return The channel
+     * @throws IOException If the channel could not be opened
+     */
+    static UnreliableChannel connect(DataStream d, InetSocketAddress server) throws IOException {
+        DatagramChannel c = DatagramChannel.open();
+        try {
+            c.connect(server);
+            c.configureBlocking(false);
+            c.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+        UnreliableChannel out = factory.apply(c, d);
+        d.loop.registerDatagrams(c, out);
+        out.hello(server, Math.max(1, NetEventHandler.HANDSHAKE_TIMEOUT / HELLO_INTERVAL));
+        return out;
+    }
+
+    /**
+     * Sends a hello datagram, and schedules the next one if the {@link Server} has not answered
+     * @param server Address of the {@link Server}'s channel
+     * @param attempts Number of hello datagrams left to send, this one included
+     */
+    private void hello(InetSocketAddress server, long attempts) {
+        if(bound || !client.isOpen() || !channel.isOpen()){return;}
+        try {
+            send(client.unreliableToken, server, HELLO, 0, EMPTY);
+        } catch (IOException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
+            }
+        }
+        if(attempts > 1){
+            CompletableFuture.delayedExecutor(HELLO_INTERVAL, TimeUnit.MILLISECONDS).execute(() -> hello(server, attempts - 1));
+        }
+    }
+
+    /**
+     * Gives a connection of the {@link Server} a session token, so that datagrams holding it are handed to the connection
+     * @param d The connection
+     * @return The session token, which is never 0
+     */
+    long register(DataStream d) {
+        long token;
+        do {
+            token = random.nextLong();
+        } while(token == 0 || sessions.putIfAbsent(token, d) != null);
+        return token;
+    }
+
+    /**
+     * Stops handing datagrams to a connection that has closed, closing a client's channel
+     * @param d The connection
+     */
+    void detach(DataStream d) {
+        if(sessions != null){
+            sessions.remove(d.unreliableToken, d);
+            if(closing && sessions.isEmpty()){
+                close();
+            }
+        }
+        else{
+            close();
+        }
+    }
+
+    /**
+     * Returns the port of the channel
+     * @return The port datagrams are received on
+     */
+    int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Sends a datagram
+     * @param token Session token of the connection
+     * @param to Where to send the datagram
+     * @param kind {@link #HELLO}, {@link #DATA}, {@link #SEGMENT} or {@link #ACK}
+     * @param sequence Sequence number of the datagram
+     * @param data The datagram's data, which is not consumed
+     * @return Whether the datagram was sent, which it is not when the network has no room for it
+     * @throws IOException If an I/O error occurs
+     */
+    boolean send(long token, SocketAddress to, byte kind, int sequence, ByteBuffer data) throws IOException {
+        ByteBuffer out = BufferPool.acquire(HEADER + data.remaining());
+        try {
+            out.put(kind).putLong(token).putInt(sequence).put(data.duplicate()).flip();
+            return transmit(out, to) > 0;
+        } catch (PortUnreachableException e) {
+            return false;
+        } finally {
+            BufferPool.release(out);
+        }
+    }
+
+    /**
+     * Hands a whole datagram to the underlying channel
+     * @param datagram The datagram, header included, which is only valid until this returns
+     * @param to Where to send the datagram
+     * @return The number of bytes sent, which is 0 when the network has no room for the datagram
+     * @throws IOException If an I/O error occurs
+     */
+    int transmit(ByteBuffer datagram, SocketAddress to) throws IOException {
+        return channel.send(datagram, to);
+    }
+
+    /**
+     * Receives the datagrams waiting on the channel, up to {@link #RECEIVE_BATCH} of them, handing each to its connection. Datagrams that are too short or whose session token is not known are ignored. A {@link Server} sends its datagrams for a client to wherever the client's latest datagram came from, and answers each hello. Datagrams other than data are still handled once their connection has closed if it is on {@link Transport#UDP}, so that it can finish sending what it has queued.
+     */
+    void receive() {
+        try {
+            SocketAddress from;
+            for(int i = 0; i < RECEIVE_BATCH && (from = channel.receive(in.clear())) != null; i++){
+                in.flip();
+                if(in.remaining() < HEADER){continue;}
+                byte kind = in.get();
+                long token = in.getLong();
+                int sequence = in.getInt();
+                DataStream d = sessions != null ? sessions.get(token) : client.unreliableToken == token ? client : null;
+                ReliableLane lane = d == null ? null : d.lane;
+                if(d == null || !d.isOpen() && lane == null){continue;}
+                if(sessions != null && !from.equals(d.unreliablePeer)){
+                    d.unreliablePeer = from;
+                    if(lane != null){
+                        lane.resume();
+                    }
+                }
+                if(kind == HELLO){
+                    if(sessions != null){
+                        send(token, from, HELLO, 0, EMPTY);
+                    }
+                    else{
+                        bound = true;
+                    }
+                }
+                else if(kind == DATA && d.isOpen()){
+                    d.receiveUnreliable(sequence, in);
+                }
+                else if(kind == SEGMENT && lane != null){
+                    lane.receiveSegment(sequence, in);
+                    if(!acking.contains(lane)){
+                        acking.add(lane);
+                    }
+                }
+                else if(kind == ACK && lane != null){
+                    lane.receiveAck(sequence, in);
+                }
+            }
+        } catch (IOException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
+            }
+        } finally {
+            for(ReliableLane lane : acking){
+                lane.acknowledge();
+            }
+            acking.clear();
+        }
+    }
+
+    /**
+     * Closes a {@link Server}'s channel once none of its connections use it, so that connections on {@link Transport#UDP} can finish sending what they have queued after the {@link Server} has closed
+     */
+    void closeWhenIdle() {
+        closing = true;
+        if(sessions.isEmpty()){
+            close();
+        }
+    }
+
+    /**
+     * Closes the channel
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            if(NetEventHandler.DEV_VERSION){
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+}